@@ -0,0 +1,320 @@
+package bench;
+
+import protocol.Codec;
+import protocol.Request;
+import protocol.Response;
+import server.Server;
+import server.ServerConfig;
+import server.keyvalstore.DataStore;
+import utils.ObjectMessenger;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Microbenchmarks for the store, the protocol and the server.
+ * <p>
+ * The suites are:
+ * <ul>
+ *     <li>{@code store}: {@link DataStore} put, get, increment and push/pop
+ *     pairs for each key count and thread count.</li>
+ *     <li>{@code protocol}: parsing request lines, and {@link ObjectMessenger}
+ *     round-trips over an in-memory stream with each codec.</li>
+ *     <li>{@code snapshot}: saving and loading a snapshot of a large store.</li>
+ *     <li>{@code loopback}: SET and GET round-trips to an in-process
+ *     {@link Server} over loopback, one connection per thread.</li>
+ * </ul>
+ * Run with the suites to run, all of them by default, and optionally
+ * {@code --threads 1,4}, {@code --keys 1000,1000000}, {@code --warmup seconds},
+ * {@code --time seconds}, {@code --snapshot-keys n}, {@code --port n} and
+ * {@code --mode thread|virtual|nio}.
+ */
+public class Benchmarks {
+    private int[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+    private int[] keyCounts = {1_000, 1_000_000};
+    private int snapshotKeys = 1_000_000;
+    private int port = 7399;
+    private ServerConfig.Mode mode = ServerConfig.Mode.NIO;
+    private Harness harness = new Harness(2_000, 5_000);
+
+    /**
+     * Runs the store suite.
+     */
+    public void store() {
+        for (int keys : keyCounts) {
+            String[] names = keyNames("key:", keys);
+            DataStore store = new DataStore();
+            try {
+                for (String key : names) {
+                    store.put(key, "value");
+                }
+                for (int threads : threadCounts) {
+                    harness.run("store.put keys=" + keys, threads, (t, i) -> {
+                        store.put(names[pick(t, i, keys)], "value");
+                        return 1;
+                    });
+                    harness.run("store.get keys=" + keys, threads, (t, i) -> store.get(names[pick(t, i, keys)]).length());
+                }
+
+                String[] counters = keyNames("counter:", keys);
+                for (String key : counters) {
+                    store.put(key, "0");
+                }
+                for (int threads : threadCounts) {
+                    harness.run("store.increment keys=" + keys, threads, (t, i) -> store.increment(counters[pick(t, i, keys)]).length());
+                }
+
+                String[] lists = keyNames("list:", keys);
+                for (int threads : threadCounts) {
+                    harness.run("store.lPush+pop keys=" + keys, threads, (t, i) -> {
+                        String key = lists[pick(t, i >>> 1, keys)];
+                        if ((i & 1) == 0)
+                            return store.lPush(key, "value");
+                        return store.pop(key).length();
+                    });
+                }
+            } finally {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the protocol suite.
+     */
+    public void protocol() {
+        String[] lines = {"SET key:1 value", "GET key:2", "MSET a 1 b 2 c 3", "LPUSH queue job", "INCRBY counter 10", "EXPIRE key:3 1000"};
+        harness.run("request.parse", 1, (t, i) -> {
+            Request request = new Request(lines[(int) (i % lines.length)]);
+            return request.getArgs().size() + request.getCommand().ordinal();
+        });
+        Request request = new Request("SET key:123456 value");
+        Response response = new Response(true, "value");
+        for (String codec : new String[]{"serial", "binary"}) {
+            ObjectMessenger messenger = new ObjectMessenger(Codec.forName(codec));
+            MemoryPipe pipe = new MemoryPipe();
+            DataOutputStream out = new DataOutputStream(pipe.output());
+            DataInputStream in = new DataInputStream(pipe.input());
+            harness.run("messenger.roundtrip codec=" + codec, 1, (t, i) -> {
+                pipe.clear();
+                messenger.writeObject(request, out);
+                messenger.writeObject(response, out);
+                return messenger.receiveObject(in).hashCode() ^ messenger.receiveObject(in).hashCode();
+            });
+        }
+    }
+
+    /**
+     * Runs the snapshot suite.
+     */
+    public void snapshot() {
+        DataStore store = new DataStore();
+        try {
+            for (int i = 0; i < snapshotKeys; i++) {
+                store.put("key:" + i, (i & 1) == 0 ? "value:" + i : Integer.toString(i));
+            }
+            harness.runSingleShot("snapshot.save keys=" + snapshotKeys, 1, 3, (t, i) -> store.saveDataStore("bench-snapshot"));
+        } finally {
+            store.close();
+        }
+        harness.runSingleShot("snapshot.load keys=" + snapshotKeys, 1, 3, (t, i) -> {
+            DataStore loaded = new DataStore();
+            try {
+                return loaded.loadDataStore("bench-snapshot");
+            } finally {
+                loaded.close();
+            }
+        });
+    }
+
+    /**
+     * Runs the loopback suite against a server started in this process.
+     *
+     * @throws IOException If the server cannot be reached.
+     * @throws InterruptedException If interrupted while waiting for the server.
+     */
+    public void loopback() throws IOException, InterruptedException {
+        ServerConfig config = new ServerConfig(port);
+        config.setMode(mode);
+        config.setSaveRules(List.of());
+        Server server = new Server(config);
+        Thread acceptor = new Thread(server::start, "bench-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        int maxThreads = Arrays.stream(threadCounts).max().orElse(1);
+        List<Connection> connections = new ArrayList<>();
+        try {
+            for (int t = 0; t < maxThreads; t++) {
+                connections.add(new Connection(connect(), config.getCodec()));
+            }
+            Request set = new Request("SET key:1 value");
+            Request get = new Request("GET key:1");
+            for (int threads : threadCounts) {
+                harness.run("loopback.set mode=" + mode.name().toLowerCase(), threads, (t, i) -> connections.get(t).call(set));
+                harness.run("loopback.get mode=" + mode.name().toLowerCase(), threads, (t, i) -> connections.get(t).call(get));
+            }
+        } finally {
+            for (Connection c : connections) {
+                c.socket.close();
+            }
+            server.stop();
+        }
+    }
+
+    private Socket connect() throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * A client connection making one synchronous round-trip at a time.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final ObjectMessenger messenger;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private Connection(Socket socket, Codec codec) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            messenger = new ObjectMessenger(codec);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        private long call(Request request) throws IOException {
+            messenger.sendObject(request, out);
+            return messenger.receiveObject(in).hashCode();
+        }
+    }
+
+    /**
+     * A byte buffer that one stream writes and another reads back, growing as needed.
+     */
+    private static final class MemoryPipe {
+        private byte[] buf = new byte[4096];
+        private int written;
+        private int read;
+
+        private void clear() {
+            written = 0;
+            read = 0;
+        }
+
+        private OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (written + len > buf.length) {
+                        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, written + len));
+                    }
+                    System.arraycopy(b, off, buf, written, len);
+                    written += len;
+                }
+            };
+        }
+
+        private InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return read < written ? buf[read++] & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (read == written) {
+                        return -1;
+                    }
+                    int n = Math.min(len, written - read);
+                    System.arraycopy(buf, read, b, off, n);
+                    read += n;
+                    return n;
+                }
+            };
+        }
+    }
+
+    /**
+     * Picks a key index for a call, spreading the calls of every thread over all keys.
+     */
+    private static int pick(int thread, long i, int keys) {
+        long h = (i * 31 + thread) * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(h ^ (h >>> 29), keys);
+    }
+
+    private static String[] keyNames(String prefix, int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = prefix + i;
+        }
+        return names;
+    }
+
+    private static int[] parseInts(String value) {
+        return Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args The suites to run followed by optional {@code --name value} options.
+     * @throws Exception If a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        Benchmarks b = new Benchmarks();
+        List<String> suites = new ArrayList<>();
+        long warmup = 2_000;
+        long time = 5_000;
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                suites.add(args[i]);
+                continue;
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--threads" -> b.threadCounts = parseInts(value);
+                case "--keys" -> b.keyCounts = parseInts(value);
+                case "--warmup" -> warmup = (long) (Double.parseDouble(value) * 1000);
+                case "--time" -> time = (long) (Double.parseDouble(value) * 1000);
+                case "--snapshot-keys" -> b.snapshotKeys = Integer.parseInt(value);
+                case "--port" -> b.port = Integer.parseInt(value);
+                case "--mode" -> b.mode = ServerConfig.Mode.valueOf(value.toUpperCase());
+                default -> throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        b.harness = new Harness(warmup, time);
+        if (suites.isEmpty()) {
+            suites = List.of("store", "protocol", "snapshot", "loopback");
+        }
+        Harness.printHeader();
+        for (String suite : suites) {
+            switch (suite) {
+                case "store" -> b.store();
+                case "protocol" -> b.protocol();
+                case "snapshot" -> b.snapshot();
+                case "loopback" -> b.loopback();
+                default -> throw new IllegalArgumentException("Unknown suite " + suite);
+            }
+        }
+        System.out.println("(sink " + (b.harness.sink() & 1) + ")");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,283 @@
+package bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Runs microbenchmarks and reports throughput, latency percentiles and
+ * allocation.
+ * <p>
+ * A benchmark is an operation run in a loop by one or more threads, first for
+ * a warmup period whose results are thrown away, then for a measured period.
+ * Every sixteenth call is timed on its own to sample latency without timing
+ * every call, as the clock would then dominate short operations. Allocation is
+ * read from each thread's allocated-bytes counter, the figure the GC profiler
+ * of JMH reports, and garbage collections are counted across the JVM.
+ * <p>
+ * Each operation returns a value that is folded into a result the JIT cannot
+ * prove unused, so it cannot optimise the work away.
+ */
+public final class Harness {
+    /**
+     * One in how many calls is timed on its own, minus one.
+     */
+    private static final long SAMPLE_MASK = 15;
+    /**
+     * The most latency samples kept per thread.
+     */
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private volatile boolean running;
+    private volatile long sink;
+
+    /**
+     * A benchmarked operation.
+     */
+    @FunctionalInterface
+    public interface Op {
+        /**
+         * Runs the operation once.
+         *
+         * @param thread The index of the calling thread, from 0.
+         * @param i The number of calls this thread has made before.
+         * @return Any value derived from the result, so the work is not optimised away.
+         * @throws Exception If the operation fails, which ends the benchmark.
+         */
+        long run(int thread, long i) throws Exception;
+    }
+
+    /**
+     * Constructs a harness.
+     *
+     * @param warmupMillis How long to run each benchmark before measuring.
+     * @param measureMillis How long to measure each benchmark.
+     */
+    public Harness(long warmupMillis, long measureMillis) {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+    }
+
+    /**
+     * Prints the header of the report lines.
+     */
+    public static void printHeader() {
+        System.out.printf("%-36s %7s %14s %10s %10s %10s %10s %10s %8s%n",
+                "benchmark", "threads", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "alloc B/op", "alloc MB/s", "gc");
+    }
+
+    /**
+     * Runs an operation in a loop on the given number of threads and prints a report line.
+     *
+     * @param name The name of the benchmark.
+     * @param threads The number of threads.
+     * @param op The operation.
+     */
+    public void run(String name, int threads, Op op) {
+        measure(threads, op, warmupMillis);
+        Worker[] workers = measure(threads, op, measureMillis);
+        long ops = 0;
+        long allocated = 0;
+        long nanos = 0;
+        List<long[]> samples = new ArrayList<>();
+        for (Worker w : workers) {
+            ops += w.ops;
+            allocated += w.allocated;
+            nanos = Math.max(nanos, w.nanos);
+            samples.add(Arrays.copyOf(w.samples, w.sampled));
+        }
+        long[] sorted = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        double seconds = nanos / 1e9;
+        System.out.printf("%-36s %7d %,14.0f %10d %10d %10d %10.1f %10.1f %8s%n",
+                name, threads, ops / seconds,
+                percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 99.9),
+                ops > 0 ? (double) allocated / ops : 0, allocated / seconds / (1 << 20), workers[0].gc);
+    }
+
+    /**
+     * Runs an operation a fixed number of times on the calling thread, timing
+     * every call, and prints a report line. For operations that take long
+     * enough to be measured one at a time, such as saving a large snapshot.
+     * Only the calling thread's allocation is counted, not that of any threads
+     * the operation hands work to.
+     *
+     * @param name The name of the benchmark.
+     * @param warmups The number of calls whose results are thrown away.
+     * @param iterations The number of measured calls.
+     * @param op The operation.
+     */
+    public void runSingleShot(String name, int warmups, int iterations, Op op) {
+        try {
+            for (int i = 0; i < warmups; i++) {
+                sink += op.run(0, i);
+            }
+            long[] times = new long[iterations];
+            long allocated = allocatedBytes();
+            GcCounter gc = new GcCounter();
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                sink += op.run(0, i);
+                times[i] = System.nanoTime() - start;
+            }
+            allocated = allocatedBytes() - allocated;
+            long total = Arrays.stream(times).sum();
+            Arrays.sort(times);
+            System.out.printf("%-36s %7d %14.2f %10s %10s %10s %10s %10.1f %8s%n",
+                    name, 1, iterations / (total / 1e9),
+                    millis(percentile(times, 50)), millis(percentile(times, 99)), millis(times[times.length - 1]),
+                    mebibytes(allocated / iterations), allocated / (total / 1e9) / (1 << 20), gc);
+        } catch (Exception e) {
+            throw new RuntimeException("Benchmark " + name + " failed", e);
+        }
+    }
+
+    private Worker[] measure(int threads, Op op, long millis) {
+        Worker[] workers = new Worker[threads];
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(t, op, start);
+            workers[t].thread.start();
+        }
+        try {
+            running = true;
+            GcCounter gc = new GcCounter();
+            start.await();
+            Thread.sleep(millis);
+            running = false;
+            for (Worker w : workers) {
+                w.thread.join();
+                if (w.failure != null) {
+                    throw new RuntimeException("Benchmark failed", w.failure);
+                }
+            }
+            workers[0].gc = gc.toString();
+        } catch (Exception e) {
+            running = false;
+            throw new RuntimeException(e);
+        }
+        return workers;
+    }
+
+    /**
+     * A thread running the operation until the harness stops it.
+     */
+    private final class Worker implements Runnable {
+        private final int index;
+        private final Op op;
+        private final CyclicBarrier start;
+        private final Thread thread;
+        private long[] samples = new long[1024];
+        private int sampled;
+        private long ops;
+        private long nanos;
+        private long allocated;
+        private Throwable failure;
+        private String gc;
+
+        private Worker(int index, Op op, CyclicBarrier start) {
+            this.index = index;
+            this.op = op;
+            this.start = start;
+            this.thread = new Thread(this, "bench-" + index);
+        }
+
+        @Override
+        public void run() {
+            long result = 0;
+            long i = 0;
+            try {
+                start.await();
+                long allocatedBefore = allocatedBytes();
+                long begin = System.nanoTime();
+                while (running) {
+                    if ((i & SAMPLE_MASK) == 0 && sampled < MAX_SAMPLES) {
+                        long t = System.nanoTime();
+                        result += op.run(index, i);
+                        record(System.nanoTime() - t);
+                    } else {
+                        result += op.run(index, i);
+                    }
+                    i++;
+                }
+                nanos = System.nanoTime() - begin;
+                allocated = allocatedBytes() - allocatedBefore;
+                ops = i;
+            } catch (Throwable e) {
+                failure = e;
+                running = false;
+            }
+            sink += result;
+        }
+
+        private void record(long nanos) {
+            if (sampled == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampled++] = nanos;
+        }
+    }
+
+    /**
+     * Counts the garbage collections from its creation until it is printed.
+     */
+    private static final class GcCounter {
+        private final long count = collections();
+        private final long time = collectionMillis();
+
+        private static long collections() {
+            long n = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                n += Math.max(0, gc.getCollectionCount());
+            }
+            return n;
+        }
+
+        private static long collectionMillis() {
+            long n = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                n += Math.max(0, gc.getCollectionTime());
+            }
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            return (collections() - count) + "/" + (collectionMillis() - time) + "ms";
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    private static String mebibytes(long bytes) {
+        return String.format("%.1fMB", bytes / (double) (1 << 20));
+    }
+
+    /**
+     * Gets the combined results of all operations run so far, which keeps the
+     * JIT from discarding them.
+     *
+     * @return The combined results.
+     */
+    public long sink() {
+        return sink;
+    }
+}
@@ -1,73 +1,152 @@
 package client;
 
 import utils.ObjectMessenger;
+import protocol.Codec;
 import protocol.Request;
 import protocol.Response;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents a client that communicates with a server using sockets.
+ * <p>
+ * Requests are pipelined: many can be in flight on the connection at once and
+ * the server answers them in order, so each response completes the oldest
+ * outstanding request. The number of requests in flight is bounded by a window.
  */
 public class Client {
+    /**
+     * The default maximum number of requests in flight.
+     */
+    public static final int DEFAULT_WINDOW = 1024;
+
     private Socket client;
-    private Semaphore semaphore;
+    private Semaphore window;
+    private final Queue<CompletableFuture<Response>> inFlight = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     private ObjectMessenger messenger;
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
+    private DataInputStream dataInputStream;
+    private DataOutputStream dataOutputStream;
 
     /**
      * Constructs a client with the given socket.
      *
      * @param client The socket representing the client connection.
+     * @param codec The codec for requests and responses, which must match the server's.
+     */
+    public Client(Socket client, Codec codec) {
+        this(client, codec, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructs a client with the given socket and pipelining window.
+     *
+     * @param client The socket representing the client connection.
+     * @param codec The codec for requests and responses, which must match the server's.
+     * @param window The maximum number of requests in flight.
      */
-    public Client(Socket client) {
+    public Client(Socket client, Codec codec, int window) {
         try {
             this.client = client;
-            messenger = new ObjectMessenger();
-            objectOutputStream = new ObjectOutputStream(client.getOutputStream());
-            objectInputStream = new ObjectInputStream(client.getInputStream());
-            semaphore = new Semaphore(1);
+            client.setTcpNoDelay(true);
+            messenger = new ObjectMessenger(codec);
+            dataOutputStream = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            dataInputStream = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            this.window = new Semaphore(window);
         } catch (Exception e) {
-            close();
+            closeResources();
+        }
+    }
+
+    /**
+     * Sends a request and flushes it.
+     *
+     * @param request The request to send.
+     * @return A future completed with the response.
+     * @throws IOException If the request cannot be written.
+     * @throws InterruptedException If interrupted while waiting for room in the window.
+     */
+    public CompletableFuture<Response> send(Request request) throws IOException, InterruptedException {
+        return sendAll(List.of(request)).getFirst();
+    }
+
+    /**
+     * Sends requests back-to-back and flushes them together. The stream is only
+     * flushed early when the window is full, so the server can answer and free it.
+     *
+     * @param requests The requests to send, in order.
+     * @return Futures completed with the responses, in the same order.
+     * @throws IOException If a request cannot be written.
+     * @throws InterruptedException If interrupted while waiting for room in the window.
+     */
+    public List<CompletableFuture<Response>> sendAll(List<Request> requests) throws IOException, InterruptedException {
+        List<CompletableFuture<Response>> futures = new ArrayList<>(requests.size());
+        sendLock.lock();
+        try {
+            for (Request request : requests) {
+                if (!window.tryAcquire()) {
+                    dataOutputStream.flush();
+                    window.acquire();
+                }
+                CompletableFuture<Response> future = new CompletableFuture<>();
+                inFlight.add(future);
+                futures.add(future);
+                messenger.writeObject(request, dataOutputStream);
+            }
+            dataOutputStream.flush();
+        } finally {
+            sendLock.unlock();
         }
+        return futures;
     }
 
     /**
      * Handles user commands and sends them to the server.
+     * Several commands on one line separated by ';' are pipelined.
      */
     public void commandHandler() {
         try {
             Scanner scanner = new Scanner(System.in);
-            while (client.isConnected()) {
-                semaphore.acquire();
+            while (!client.isClosed()) {
                 System.out.print(">>> ");
-                String command = scanner.nextLine();
-                Request request = new Request(command);
-                messenger.sendObject(request, objectOutputStream);
+                List<Request> requests = new ArrayList<>();
+                for (String command : scanner.nextLine().split(";")) {
+                    if (!command.isBlank())
+                        requests.add(new Request(command.trim()));
+                }
+                for (CompletableFuture<Response> future : sendAll(requests)) {
+                    System.out.println(future.join());
+                }
             }
-        } catch (InterruptedException | IOException e) {
+        } catch (InterruptedException | IOException | RuntimeException e) {
             close();
         }
     }
 
     /**
-     * Handles responses from the server.
+     * Handles responses from the server, completing the oldest request in flight with each one.
      */
     public void respHandler(){
         new Thread(() -> {
-            while (client.isConnected()) {
+            while (!client.isClosed()) {
                 try {
-                    Response resp = (Response) messenger.receiveObject(objectInputStream);
-                    if (resp != null) {
-                        System.out.println(resp);
-                        semaphore.release();
+                    Response resp = (Response) messenger.receiveObject(dataInputStream);
+                    CompletableFuture<Response> future = inFlight.poll();
+                    window.release();
+                    if (future != null) {
+                        future.complete(resp);
                     }
-                } catch (IOException | ClassNotFoundException e) {
+                } catch (IOException e) {
                     close();
                 }
             }
@@ -76,28 +155,48 @@ public class Client {
 
     /**
      * Closes the client and releases resources.
+     * Requests still in flight fail.
      */
-    private void close() {
+    public void close() {
+        closeResources();
+    }
+
+    /**
+     * Closes the streams and the socket and fails the requests still in flight.
+     * Private so the constructor can clean up after a failure with it.
+     */
+    private void closeResources() {
         try {
-            if(objectInputStream != null)
-                objectInputStream.close();
-            if(objectOutputStream != null)
-                objectOutputStream.close();
-            if(semaphore != null)
-                semaphore.release();
+            if(dataInputStream != null)
+                dataInputStream.close();
+            if(dataOutputStream != null)
+                dataOutputStream.close();
             if (client != null)
                 client.close();
         } catch (IOException e) {
             throw new RuntimeException("Failed to close resources", e);
+        } finally {
+            if (window != null)
+                window.release();
+            CompletableFuture<Response> future;
+            while ((future = inFlight.poll()) != null) {
+                future.completeExceptionally(new IOException("Connection closed"));
+            }
         }
     }
 
+    /**
+     * Connects to a server and starts the interactive prompt.
+     *
+     * @param args The host and port, optionally followed by {@code --codec serial|binary}.
+     */
     public static void main(String[] args) {
         String host = args[0];
         int port = Integer.parseInt(args[1]);
+        Codec codec = Codec.forName(args.length > 3 && args[2].equals("--codec") ? args[3] : "serial");
         try {
             Socket socket = new Socket(host, port);
-            Client client = new Client(socket);
+            Client client = new Client(socket, codec);
             client.respHandler();
             client.commandHandler();
         }catch (IOException e){
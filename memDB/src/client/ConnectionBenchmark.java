@@ -0,0 +1,160 @@
+package client;
+
+import protocol.Codec;
+import protocol.Request;
+import protocol.Response;
+import utils.ObjectMessenger;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a server copes with many concurrent connections.
+ * <p>
+ * Every connection is opened and held from its own virtual thread. Once all
+ * of them are open, each sends a number of GET requests one after another
+ * while the others stay connected, and the benchmark reports connect time,
+ * throughput and round-trip latency percentiles.
+ */
+public class ConnectionBenchmark {
+    /**
+     * The most connection attempts in flight at once, so the benchmark measures
+     * how many connections the server holds rather than its accept backlog.
+     */
+    private static final int MAX_CONNECTING = 256;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int requests;
+    private final Codec codec;
+
+    /**
+     * Constructs a benchmark against the given server.
+     *
+     * @param host The server host.
+     * @param port The server port.
+     * @param connections The number of concurrent connections to hold.
+     * @param requests The number of round-trips each connection makes.
+     * @param codec The codec for requests and responses, which must match the server's.
+     */
+    public ConnectionBenchmark(String host, int port, int connections, int requests, Codec codec) {
+        this.codec = codec;
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.requests = requests;
+    }
+
+    /**
+     * Runs the benchmark and prints its report.
+     *
+     * @throws InterruptedException If interrupted while waiting for the connections.
+     */
+    public void run() throws InterruptedException {
+        long[][] latencies = new long[connections][];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+        List<Thread> threads = new ArrayList<>(connections);
+        Semaphore connecting = new Semaphore(MAX_CONNECTING);
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            int id = i;
+            threads.add(Thread.ofVirtual().start(() -> {
+                boolean open = false;
+                try (Socket socket = connect(connecting)) {
+                    ObjectMessenger messenger = new ObjectMessenger(codec);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    open = true;
+                    connected.countDown();
+                    go.await();
+                    long[] samples = new long[requests];
+                    Request request = new Request("GET key" + id);
+                    for (int r = 0; r < requests; r++) {
+                        long start = System.nanoTime();
+                        messenger.sendObject(request, out);
+                        Response resp = (Response) messenger.receiveObject(in);
+                        samples[r] = System.nanoTime() - start;
+                        if (resp == null) {
+                            throw new IOException("No response");
+                        }
+                    }
+                    latencies[id] = samples;
+                    done.countDown();
+                    done.await();
+                } catch (IOException | InterruptedException e) {
+                    failed.incrementAndGet();
+                    if (!open)
+                        connected.countDown();
+                    if (latencies[id] == null)
+                        done.countDown();
+                }
+            }));
+        }
+        connected.await();
+        long connectNanos = System.nanoTime() - connectStart;
+
+        long runStart = System.nanoTime();
+        go.countDown();
+        done.await();
+        long runNanos = System.nanoTime() - runStart;
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(latencies, failed.get(), connectNanos, runNanos);
+    }
+
+    private Socket connect(Semaphore connecting) throws IOException, InterruptedException {
+        connecting.acquire();
+        try {
+            return new Socket(host, port);
+        } finally {
+            connecting.release();
+        }
+    }
+
+    private void report(long[][] latencies, int failed, long connectNanos, long runNanos) {
+        long[] all = Arrays.stream(latencies)
+                .filter(l -> l != null)
+                .flatMapToLong(Arrays::stream)
+                .sorted()
+                .toArray();
+        System.out.printf("connections : %d (%d failed)%n", connections - failed, failed);
+        System.out.printf("connect     : %.1f ms%n", connectNanos / 1e6);
+        System.out.printf("requests    : %d in %.1f ms (%.0f ops/sec)%n", all.length, runNanos / 1e6, all.length / (runNanos / 1e9));
+        if (all.length > 0) {
+            System.out.printf("latency us  : p50=%.0f p99=%.0f p99.9=%.0f max=%.0f%n",
+                    percentile(all, 50) / 1e3, percentile(all, 99) / 1e3, percentile(all, 99.9) / 1e3, all[all.length - 1] / 1e3);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The host, port, number of connections, and optionally the round-trips per connection and the codec name.
+     * @throws InterruptedException If interrupted while running.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = Integer.parseInt(args[2]);
+        int requests = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        Codec codec = Codec.forName(args.length > 4 ? args[4] : "serial");
+        new ConnectionBenchmark(host, port, connections, requests, codec).run();
+    }
+}
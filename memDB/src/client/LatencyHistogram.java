@@ -0,0 +1,118 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, so any value
+ * from a nanosecond to hours is kept to within 1.6% with a fixed few
+ * kilobytes of counters.
+ * <p>
+ * Values below 128 have a bucket each. Above that, every power of two is split
+ * into 64 equal buckets. Recording is thread-safe and never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexFor(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the largest value counted in a bucket.
+     */
+    private static long highestIn(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value, negative values are counted as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexFor(value));
+        total.incrementAndGet();
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0)
+                counts.addAndGet(i, c);
+        }
+        total.addAndGet(other.total.get());
+        long m;
+        long value = other.max.get();
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return The count.
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return The largest value, or 0 if none was recorded.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value below or at which the given percentage of the recorded
+     * values fall, rounded up to the end of its bucket.
+     *
+     * @param percentile The percentage, from 0 to 100.
+     * @return The value, or 0 if none was recorded.
+     */
+    public long percentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,285 @@
+package client;
+
+import protocol.Codec;
+import protocol.Command;
+import protocol.Request;
+import protocol.Response;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of SET and GET requests at a server and reports throughput and
+ * latency, in the manner of memtier or redis-benchmark.
+ * <p>
+ * Every connection has its own sender thread and pipelines up to a window of
+ * requests through a {@link Client}. With a target rate the load is open-loop:
+ * each connection sends on a fixed schedule whether or not earlier requests
+ * have been answered, and a request's latency is measured from when the
+ * schedule says it should have been sent. A server that stalls therefore shows
+ * the full delay it caused to every request queued behind the stall, instead of
+ * the one slow sample a closed loop would record while it stops sending, which
+ * is the correction for coordinated omission. Without a rate each connection
+ * sends as fast as its window allows and latency is measured from the send.
+ * <p>
+ * Keys are drawn from a fixed key space, uniformly or by a zipfian
+ * distribution in which a few keys are much hotter than the rest.
+ */
+public class LoadGenerator {
+    /**
+     * The skew of the zipfian distribution, as used by YCSB.
+     */
+    private static final double ZIPF_THETA = 0.99;
+
+    private final String host;
+    private final int port;
+    private Codec codec = Codec.forName("serial");
+    private int connections = 50;
+    private int pipeline = 1;
+    private long rate;
+    private long durationMillis = 10_000;
+    private int keys = 100_000;
+    private boolean zipfian;
+    private int valueSize = 32;
+    private int setRatio = 1;
+    private int getRatio = 10;
+    private boolean prefill;
+
+    private final LatencyHistogram sets = new LatencyHistogram();
+    private final LatencyHistogram gets = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private String value;
+    private Zipf zipf;
+
+    /**
+     * Constructs a load generator against the given server with the default options.
+     *
+     * @param host The server host.
+     * @param port The server port.
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Draws zipfian ranks from 0 to n - 1, rank 0 being the most frequent, with
+     * the method of Gray et al. used by YCSB.
+     */
+    private static final class Zipf {
+        private final int n;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+        private final double half;
+
+        private Zipf(int n, double theta) {
+            this.n = n;
+            double zeta2 = zeta(2, theta);
+            zetan = zeta(n, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+            half = 1 + Math.pow(0.5, theta);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        private int next(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1)
+                return 0;
+            if (uz < half)
+                return 1;
+            return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /**
+     * Runs the load and prints the report.
+     *
+     * @throws IOException If a connection cannot be opened.
+     * @throws InterruptedException If interrupted while waiting for the load to finish.
+     */
+    public void run() throws IOException, InterruptedException {
+        char[] chars = new char[valueSize];
+        Arrays.fill(chars, 'x');
+        value = new String(chars);
+        if (zipfian)
+            zipf = new Zipf(keys, ZIPF_THETA);
+
+        List<Client> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Client client = new Client(new Socket(host, port), codec, pipeline);
+            client.respHandler();
+            clients.add(client);
+        }
+        if (prefill)
+            prefill(clients.getFirst());
+
+        long start = System.nanoTime();
+        long end = start + durationMillis * 1_000_000;
+        List<Thread> senders = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Client client = clients.get(i);
+            long seed = i;
+            senders.add(Thread.ofPlatform().name("load-" + i).start(() -> send(client, seed, start, end)));
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        for (Client client : clients) {
+            client.send(new Request(Command.PING, null, List.of())).join();
+            client.close();
+        }
+        long nanos = System.nanoTime() - start;
+        report(nanos);
+    }
+
+    /**
+     * Sends requests from one connection until the end time.
+     */
+    private void send(Client client, long seed, long start, long end) {
+        SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + System.nanoTime());
+        long interval = rate > 0 ? Math.max(1, connections * 1_000_000_000L / rate) : 0;
+        long next = start + (interval > 0 ? random.nextLong(interval) : 0);
+        int cycle = setRatio + getRatio;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    if (next >= end)
+                        return;
+                    if (next > now) {
+                        LockSupport.parkNanos(next - now);
+                    }
+                } else if (now >= end) {
+                    return;
+                }
+                long intended = interval > 0 ? next : System.nanoTime();
+                next += interval;
+                String key = "key:" + nextKey(random);
+                boolean set = random.nextInt(cycle) < setRatio;
+                Request request = set
+                        ? new Request(Command.SET, key, List.of(value))
+                        : new Request(Command.GET, key, List.of());
+                CompletableFuture<Response> future = client.send(request);
+                LatencyHistogram histogram = set ? sets : gets;
+                future.whenComplete((response, e) -> {
+                    histogram.record(System.nanoTime() - intended);
+                    if (e != null || (!response.isSuccess() && !"null".equals(response.getResponse())))
+                        errors.increment();
+                    else if (!set && !response.isSuccess())
+                        misses.increment();
+                });
+            }
+        } catch (IOException | InterruptedException e) {
+            errors.increment();
+        }
+    }
+
+    private int nextKey(SplittableRandom random) {
+        if (zipf == null)
+            return random.nextInt(keys);
+        long h = (zipf.next(random) + 1) * 0x9E3779B97F4A7C15L;
+        return (int) Long.remainderUnsigned(h ^ (h >>> 31), keys);
+    }
+
+    /**
+     * Sets every key of the key space, so GETs find values.
+     */
+    private void prefill(Client client) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        List<Request> batch = new ArrayList<>(1000);
+        CompletableFuture<Response> last = null;
+        for (int i = 0; i < keys; i++) {
+            batch.add(new Request(Command.SET, "key:" + i, List.of(value)));
+            if (batch.size() == 1000 || i == keys - 1) {
+                last = client.sendAll(batch).getLast();
+                batch.clear();
+            }
+        }
+        if (last != null)
+            last.join();
+        System.out.printf("prefilled %d keys in %.1f s%n", keys, (System.nanoTime() - start) / 1e9);
+    }
+
+    private void report(long nanos) {
+        LatencyHistogram all = new LatencyHistogram();
+        all.add(sets);
+        all.add(gets);
+        double seconds = nanos / 1e9;
+        System.out.printf("connections %d, pipeline %d, %s keys %d, value %d bytes, ratio %d:%d, %s%n",
+                connections, pipeline, zipf != null ? "zipfian" : "uniform", keys, valueSize, setRatio, getRatio,
+                rate > 0 ? "open loop at " + rate + " ops/s" : "closed loop");
+        System.out.printf("%-6s %12s %12s %10s %10s %10s %10s %10s%n", "type", "ops", "ops/sec", "p50 us", "p99 us", "p99.9 us", "max us", "");
+        line("SET", sets, seconds, "");
+        line("GET", gets, seconds, "misses " + misses.sum());
+        line("TOTAL", all, seconds, "errors " + errors.sum());
+        long sent = all.count();
+        if (rate > 0 && sent < rate * durationMillis / 1000 * 95 / 100) {
+            System.out.printf("sent %d requests, short of the %d scheduled: the clients could not keep up%n",
+                    sent, rate * durationMillis / 1000);
+        }
+    }
+
+    private static void line(String type, LatencyHistogram h, double seconds, String extra) {
+        System.out.printf("%-6s %12d %12.0f %10.1f %10.1f %10.1f %10.1f %s%n",
+                type, h.count(), h.count() / seconds,
+                h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3, extra);
+    }
+
+    /**
+     * Runs the load generator.
+     *
+     * @param args The host and port followed by optional {@code --name value} pairs:
+     *             {@code --connections n}, {@code --pipeline n}, {@code --rate ops/sec},
+     *             {@code --duration seconds}, {@code --keys n},
+     *             {@code --distribution uniform|zipfian}, {@code --value-size bytes},
+     *             {@code --ratio sets:gets}, {@code --prefill yes|no} and
+     *             {@code --codec serial|binary}.
+     * @throws Exception If the load cannot be run.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || args.length % 2 != 0) {
+            throw new IllegalArgumentException("Usage: LoadGenerator <host> <port> [--connections n] [--pipeline n] [--rate ops/sec] [--duration seconds] [--keys n] [--distribution uniform|zipfian] [--value-size bytes] [--ratio sets:gets] [--prefill yes|no] [--codec serial|binary]");
+        }
+        LoadGenerator load = new LoadGenerator(args[0], Integer.parseInt(args[1]));
+        for (int i = 2; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--connections" -> load.connections = Integer.parseInt(value);
+                case "--pipeline" -> load.pipeline = Integer.parseInt(value);
+                case "--rate" -> load.rate = Long.parseLong(value);
+                case "--duration" -> load.durationMillis = (long) (Double.parseDouble(value) * 1000);
+                case "--keys" -> load.keys = Integer.parseInt(value);
+                case "--distribution" -> load.zipfian = value.equalsIgnoreCase("zipfian");
+                case "--value-size" -> load.valueSize = Integer.parseInt(value);
+                case "--ratio" -> {
+                    String[] parts = value.split(":");
+                    load.setRatio = Integer.parseInt(parts[0]);
+                    load.getRatio = Integer.parseInt(parts[1]);
+                }
+                case "--prefill" -> load.prefill = value.equalsIgnoreCase("yes");
+                case "--codec" -> load.codec = Codec.forName(value);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        load.run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,133 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact binary encoding of requests and responses.
+ * <p>
+ * A request is a type byte, the command opcode, the key and the arguments. A
+ * response is a type byte, a success byte and the response string, followed
+ * for multi-key responses by a count and the values. Strings are
+ * a variable-length UTF-8 length followed by the raw bytes, so a small GET or
+ * SET costs a few bytes on top of its key and value. The opcode is the
+ * command's ordinal plus one, zero meaning an unrecognised command, so both
+ * ends must be built from the same {@link Command} enum.
+ */
+public class BinaryCodec implements Codec {
+    private static final int REQUEST = 1;
+    private static final int RESPONSE = 2;
+    private static final int MULTI_RESPONSE = 3;
+    private static final Command[] COMMANDS = Command.values();
+
+    @Override
+    public void encode(Object message, FrameBuffer out) throws IOException {
+        if (message instanceof Request request) {
+            out.writeByte(REQUEST);
+            Command command = request.getCommand();
+            out.writeByte(command == null ? 0 : command.ordinal() + 1);
+            out.writeString(request.getKey());
+            List<String> args = request.getArgs();
+            out.writeVarInt(args.size());
+            for (String arg : args) {
+                out.writeString(arg);
+            }
+        } else if (message instanceof Response response) {
+            List<String> values = response.getValues();
+            out.writeByte(values == null ? RESPONSE : MULTI_RESPONSE);
+            out.writeByte(response.isSuccess() ? 1 : 0);
+            out.writeString(response.getResponse());
+            if (values != null) {
+                out.writeVarInt(values.size());
+                for (String value : values) {
+                    out.writeString(value);
+                }
+            }
+        } else {
+            throw new IOException("Cannot encode " + message);
+        }
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        Reader in = new Reader(data, offset, offset + length);
+        int type = in.readByte();
+        if (type == REQUEST) {
+            int opcode = in.readByte();
+            if (opcode > COMMANDS.length) {
+                throw new IOException("Unknown opcode " + opcode);
+            }
+            Command command = opcode == 0 ? null : COMMANDS[opcode - 1];
+            String key = in.readString();
+            int argc = in.readVarInt();
+            List<String> args = new ArrayList<>(argc);
+            for (int i = 0; i < argc; i++) {
+                args.add(in.readString());
+            }
+            return new Request(command, key, args);
+        } else if (type == RESPONSE) {
+            boolean success = in.readByte() != 0;
+            return new Response(success, in.readString());
+        } else if (type == MULTI_RESPONSE) {
+            boolean success = in.readByte() != 0;
+            String response = in.readString();
+            int count = in.readVarInt();
+            List<String> values = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                values.add(in.readString());
+            }
+            return new Response(success, response, values);
+        }
+        throw new IOException("Unknown message type " + type);
+    }
+
+    /**
+     * A cursor over a frame payload.
+     */
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] data, int pos, int end) {
+            this.data = data;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Truncated frame");
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed length");
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length < 0 || length > end - pos) {
+                throw new IOException("Truncated frame");
+            }
+            String s = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
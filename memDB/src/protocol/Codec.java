@@ -0,0 +1,44 @@
+package protocol;
+
+import java.io.IOException;
+
+/**
+ * Converts requests and responses to and from the payload of a frame.
+ * Framing itself, the length prefix, is handled by the messenger.
+ */
+public interface Codec {
+    /**
+     * Encodes a request or response into the buffer.
+     *
+     * @param message The message to encode.
+     * @param out The buffer to append the payload to.
+     * @throws IOException If the message cannot be encoded.
+     */
+    void encode(Object message, FrameBuffer out) throws IOException;
+
+    /**
+     * Decodes a request or response from a frame payload.
+     *
+     * @param data The array holding the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @return The decoded message.
+     * @throws IOException If the payload is malformed.
+     */
+    Object decode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Looks up a codec by the name used on the command line.
+     *
+     * @param name Either "serial" or "binary".
+     * @return The codec.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    static Codec forName(String name) {
+        return switch (name.toLowerCase()) {
+            case "serial" -> new SerialCodec();
+            case "binary" -> new BinaryCodec();
+            default -> throw new IllegalArgumentException("Unknown codec " + name);
+        };
+    }
+}
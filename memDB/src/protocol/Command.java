@@ -2,6 +2,9 @@ package protocol;
 
 /**
  * Enum representing the different commands supported by the server.
+ * <p>
+ * New commands go at the end: the binary codec and the command log identify a
+ * command by its position.
  */
 public enum Command {
     ECHO,       // Echo the message back
@@ -16,6 +19,118 @@ public enum Command {
     RPUSH,      // Push a value to the end of a list
     POP,        // Pop a value from the end of a list
     LLEN,       // Get the length of a list
+    EXPIRE,     // Set a time to live on a key
+    TTL,        // Get the remaining time to live of a key
+    PERSIST,    // Remove the time to live from a key
     SAVE,       // Save the data store to a file
-    LOAD        // Load the data store from a file
+    LOAD,       // Load the data store from a file
+    MGET,       // Get the values of several keys
+    MSET,       // Set several key-value pairs atomically
+    MDEL,       // Delete several keys
+    EXPIREAT,   // Set an absolute expiry time on a key
+    BGREWRITEAOF, // Compact the command log in the background
+    BGSAVE,     // Save a snapshot of the data store in the background
+    LASTSAVE,   // Get the time of the last successful save
+    MEMORY,     // Get memory usage and eviction statistics
+    INCRBY,     // Add an integer to the value associated with a key
+    DECRBY,     // Subtract an integer from the value associated with a key
+    INCRBYFLOAT, // Add a decimal number to the value associated with a key
+    LRANGE,     // Get a range of elements of a list
+    LINDEX,     // Get the element at an index of a list
+    LSET,       // Replace the element at an index of a list
+    LTRIM,      // Keep only a range of elements of a list
+    LPOP,       // Pop a value from the beginning of a list
+    RPOP,       // Pop a value from the end of a list
+    BLPOP,      // Pop a value from the beginning of a list, waiting for one if it is empty
+    BRPOP,      // Pop a value from the end of a list, waiting for one if it is empty
+    INFO,       // Get statistics about the server, its clients, memory, keyspace and commands
+    SLOWLOG,    // Get, count or reset the log of slow commands
+    SCAN,       // Walk the keys in batches with a cursor
+    HSET,       // Set fields of a hash
+    HGET,       // Get the value of a field of a hash
+    HMGET,      // Get the values of several fields of a hash
+    HDEL,       // Remove fields from a hash
+    HINCRBY,    // Add an integer to the value of a field of a hash
+    HGETALL,    // Get every field and value of a hash
+    HLEN,       // Get the number of fields of a hash
+    ZADD,       // Set the scores of members of a sorted set
+    ZINCRBY,    // Add to the score of a member of a sorted set
+    ZSCORE,     // Get the score of a member of a sorted set
+    ZRANK,      // Get the rank of a member of a sorted set
+    ZRANGE,     // Get the members between two ranks of a sorted set
+    ZRANGEBYSCORE, // Get the members within a range of scores of a sorted set
+    ZREM,       // Remove members from a sorted set
+    SADD,       // Add members to a set
+    SREM,       // Remove members from a set
+    SISMEMBER,  // Check whether a member is in a set
+    SCARD,      // Get the number of members of a set
+    SMEMBERS,   // Get the members of a set
+    SINTER,     // Get the members common to several sets
+    SUNION,     // Get the members in any of several sets
+    SDIFF;      // Get the members of a set that are in none of several others
+
+    /**
+     * The commands by the hash of their name, with open addressing. Sized to at
+     * least twice the number of commands so probe sequences stay short.
+     */
+    private static final Command[] TABLE;
+    private static final int MASK;
+
+    static {
+        Command[] commands = values();
+        int size = Integer.highestOneBit(commands.length * 4 - 1);
+        TABLE = new Command[size];
+        MASK = size - 1;
+        for (Command c : commands) {
+            int slot = hash(c.name(), 0, c.name().length()) & MASK;
+            while (TABLE[slot] != null) {
+                slot = (slot + 1) & MASK;
+            }
+            TABLE[slot] = c;
+        }
+    }
+
+    /**
+     * Upper-cases an ASCII letter, leaving every other character as it is.
+     */
+    private static char upper(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c;
+    }
+
+    private static int hash(CharSequence text, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + upper(text.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the command with the given name, ignoring the case of ASCII letters,
+     * without allocating.
+     *
+     * @param text The text holding the name.
+     * @param start The index of the first character of the name.
+     * @param end The index after the last character of the name.
+     * @return The command, or null if there is none with that name.
+     */
+    public static Command lookup(CharSequence text, int start, int end) {
+        int length = end - start;
+        for (int slot = hash(text, start, end) & MASK; TABLE[slot] != null; slot = (slot + 1) & MASK) {
+            String name = TABLE[slot].name();
+            if (name.length() == length && matches(name, text, start)) {
+                return TABLE[slot];
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String name, CharSequence text, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (upper(text.charAt(start + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
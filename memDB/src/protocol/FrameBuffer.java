@@ -0,0 +1,200 @@
+package protocol;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte array that codecs encode frame payloads into.
+ * <p>
+ * The buffer is reset and reused for every message, so encoding does not
+ * allocate once it has grown to the size of the largest message.
+ */
+public class FrameBuffer {
+    private byte[] buf;
+    private int count;
+    private final OutputStream stream = new OutputStream() {
+        @Override
+        public void write(int b) {
+            writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            writeBytes(b, off, len);
+        }
+    };
+
+    /**
+     * Constructs an empty buffer.
+     */
+    public FrameBuffer() {
+        buf = new byte[256];
+    }
+
+    /**
+     * Discards the buffered bytes so the buffer can be reused.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Gets the number of buffered bytes.
+     *
+     * @return The number of bytes.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Gets the backing array. Only the first {@link #size()} bytes are valid.
+     *
+     * @return The backing array.
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Gets an output stream that appends to this buffer.
+     *
+     * @return The output stream.
+     */
+    public OutputStream asOutputStream() {
+        return stream;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+        }
+    }
+
+    /**
+     * Appends one byte.
+     *
+     * @param b The byte to append.
+     */
+    public void writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    /**
+     * Appends a range of bytes.
+     *
+     * @param b The source array.
+     * @param off The offset in the source array.
+     * @param len The number of bytes.
+     */
+    public void writeBytes(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Appends a four-byte big-endian integer.
+     *
+     * @param value The value to append.
+     */
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        setInt(count, value);
+        count += 4;
+    }
+
+    /**
+     * Appends an eight-byte big-endian integer.
+     *
+     * @param value The value to append.
+     */
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Overwrites four already written bytes with a big-endian integer, used to
+     * fill in a length prefix once the payload after it is known.
+     *
+     * @param pos The position of the first byte.
+     * @param value The value to write.
+     */
+    public void setInt(int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Appends an unsigned variable-length integer, seven bits per byte.
+     *
+     * @param value The value to append, must not be negative.
+     */
+    public void writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    /**
+     * Appends a string as its UTF-8 length followed by its UTF-8 bytes, or a
+     * zero length for null. Lengths are stored plus one so an empty string and
+     * null stay distinct. Unpaired surrogates are written as '?', matching
+     * {@link String#getBytes(java.nio.charset.Charset)}.
+     *
+     * @param s The string to append, may be null.
+     */
+    public void writeString(String s) {
+        if (s == null) {
+            writeVarInt(0);
+            return;
+        }
+        int length = s.length();
+        int utf8 = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8++;
+            } else if (c < 0x800) {
+                utf8 += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8 += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utf8++;
+            } else {
+                utf8 += 3;
+            }
+        }
+        writeVarInt(utf8 + 1);
+        ensureCapacity(utf8);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xC0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xF0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xE0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
@@ -2,7 +2,6 @@ package protocol;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -13,17 +12,35 @@ public class Request implements Serializable {
     private String key;
     private final List<String> args;
 
+    /**
+     * The tokenizer of each thread, reused for every line it parses.
+     */
+    private static final ThreadLocal<Tokenizer> TOKENIZER = ThreadLocal.withInitial(Tokenizer::new);
+
     /**
      * Constructs a request object from raw data.
      *
      * @param rawData The raw data of the request.
      */
     public Request(String rawData){
-        args = new ArrayList<>();
+        args = new ArrayList<>(4);
         command = null;
         parseData(rawData);
     }
 
+    /**
+     * Constructs a request from already parsed parts.
+     *
+     * @param command The command, or null if it was not recognised.
+     * @param key The key, may be null.
+     * @param args The arguments.
+     */
+    public Request(Command command, String key, List<String> args){
+        this.command = command;
+        this.key = key;
+        this.args = args;
+    }
+
     /**
      * Gets the command of the request.
      *
@@ -52,38 +69,40 @@ public class Request implements Serializable {
     }
 
     /**
-     * Parses the raw data of the request and sets the command, key, and arguments accordingly.
+     * Gets the key followed by the arguments, for commands that take several keys.
      *
-     * @param data The raw data of the request.
+     * @return The keys of the request, empty if it has no key.
      */
-    private void parseData(String data){
-        String[] parts = data.split("\\s+");
-        // command operation eg : delete name, len names
-        if(parts.length == 2){
-            command = parseCommand(parts[0]);
-            key = parts[1];
-        } else if(parts.length >= 3) {
-            command = parseCommand(parts[0]);
-            key = parts[1];
-            args.addAll(Arrays.asList(parts).subList(2, parts.length));
-        }else {
-            command = parseCommand(parts[0]);
-            key = null;
+    public List<String> getKeys() {
+        List<String> keys = new ArrayList<>(args.size() + 1);
+        if (key != null) {
+            keys.add(key);
+            keys.addAll(args);
         }
+        return keys;
     }
 
     /**
-     * Parses a command string and returns the corresponding Command enum value.
-     * If the command string is not a valid command, returns null.
+     * Parses the raw data of the request and sets the command, key, and arguments accordingly.
+     * A line with unbalanced quotes is left without a command, like an unknown one.
      *
-     * @param commandString The command string to parse.
-     * @return The Command enum value corresponding to the command string, or null if the command is invalid.
+     * @param data The raw data of the request.
      */
-    private Command parseCommand(String commandString) {
+    private void parseData(String data){
+        Tokenizer tokenizer = TOKENIZER.get();
+        int count;
         try {
-            return Command.valueOf(commandString.toUpperCase());
+            count = tokenizer.tokenize(data);
         } catch (IllegalArgumentException e) {
-            return null;
+            return;
+        }
+        // command operation eg : delete name, len names
+        command = tokenizer.command();
+        if(count >= 2){
+            key = tokenizer.token(1);
+        }
+        for (int i = 2; i < count; i++) {
+            args.add(tokenizer.token(i));
         }
     }
 
@@ -1,6 +1,7 @@
 package protocol;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Represents a response from the server.
@@ -8,6 +9,7 @@ import java.io.Serializable;
 public class Response implements Serializable {
     private boolean success;
     private String response;
+    private List<String> values;
 
     /**
      * Constructs a response with the given success status and response message.
@@ -20,6 +22,19 @@ public class Response implements Serializable {
         this.response = response;
     }
 
+    /**
+     * Constructs a response that carries one value per key of a multi-key command.
+     *
+     * @param success Whether the operation was successful.
+     * @param response The response message.
+     * @param values The values, with null for keys that do not exist.
+     */
+    public Response(boolean success, String response, List<String> values) {
+        this.success = success;
+        this.response = response;
+        this.values = values;
+    }
+
     /**
      * Checks if the operation was successful.
      *
@@ -56,6 +71,15 @@ public class Response implements Serializable {
         this.response = response;
     }
 
+    /**
+     * Gets the values of a multi-key response.
+     *
+     * @return The values, with null for keys that do not exist, or null if this is a single-value response.
+     */
+    public List<String> getValues() {
+        return values;
+    }
+
     /**
      * Returns a string representation of the response.
      *
@@ -63,6 +87,8 @@ public class Response implements Serializable {
      */
     @Override
     public String toString() {
+        if (values != null)
+            return "Response [success=" + success + ", response=" + response + ", values=" + values + "]";
         return "Response [success=" + success + ", response=" + response + "]";
     }
 }
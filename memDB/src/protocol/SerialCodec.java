@@ -0,0 +1,28 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encodes each message with Java serialization.
+ * Every payload carries its own stream header and class descriptors.
+ */
+public class SerialCodec implements Codec {
+    @Override
+    public void encode(Object message, FrameBuffer out) throws IOException {
+        try (ObjectOutputStream stream = new ObjectOutputStream(out.asOutputStream())) {
+            stream.writeObject(message);
+        }
+    }
+
+    @Override
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown message class", e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Splits a command line into tokens in a single pass, without regular
+ * expressions and without copying the text.
+ * <p>
+ * Tokens are separated by whitespace. A token that starts with a double quote
+ * runs to the matching double quote and may contain whitespace and the escapes
+ * {@code \"}, {@code \\}, {@code \n}, {@code \r}, {@code \t}, {@code \b},
+ * {@code \a} and {@code \xHH}. A token that starts with a single quote runs to
+ * the matching single quote and only {@code \'} is escaped. A closing quote must
+ * be followed by whitespace or the end of the line. Quotes inside an unquoted
+ * token are ordinary characters.
+ * <p>
+ * Each token is recorded as the offsets of its first and last characters, with
+ * the quotes left out, so a line can be inspected without allocating. Only
+ * {@link #token(int)} creates a String, and unescaping is done only for quoted
+ * tokens that contain a backslash. A tokenizer is reused from line to line and
+ * is not thread-safe.
+ */
+public class Tokenizer {
+    private static final byte PLAIN = 0;
+    private static final byte DOUBLE_QUOTED = 1;
+    private static final byte SINGLE_QUOTED = 2;
+
+    private CharSequence text;
+    private int[] spans = new int[32];
+    private byte[] kinds = new byte[16];
+    private boolean[] escaped = new boolean[16];
+    private int count;
+
+    /**
+     * Splits a line into tokens, replacing those of the previous line.
+     *
+     * @param line The line to split.
+     * @return The number of tokens.
+     * @throws IllegalArgumentException If a quote is not closed, or is closed
+     *                                  and followed by something other than whitespace.
+     */
+    public int tokenize(CharSequence line) {
+        text = line;
+        count = 0;
+        int length = line.length();
+        int i = 0;
+        while (true) {
+            while (i < length && Character.isWhitespace(line.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                return count;
+            }
+            char c = line.charAt(i);
+            if (c == '"' || c == '\'') {
+                int start = ++i;
+                boolean backslash = false;
+                while (i < length && line.charAt(i) != c) {
+                    if (line.charAt(i) == '\\' && i + 1 < length) {
+                        backslash = true;
+                        i++;
+                    }
+                    i++;
+                }
+                if (i == length) {
+                    throw new IllegalArgumentException("Unbalanced quotes");
+                }
+                if (i + 1 < length && !Character.isWhitespace(line.charAt(i + 1))) {
+                    throw new IllegalArgumentException("Closing quote must be followed by a space");
+                }
+                add(start, i, c == '"' ? DOUBLE_QUOTED : SINGLE_QUOTED, backslash);
+                i++;
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i))) {
+                    i++;
+                }
+                add(start, i, PLAIN, false);
+            }
+        }
+    }
+
+    private void add(int start, int end, byte kind, boolean backslash) {
+        if (count == kinds.length) {
+            spans = Arrays.copyOf(spans, spans.length * 2);
+            kinds = Arrays.copyOf(kinds, kinds.length * 2);
+            escaped = Arrays.copyOf(escaped, escaped.length * 2);
+        }
+        spans[2 * count] = start;
+        spans[2 * count + 1] = end;
+        kinds[count] = kind;
+        escaped[count] = backslash;
+        count++;
+    }
+
+    /**
+     * Gets the number of tokens of the last line.
+     *
+     * @return The number of tokens.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Gets the offset of the first character of a token, after any opening quote.
+     *
+     * @param index The index of the token.
+     * @return The offset in the line.
+     */
+    public int start(int index) {
+        return spans[2 * index];
+    }
+
+    /**
+     * Gets the offset after the last character of a token, before any closing quote.
+     *
+     * @param index The index of the token.
+     * @return The offset in the line.
+     */
+    public int end(int index) {
+        return spans[2 * index + 1];
+    }
+
+    /**
+     * Looks up the first token as a command name, ignoring case, without allocating.
+     *
+     * @return The command, or null if the line is empty or names no command.
+     */
+    public Command command() {
+        if (count == 0 || escaped[0]) {
+            return null;
+        }
+        return Command.lookup(text, start(0), end(0));
+    }
+
+    /**
+     * Gets a token as a String, with its escapes resolved.
+     *
+     * @param index The index of the token.
+     * @return The token.
+     */
+    public String token(int index) {
+        int start = start(index);
+        int end = end(index);
+        if (!escaped[index]) {
+            return text.subSequence(start, end).toString();
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        boolean single = kinds[index] == SINGLE_QUOTED;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != '\\' || i + 1 == end) {
+                sb.append(c);
+                continue;
+            }
+            char next = text.charAt(++i);
+            if (single) {
+                if (next != '\'') {
+                    sb.append('\\');
+                }
+                sb.append(next);
+                continue;
+            }
+            switch (next) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'b' -> sb.append('\b');
+                case 'a' -> sb.append('\u0007');
+                case 'x' -> {
+                    int hi = i + 2 < end ? Character.digit(text.charAt(i + 1), 16) : -1;
+                    int lo = hi >= 0 ? Character.digit(text.charAt(i + 2), 16) : -1;
+                    if (lo >= 0) {
+                        sb.append((char) (hi * 16 + lo));
+                        i += 2;
+                    } else {
+                        sb.append('x');
+                    }
+                }
+                default -> sb.append(next);
+            }
+        }
+        return sb.toString();
+    }
+}
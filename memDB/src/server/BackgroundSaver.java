@@ -0,0 +1,183 @@
+package server;
+
+import server.keyvalstore.DataStore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves snapshots of the data store, on demand and automatically.
+ * <p>
+ * Saves run on a single daemon thread while connections keep reading and
+ * writing, because {@link DataStore#forEachAtSnapshot} only copies the values
+ * that are changed while it runs. Once a second the saver checks its rules and
+ * starts a save when any of them is met: at least a number of changes made in
+ * at least a number of seconds since the last successful save.
+ */
+public class BackgroundSaver {
+    /**
+     * The file snapshots are saved to when none is named.
+     */
+    public static final String DEFAULT_FILE = "dump";
+    /**
+     * How long to wait after a failed automatic save before trying again, in milliseconds.
+     */
+    private static final long RETRY_DELAY_MS = 5000;
+
+    /**
+     * Start a save once at least {@code changes} changes were made and at least
+     * {@code seconds} seconds have passed since the last successful save.
+     */
+    public record SaveRule(long seconds, long changes) {
+        /**
+         * Parses rules written as {@code seconds:changes} pairs separated by commas.
+         *
+         * @param value The rules, e.g. {@code 900:1,300:10,60:10000}.
+         * @return The parsed rules.
+         * @throws IllegalArgumentException If a rule is malformed.
+         */
+        public static List<SaveRule> parseAll(String value) {
+            if (value.isBlank()) {
+                return List.of();
+            }
+            return Arrays.stream(value.split(",")).map(rule -> {
+                String[] parts = rule.trim().split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid save rule " + rule);
+                }
+                return new SaveRule(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+            }).toList();
+        }
+    }
+
+    private final DataStore store;
+    private final List<SaveRule> rules;
+    private final ScheduledExecutorService worker;
+    private final AtomicBoolean saving = new AtomicBoolean();
+    private volatile long lastSaveTime = System.currentTimeMillis();
+    private volatile long changesAtLastSave;
+    private volatile long lastFailureTime;
+
+    /**
+     * Constructs a saver for the given store. Nothing is saved automatically
+     * until {@link #start()} is called.
+     *
+     * @param store The data store to save.
+     * @param rules The rules that start automatic saves, may be empty.
+     */
+    public BackgroundSaver(DataStore store, List<SaveRule> rules) {
+        this.store = store;
+        this.rules = rules;
+        changesAtLastSave = store.changeCount();
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "background-save");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts checking the save rules once a second, if there are any.
+     */
+    public void start() {
+        if (!rules.isEmpty()) {
+            worker.scheduleWithFixedDelay(this::checkRules, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private void checkRules() {
+        long now = System.currentTimeMillis();
+        if (now - lastFailureTime < RETRY_DELAY_MS) {
+            return;
+        }
+        long changed = store.changeCount() - changesAtLastSave;
+        for (SaveRule rule : rules) {
+            if (changed >= rule.changes() && now - lastSaveTime >= rule.seconds() * 1000) {
+                System.out.println(rule.changes() + " changes in " + rule.seconds() + " seconds. Saving...");
+                if (saving.compareAndSet(false, true))
+                    save(DEFAULT_FILE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts saving a snapshot in the background.
+     *
+     * @param fileName The name of the file to save to.
+     * @return True if the save was started, false if one is already running.
+     */
+    public boolean bgsave(String fileName) {
+        if (!saving.compareAndSet(false, true)) {
+            return false;
+        }
+        worker.execute(() -> save(fileName));
+        return true;
+    }
+
+    /**
+     * Saves a snapshot on the calling thread. The snapshot still reflects a
+     * single point in time and other connections are not blocked.
+     *
+     * @param fileName The name of the file to save to.
+     * @return The number of keys saved.
+     */
+    public int saveNow(String fileName) {
+        long start = System.currentTimeMillis();
+        long changes = store.changeCount();
+        int saved = store.saveDataStore(fileName);
+        saved(start, changes);
+        return saved;
+    }
+
+    /**
+     * Runs a save claimed through {@link #saving} and releases it.
+     */
+    private void save(String fileName) {
+        try {
+            int saved = saveNow(fileName);
+            System.out.println("Background saving of " + saved + " keys to " + fileName + " done");
+        } catch (RuntimeException e) {
+            lastFailureTime = System.currentTimeMillis();
+            System.out.println("Background saving failed: " + e.getMessage());
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    private synchronized void saved(long start, long changes) {
+        if (start >= lastSaveTime) {
+            lastSaveTime = start;
+            changesAtLastSave = changes;
+        }
+    }
+
+    /**
+     * Gets when the last successful save started.
+     *
+     * @return The time in epoch milliseconds, or when the saver was created if nothing was saved yet.
+     */
+    public long getLastSaveTime() {
+        return lastSaveTime;
+    }
+
+    /**
+     * Gets whether a background save is running.
+     *
+     * @return True if a save is in progress.
+     */
+    public boolean isSaving() {
+        return saving.get();
+    }
+
+    /**
+     * Stops automatic saves. A save already running is left to finish.
+     */
+    public void shutdown() {
+        worker.shutdown();
+    }
+}
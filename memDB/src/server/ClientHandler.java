@@ -1,35 +1,54 @@
 package server;
 
-import server.keyvalstore.DataStore;
 import utils.ObjectMessenger;
 import protocol.Request;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * Represents a client handler that processes requests from a client.
+ * <p>
+ * The handler only blocks in socket reads and writes. Those go through the
+ * JDK's buffered and socket streams, which use {@code ReentrantLock} rather
+ * than monitors, and no blocking call runs inside a {@code synchronized}
+ * block, so a handler on a virtual thread unmounts from its carrier while it
+ * waits instead of pinning it.
  */
 public class ClientHandler implements Runnable{
+    /**
+     * The most pipelined input looked past when checking for a disconnect.
+     */
+    private static final int PEEK_LIMIT = 1 << 20;
+
     private Socket client;
     private ObjectMessenger messenger;
-    private ObjectInputStream objectInputStream;
-    private ObjectOutputStream objectOutputStream;
+    private DataInputStream dataInputStream;
+    private DataOutputStream dataOutputStream;
     private CommandDispatcher commandDispatcher;
+    private final ServerContext context;
+    private boolean closed;
+    private final byte[] peekBuffer = new byte[8192];
 
     /**
      * Constructs a client handler with the given client socket.
      *
      * @param client The client socket.
+     * @param context The state shared by all connections.
      */
-    public ClientHandler(Socket client)  {
+    public ClientHandler(Socket client, ServerContext context)  {
+        this.context = context;
+        context.connectionOpened();
         try{
             this.client = client;
-            DataStore store = new DataStore();
-            messenger = new ObjectMessenger();
-            objectInputStream = new ObjectInputStream(client.getInputStream());
-            objectOutputStream = new ObjectOutputStream(client.getOutputStream());
-            commandDispatcher = new CommandDispatcher(messenger, objectOutputStream, store);
+            client.setTcpNoDelay(true);
+            messenger = new ObjectMessenger(context.getConfig().getCodec());
+            dataInputStream = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            dataOutputStream = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+            commandDispatcher = new CommandDispatcher(messenger, dataOutputStream, context);
+            commandDispatcher.setClientAddress(client.getInetAddress().getHostAddress() + ":" + client.getPort());
+            commandDispatcher.setDisconnectCheck(this::clientGone);
         }catch (IOException e){
             closeClient();
         }
@@ -37,16 +56,64 @@ public class ClientHandler implements Runnable{
 
     /**
      * Continuously listens for requests from the client and dispatches them for processing.
+     * Responses are flushed only once every request that has already arrived has
+     * been answered, so pipelined requests share one flush and one wait for the
+     * command log. The connection is closed once the client goes away or a
+     * request fails in a way the dispatcher could not answer.
      */
     @Override
     public void run() {
-        while (client.isConnected()) {
-            try {
-                Request request = (Request) messenger.receiveObject(objectInputStream);
+        try {
+            while (!client.isClosed()) {
+                Request request = (Request) messenger.receiveObject(dataInputStream);
                 commandDispatcher.dispatch(request);
-            } catch (IOException | ClassNotFoundException e) {
-                closeClient();
+                if (dataInputStream.available() == 0) {
+                    commandDispatcher.syncLog();
+                    dataOutputStream.flush();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Nothing more can be sent on the connection; closed below
+        } finally {
+            closeClient();
+        }
+    }
+
+    /**
+     * Checks, without consuming any input, whether the client has closed its side
+     * of the connection. Called while a request waits, such as a blocking pop, so
+     * the wait can be given up instead of taking an element for a dead client.
+     * <p>
+     * Requests the client pipelined behind the waiting one are read ahead into the
+     * stream's buffer and then given back, so a disconnect is seen as the end of
+     * the stream or a read error even when input is waiting. Only the first
+     * {@link #PEEK_LIMIT} bytes are looked past; a client that has pipelined more
+     * than that is taken to still be there.
+     *
+     * @return True if the client has gone away.
+     */
+    private boolean clientGone() {
+        try {
+            client.setSoTimeout(1);
+            dataInputStream.mark(PEEK_LIMIT);
+            try {
+                int seen = 0;
+                while (seen < PEEK_LIMIT) {
+                    int n = dataInputStream.read(peekBuffer, 0, Math.min(peekBuffer.length, PEEK_LIMIT - seen));
+                    if (n < 0) {
+                        return true;
+                    }
+                    seen += n;
+                }
+                return false;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                dataInputStream.reset();
+                client.setSoTimeout(0);
             }
+        } catch (IOException e) {
+            return true;
         }
     }
 
@@ -54,11 +121,15 @@ public class ClientHandler implements Runnable{
      * Closes the client connection and releases resources.
      */
     private void closeClient()  {
+        if(closed)
+            return;
+        closed = true;
+        context.connectionClosed();
         try{
-            if(objectInputStream != null)
-                objectInputStream.close();
-            if(objectOutputStream != null)
-                objectOutputStream.close();
+            if(dataInputStream != null)
+                dataInputStream.close();
+            if(dataOutputStream != null)
+                dataOutputStream.close();
             if(client != null)
                 client.close();
         }catch (IOException e){
@@ -1,55 +1,146 @@
 package server;
 
 import server.keyvalstore.DataStore;
+import server.keyvalstore.NumberType;
+import server.keyvalstore.ZSetType;
 import protocol.Command;
 import protocol.Request;
 import protocol.Response;
 import utils.ObjectMessenger;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.DataOutputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
 
 /**
  * Dispatches incoming commands to their respective handlers.
  */
-public class CommandDispatcher {
+public final class CommandDispatcher {
+    /**
+     * The commands that change the data store, refused from clients of a follower.
+     */
+    private static final Set<Command> WRITE_COMMANDS = EnumSet.of(
+            Command.SET, Command.SETX, Command.DELETE, Command.MSET, Command.MDEL,
+            Command.INCREMENT, Command.DECREMENT, Command.INCRBY, Command.DECRBY, Command.INCRBYFLOAT,
+            Command.LPUSH, Command.RPUSH, Command.POP, Command.LPOP, Command.RPOP, Command.BLPOP, Command.BRPOP,
+            Command.LSET, Command.LTRIM, Command.EXPIRE, Command.EXPIREAT, Command.PERSIST, Command.LOAD,
+            Command.HSET, Command.HDEL, Command.HINCRBY, Command.ZADD, Command.ZINCRBY, Command.ZREM,
+            Command.SADD, Command.SREM);
+    /**
+     * How often a request waiting in {@link #dispatch(Request)} checks that its client is still there, in milliseconds.
+     */
+    private static final long WAIT_CHECK_MS = 100;
     private final Map<Command, CommandHandler> commandMap = new HashMap<>();
     private final ObjectMessenger messenger;
-    private final ObjectOutputStream objectOutputStream;
+    private final DataOutputStream dataOutputStream;
     private final DataStore store;
+    private final ServerContext context;
+    private final CommandStats stats;
+    private final SlowLog slowLog;
+    private String clientAddress = "unknown";
+    private BooleanSupplier clientGone = () -> false;
 
     /**
      * Constructs a command dispatcher with the given dependencies.
      *
      * @param messenger The object messenger for sending responses.
-     * @param objectOutputStream The object output stream for sending responses.
-     * @param store The data store for storing key-value pairs.
+     * @param dataOutputStream The data output stream for sending responses.
+     * @param context The server state, including the data store for storing key-value pairs.
      */
 
-    public CommandDispatcher(ObjectMessenger messenger, ObjectOutputStream objectOutputStream, DataStore store) {
+    public CommandDispatcher(ObjectMessenger messenger, DataOutputStream dataOutputStream, ServerContext context) {
         this.messenger = messenger;
-        this.objectOutputStream = objectOutputStream;
-        this.store = store;
+        this.dataOutputStream = dataOutputStream;
+        this.context = context;
+        this.store = context.getStore();
+        this.stats = context.getStats();
+        this.slowLog = context.getSlowLog();
         initCommandMap();
     }
 
+    /**
+     * Constructs a command dispatcher that only executes requests.
+     * Callers write the responses themselves, so {@link #dispatch(Request)} must not be used.
+     *
+     * @param context The server state, including the data store for storing key-value pairs.
+     */
+    public CommandDispatcher(ServerContext context) {
+        this(null, null, context);
+    }
+
     private void initCommandMap(){
           commandMap.put(Command.ECHO, this::handleEcho);
           commandMap.put(Command.PING, this::handlePing);
           commandMap.put(Command.SET, this::handleSet);
           commandMap.put(Command.GET, this::handleGet);
           commandMap.put(Command.DELETE, this::handleDelete);
+          commandMap.put(Command.MGET, this::handleMget);
+          commandMap.put(Command.MSET, this::handleMset);
+          commandMap.put(Command.MDEL, this::handleMdel);
           commandMap.put(Command.SETX, this::handleSetx);
           commandMap.put(Command.LPUSH, this::handleLpush);
+          commandMap.put(Command.RPUSH, this::handleLpush);
           commandMap.put(Command.POP, this::handlePop);
+          commandMap.put(Command.LPOP, this::handlePop);
+          commandMap.put(Command.RPOP, this::handlePop);
+          commandMap.put(Command.INFO, this::handleInfo);
+          commandMap.put(Command.SLOWLOG, this::handleSlowlog);
           commandMap.put(Command.LLEN, this::handleLlen);
+          commandMap.put(Command.LRANGE, this::handleLrange);
+          commandMap.put(Command.LINDEX, this::handleLindex);
+          commandMap.put(Command.LSET, this::handleLset);
+          commandMap.put(Command.LTRIM, this::handleLtrim);
           commandMap.put(Command.INCREMENT, this::handleIncrement);
           commandMap.put(Command.DECREMENT, this::handleDecrement);
+          commandMap.put(Command.INCRBY, this::handleIncrby);
+          commandMap.put(Command.DECRBY, this::handleIncrby);
+          commandMap.put(Command.INCRBYFLOAT, this::handleIncrbyfloat);
+          commandMap.put(Command.EXPIRE, this::handleExpire);
+          commandMap.put(Command.EXPIREAT, this::handleExpireat);
+          commandMap.put(Command.TTL, this::handleTtl);
+          commandMap.put(Command.PERSIST, this::handlePersist);
           commandMap.put(Command.SAVE, this::handleSave);
           commandMap.put(Command.LOAD, this::handleLoad);
+          commandMap.put(Command.BGREWRITEAOF, this::handleBgrewriteaof);
+          commandMap.put(Command.BGSAVE, this::handleBgsave);
+          commandMap.put(Command.LASTSAVE, this::handleLastsave);
+          commandMap.put(Command.MEMORY, this::handleMemory);
+          commandMap.put(Command.SCAN, this::handleScan);
+          commandMap.put(Command.HSET, this::handleHset);
+          commandMap.put(Command.HGET, this::handleHget);
+          commandMap.put(Command.HMGET, this::handleHmget);
+          commandMap.put(Command.HDEL, this::handleHdel);
+          commandMap.put(Command.HINCRBY, this::handleHincrby);
+          commandMap.put(Command.HGETALL, this::handleHgetall);
+          commandMap.put(Command.HLEN, this::handleHlen);
+          commandMap.put(Command.ZADD, this::handleZadd);
+          commandMap.put(Command.ZINCRBY, this::handleZincrby);
+          commandMap.put(Command.ZSCORE, this::handleZscore);
+          commandMap.put(Command.ZRANK, this::handleZrank);
+          commandMap.put(Command.ZRANGE, this::handleZrange);
+          commandMap.put(Command.ZRANGEBYSCORE, this::handleZrangebyscore);
+          commandMap.put(Command.ZREM, this::handleZrem);
+          commandMap.put(Command.SADD, this::handleSadd);
+          commandMap.put(Command.SREM, this::handleSrem);
+          commandMap.put(Command.SISMEMBER, this::handleSismember);
+          commandMap.put(Command.SCARD, this::handleScard);
+          commandMap.put(Command.SMEMBERS, this::handleSmembers);
+          commandMap.put(Command.SINTER, this::handleSetAlgebra);
+          commandMap.put(Command.SUNION, this::handleSetAlgebra);
+          commandMap.put(Command.SDIFF, this::handleSetAlgebra);
     }
 
     /**
@@ -63,13 +154,228 @@ public class CommandDispatcher {
             Command command = request.getCommand();
             String key = request.getKey();
             if(command == Command.LOAD && key != null){
-                store.loadDataStore(key);
-                return new Response(true, store.getKeys());
+                long start = System.nanoTime();
+                int loaded = store.loadDataStore(key);
+                return new Response(true, "Loaded " + loaded + " keys in " + elapsedMillis(start) + " ms");
             }
         }
         return new Response(false, "Failed to load keys");
     }
 
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    /**
+     * Handles the SCAN command to walk the keys in batches:
+     * {@code SCAN cursor [MATCH pattern] [COUNT count]}. The response message is
+     * the cursor to pass to the next call, 0 once every key has been returned,
+     * and the values are the keys of the batch.
+     *
+     * @param request The request containing the cursor and the options.
+     * @return The response with the next cursor and the keys.
+     */
+    private Response handleScan(Request request) {
+        long cursor;
+        try{
+            cursor = Long.parseUnsignedLong(request.getKey() != null ? request.getKey() : "");
+        }catch (NumberFormatException e){
+            return new Response(false, "ERR invalid cursor");
+        }
+        List<String> args = request.getArgs();
+        String pattern = null;
+        int count = 10;
+        for(int i = 0; i < args.size(); i += 2){
+            if(i + 1 == args.size())
+                return new Response(false, "ERR syntax error");
+            String option = args.get(i);
+            if(option.equalsIgnoreCase("MATCH")){
+                pattern = args.get(i + 1).equals("*") ? null : args.get(i + 1);
+            }else if(option.equalsIgnoreCase("COUNT")){
+                try{
+                    count = Integer.parseInt(args.get(i + 1));
+                }catch (NumberFormatException e){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+                if(count < 1)
+                    return new Response(false, "ERR syntax error");
+            }else{
+                return new Response(false, "ERR syntax error");
+            }
+        }
+        DataStore.ScanBatch batch = store.scan(cursor, count, pattern);
+        return new Response(true, Long.toUnsignedString(batch.cursor()), batch.keys());
+    }
+
+    /**
+     * Handles the BGREWRITEAOF command to compact the command log in the background.
+     *
+     * @param request The request containing the BGREWRITEAOF command.
+     * @return The response indicating whether a rewrite was started or scheduled.
+     */
+    private Response handleBgrewriteaof(Request request) {
+        CommandLog log = context.getCommandLog();
+        if(log == null){
+            return new Response(false, "Append only file is disabled");
+        }
+        boolean started = log.rewrite();
+        return new Response(true, started ? "Background rewrite started" : "Background rewrite scheduled");
+    }
+
+    /**
+     * Handles the BGSAVE command to save a snapshot in the background.
+     *
+     * @param request The request containing the BGSAVE command and an optional file name.
+     * @return The response indicating whether the save was started.
+     */
+    private Response handleBgsave(Request request) {
+        String fileName = request.getKey() != null ? request.getKey() : BackgroundSaver.DEFAULT_FILE;
+        if(context.getSaver().bgsave(fileName)){
+            return new Response(true, "Background saving started");
+        }
+        return new Response(false, "Background save already in progress");
+    }
+
+    /**
+     * Handles the LASTSAVE command to get when the last successful save started.
+     *
+     * @param request The request containing the LASTSAVE command.
+     * @return The response with the time in epoch seconds.
+     */
+    private Response handleLastsave(Request request) {
+        return new Response(true, Long.toString(context.getSaver().getLastSaveTime() / 1000));
+    }
+
+    /**
+     * Handles the MEMORY command to report memory usage and evictions.
+     *
+     * @param request The request containing the MEMORY command.
+     * @return The response with one {@code name:value} line per statistic.
+     */
+    private Response handleMemory(Request request) {
+        List<String> stats = List.of(
+                "used_memory:" + store.getUsedMemory(),
+                "maxmemory:" + store.getMaxMemory(),
+                "maxmemory_policy:" + store.getEvictionPolicy().name().toLowerCase().replace('_', '-'),
+                "evicted_keys:" + store.getEvictedCount(),
+                "offheap:" + (store.isOffHeap() ? "yes" : "no"),
+                "offheap_reserved:" + store.getOffHeapReserved());
+        return new Response(true, Long.toString(store.getUsedMemory()), stats);
+    }
+
+    /**
+     * Handles the INFO command to report statistics about the server, its
+     * clients, memory, persistence, replication, keyspace and commands.
+     *
+     * @param request The request, whose key may name one section to report.
+     * @return The response with the total number of commands executed and one
+     *         {@code name:value} line per statistic, each section headed by its name.
+     */
+    private Response handleInfo(Request request) {
+        String section = request.getKey() != null ? request.getKey().toLowerCase() : "all";
+        List<String> lines = new ArrayList<>();
+        BackgroundSaver saver = context.getSaver();
+        if(includes(section, "server")){
+            lines.add("# Server");
+            lines.add("mode:" + context.getConfig().getMode().name().toLowerCase());
+            lines.add("tcp_port:" + context.getConfig().getPort());
+            lines.add("uptime_in_seconds:" + (System.currentTimeMillis() - context.getStartTime()) / 1000);
+        }
+        if(includes(section, "clients")){
+            lines.add("# Clients");
+            lines.add("connected_clients:" + context.getConnectedClients());
+            lines.add("total_connections_received:" + context.getTotalConnections());
+        }
+        if(includes(section, "memory")){
+            lines.add("# Memory");
+            lines.add("used_memory:" + store.getUsedMemory());
+            lines.add("maxmemory:" + store.getMaxMemory());
+            lines.add("maxmemory_policy:" + store.getEvictionPolicy().name().toLowerCase().replace('_', '-'));
+            lines.add("offheap_reserved:" + store.getOffHeapReserved());
+            lines.add("jvm_heap_used:" + (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()));
+        }
+        if(includes(section, "persistence")){
+            lines.add("# Persistence");
+            lines.add("changes:" + store.changeCount());
+            lines.add("bgsave_in_progress:" + (saver.isSaving() ? 1 : 0));
+            lines.add("last_save_time:" + saver.getLastSaveTime() / 1000);
+            lines.add("aof_enabled:" + (context.getCommandLog() != null ? 1 : 0));
+        }
+        if(includes(section, "replication")){
+            lines.add("# Replication");
+            ReplicationLeader leader = context.getLeader();
+            ReplicationFollower follower = context.getFollower();
+            lines.add("role:" + (follower != null ? "follower" : leader != null ? "leader" : "standalone"));
+            if(leader != null)
+                lines.addAll(leader.describe());
+            if(follower != null)
+                lines.addAll(follower.describe());
+        }
+        if(includes(section, "stats")){
+            lines.add("# Stats");
+            lines.add("total_commands_processed:" + stats.totalCalls());
+            lines.add("total_error_replies:" + stats.totalErrors());
+            lines.add("expired_keys:" + store.getExpiryManager().getExpiredCount());
+            lines.add("evicted_keys:" + store.getEvictedCount());
+        }
+        if(includes(section, "keyspace")){
+            lines.add("# Keyspace");
+            lines.add("keys:" + store.size());
+            lines.add("expires:" + store.getExpiryManager().pending());
+        }
+        if(includes(section, "commandstats")){
+            lines.add("# Commandstats");
+            lines.addAll(stats.describe());
+        }
+        if(lines.isEmpty()){
+            return new Response(false, "ERR unknown INFO section " + section);
+        }
+        return new Response(true, Long.toString(stats.totalCalls()), lines);
+    }
+
+    /**
+     * Handles the SLOWLOG command: {@code SLOWLOG GET [count]} lists the slowest
+     * recent commands newest first, {@code SLOWLOG LEN} counts them and
+     * {@code SLOWLOG RESET} clears them.
+     *
+     * @param request The request containing the subcommand and its argument.
+     * @return The response with the entries, the count or OK.
+     */
+    private Response handleSlowlog(Request request) {
+        String sub = request.getKey() != null ? request.getKey().toUpperCase() : "";
+        switch(sub){
+            case "GET" -> {
+                int count = 10;
+                if(!request.getArgs().isEmpty()){
+                    try{
+                        count = Integer.parseInt(request.getArgs().getFirst());
+                    }catch (NumberFormatException e){
+                        return new Response(false, "ERR value is not an integer or out of range");
+                    }
+                }
+                List<String> lines = new ArrayList<>();
+                for(SlowLog.Entry e : slowLog.get(count < 0 ? Integer.MAX_VALUE : count)){
+                    lines.add(e.toString());
+                }
+                return new Response(true, Integer.toString(lines.size()), lines);
+            }
+            case "LEN" -> {
+                return new Response(true, Integer.toString(slowLog.length()));
+            }
+            case "RESET" -> {
+                slowLog.reset();
+                return new Response(true, "OK");
+            }
+            default -> {
+                return new Response(false, "ERR unknown SLOWLOG subcommand, use GET, LEN or RESET");
+            }
+        }
+    }
+
+    private static boolean includes(String requested, String section) {
+        return requested.equals("all") || requested.equals(section);
+    }
+
     /**
      * Handles the SAVE command to save data from the data store into a file.
      *
@@ -80,152 +386,1078 @@ public class CommandDispatcher {
         Command command = request.getCommand();
         String key = request.getKey();
         if(command == Command.SAVE && key != null){
-            store.saveDataStore(key);
-            return new Response(true, "Saved : " + store.getKeys());
+            long start = System.nanoTime();
+            int saved = context.getSaver().saveNow(key);
+            return new Response(true, "Saved " + saved + " keys in " + elapsedMillis(start) + " ms");
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleLlen(Request request) {
+    /**
+     * Handles the EXPIRE command to set a time to live in milliseconds on an existing key.
+     *
+     * @param request The request containing the key and the time to live.
+     * @return The response indicating whether the key exists.
+     */
+    private Response handleExpire(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            if(command == Command.LLEN && key != null){
-                return new Response(store.lLen(key) > 1, store.lLen(key).toString());
+            List<String> args = request.getArgs();
+            if(command == Command.EXPIRE && key != null && !args.isEmpty()){
+                try{
+                    long time = Long.parseLong(args.getFirst());
+                    boolean set = store.expire(key, time);
+                    return new Response(set, set ? "1" : "0");
+                }catch (NumberFormatException e){
+                    return new Response(false, "Invalid expiry time");
+                }
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handlePop(Request request) {
+    /**
+     * Handles the EXPIREAT command to set an absolute expiry time in epoch milliseconds on an existing key.
+     *
+     * @param request The request containing the key and the expiry time.
+     * @return The response indicating whether the key exists.
+     */
+    private Response handleExpireat(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            String val = request.getArgs().getFirst();
-            if(command == Command.POP && key != null && val != null){
-                return new Response(!store.get(key).equals("null"), store.pop(key));
+            List<String> args = request.getArgs();
+            if(command == Command.EXPIREAT && key != null && !args.isEmpty()){
+                try{
+                    boolean set = store.expireAt(key, Long.parseLong(args.getFirst()));
+                    return new Response(set, set ? "1" : "0");
+                }catch (NumberFormatException e){
+                    return new Response(false, "Invalid expiry time");
+                }
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleLpush(Request request) {
+    /**
+     * Handles the TTL command to get the remaining time to live of a key in milliseconds.
+     *
+     * @param request The request containing the key.
+     * @return The response with the remaining time, -1 if the key never expires, or -2 if it does not exist.
+     */
+    private Response handleTtl(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            String val = request.getArgs().getFirst();
-            if(command == Command.LPUSH && key != null && val != null){
-                store.lPush(key, val);
-                return new Response(true, store.get(key));
-
+            if(command == Command.TTL && key != null){
+                long ttl = store.ttl(key);
+                return new Response(ttl != -2, Long.toString(ttl));
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleDelete(Request request) {
+    /**
+     * Handles the PERSIST command to remove the time to live from a key.
+     *
+     * @param request The request containing the key.
+     * @return The response indicating whether an expiry was removed.
+     */
+    private Response handlePersist(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            if(command == Command.DELETE && key != null) {
-                store.delete(key);
-                return new Response(true, store.get(key));
+            if(command == Command.PERSIST && key != null){
+                boolean persisted = store.persist(key);
+                return new Response(persisted, persisted ? "1" : "0");
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleSetx(Request request) {
+    private Response handleLlen(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            String val = request.getArgs().getFirst();
-            Long time = Long.parseLong(request.getArgs().get(1));
-            if(command == Command.SETX && key != null && val != null){
-                store.put(key, val, time);
-                return new Response(true, store.get(key));
+            if(command == Command.LLEN && key != null){
+                return new Response(store.lLen(key) > 1, store.lLen(key).toString());
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleGet(Request request) {
+    /**
+     * Handles the LPOP, RPOP and POP commands to remove an element from one end
+     * of a list. POP pops from the end, like RPOP.
+     *
+     * @param request The request containing the key of the list.
+     * @return The response with the element, or "null" if the key does not exist.
+     */
+    private Response handlePop(Request request) {
         if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
-            if(command == Command.GET && key != null){
-                String val = store.get(key);
-                return new Response(!val.equals("null"), store.get(key));
+            if(key != null){
+                String value = command == Command.LPOP ? store.lPop(key) : store.rPop(key);
+                return new Response(value != null, value != null ? value : "null");
             }
         }
         return new Response(false, "Invalid command or key");
     }
 
-    private Response handleSet(Request request) {
-        if (request != null) {
-            System.out.println("HANDLING SET " + request);
+    /**
+     * Starts the BLPOP and BRPOP commands to remove an element from one end of a
+     * list, waiting until one is pushed if the list does not exist.
+     *
+     * @param request The request containing the key of the list and the timeout in seconds, 0 to wait indefinitely.
+     * @return A future completed with the response holding the element, or "null" if the timeout passed.
+     */
+    private CompletableFuture<Response> startBlockingPop(Request request) {
+        String key = request.getKey();
+        List<String> args = request.getArgs();
+        if(key == null || args.isEmpty()){
+            return CompletableFuture.completedFuture(new Response(false, "Invalid command or key"));
+        }
+        NumberType seconds = NumberType.parseFloat(args.getFirst());
+        if(seconds == null){
+            return CompletableFuture.completedFuture(new Response(false, "ERR timeout is not a float or out of range"));
+        }
+        if(seconds.doubleValue() < 0){
+            return CompletableFuture.completedFuture(new Response(false, "ERR timeout is negative"));
+        }
+        long timeout = (long) Math.ceil(seconds.doubleValue() * 1000);
+        CompletableFuture<String> popped = store.blockingPop(key, request.getCommand() == Command.BLPOP, timeout);
+        CompletableFuture<Response> response = popped.thenApply(value -> new Response(value != null, value != null ? value : "null"));
+        response.whenComplete((r, e) -> popped.complete(null));
+        return response;
+    }
+
+    /**
+     * Handles the LPUSH and RPUSH commands to add an element to one end of a list.
+     *
+     * @param request The request containing the key of the list and the element.
+     * @return The response with the length of the list after the push.
+     */
+    private Response handleLpush(Request request) {
+        if(request != null){
             Command command = request.getCommand();
             String key = request.getKey();
             List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                int length = command == Command.LPUSH ? store.lPush(key, args.getFirst()) : store.rPush(key, args.getFirst());
+                return new Response(true, Integer.toString(length));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
 
-            if (command == Command.SET && !args.isEmpty()) {
-                String val = args.getFirst();
-                if (key != null && val != null) {
-                    store.put(key, val);
-                    return new Response(true, store.get(key));
+    /**
+     * Handles the HSET command to set fields of a hash.
+     *
+     * @param request The request containing the key followed by fields and values.
+     * @return The response with the number of fields that were new.
+     */
+    private Response handleHset(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty() && args.size() % 2 == 0){
+                return new Response(true, Integer.toString(store.hSet(key, args)));
+            }
+        }
+        return new Response(false, "Invalid command or field-value pairs");
+    }
+
+    /**
+     * Handles the HGET command to get the value of a field of a hash.
+     *
+     * @param request The request containing the key and the field.
+     * @return The response with the value, or "null" if there is none.
+     */
+    private Response handleHget(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                String value = store.hGet(key, args.getFirst());
+                return new Response(value != null, value != null ? value : "null");
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the HMGET command to get the values of several fields of a hash.
+     *
+     * @param request The request containing the key and the fields.
+     * @return The response with the number of fields found and the values, null for missing fields.
+     */
+    private Response handleHmget(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                List<String> values = store.hMGet(key, args);
+                int found = 0;
+                for(String value : values){
+                    if(value != null)
+                        found++;
+                }
+                return new Response(true, Integer.toString(found), values);
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the HDEL command to remove fields from a hash.
+     *
+     * @param request The request containing the key and the fields.
+     * @return The response with the number of fields removed.
+     */
+    private Response handleHdel(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                return new Response(true, Integer.toString(store.hDel(key, args)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the HINCRBY command to add an integer to the value of a field of a hash.
+     *
+     * @param request The request containing the key, the field and the integer.
+     * @return The response with the new value.
+     */
+    private Response handleHincrby(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                NumberType delta = NumberType.parseInteger(args.get(1));
+                if(delta == null){
+                    return new Response(false, "ERR value is not an integer or out of range");
                 }
+                return new Response(true, Long.toString(store.hIncrBy(key, args.get(0), delta.longValue())));
             }
         }
         return new Response(false, "Invalid command or value");
     }
 
-    private Response handleEcho(Request request) {
-        return new Response(true, "echo");
+    /**
+     * Handles the HGETALL command to get every field and value of a hash.
+     *
+     * @param request The request containing the key.
+     * @return The response with the number of fields, and each field followed by its value.
+     */
+    private Response handleHgetall(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            if(key != null){
+                List<String> entries = store.hGetAll(key);
+                return new Response(true, Integer.toString(entries.size() / 2), entries);
+            }
+        }
+        return new Response(false, "Invalid command or key");
     }
 
-    private Response handlePing(Request request) {
-        return new Response(true, "pong");
+    /**
+     * Handles the HLEN command to get the number of fields of a hash.
+     *
+     * @param request The request containing the key.
+     * @return The response with the number of fields, 0 if the key does not exist.
+     */
+    private Response handleHlen(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            if(key != null){
+                return new Response(true, Integer.toString(store.hLen(key)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
     }
 
-    private Response handleIncrement(Request request){
+    /**
+     * Handles the ZADD command to set the scores of members of a sorted set.
+     *
+     * @param request The request containing the key followed by scores and members.
+     * @return The response with the number of members that were new.
+     */
+    private Response handleZadd(Request request) {
         if(request != null){
-            Command command = request.getCommand();
             String key = request.getKey();
-            if(command == Command.INCREMENT && key != null){
-                store.increment(key);
-                return new Response(true, store.get(key));
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty() && args.size() % 2 == 0){
+                double[] scores = new double[args.size() / 2];
+                List<String> members = new ArrayList<>(scores.length);
+                for(int i = 0; i < scores.length; i++){
+                    Double score = ZSetType.parseScore(args.get(2 * i));
+                    if(score == null){
+                        return new Response(false, "ERR value is not a valid float");
+                    }
+                    scores[i] = score;
+                    members.add(args.get(2 * i + 1));
+                }
+                return new Response(true, Integer.toString(store.zAdd(key, scores, members)));
             }
         }
-        return new Response(true, "Invalid command or value");
+        return new Response(false, "Invalid command or score-member pairs");
     }
-    private Response handleDecrement(Request request){
+
+    /**
+     * Handles the ZINCRBY command to add to the score of a member of a sorted set.
+     *
+     * @param request The request containing the key, the increment and the member.
+     * @return The response with the new score.
+     */
+    private Response handleZincrby(Request request) {
         if(request != null){
-            Command command = request.getCommand();
             String key = request.getKey();
-            if(command == Command.DECREMENT && key != null){
-                store.decrement(key);
-                return new Response(true, store.get(key));
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                Double delta = ZSetType.parseScore(args.get(0));
+                if(delta == null){
+                    return new Response(false, "ERR value is not a valid float");
+                }
+                return new Response(true, ZSetType.formatScore(store.zIncrBy(key, args.get(1), delta)));
             }
         }
         return new Response(false, "Invalid command or value");
     }
 
     /**
-     * Dispatches a request to the appropriate command handler and sends the response.
+     * Handles the ZSCORE command to get the score of a member of a sorted set.
      *
-     * @param request The request to dispatch.
-     * @throws IOException If an I/O error occurs.
+     * @param request The request containing the key and the member.
+     * @return The response with the score, or "null" if there is none.
      */
-    public void dispatch(Request request) throws IOException {
-        Command command = request.getCommand();
-        CommandHandler handler = commandMap.get(command);
-        Response resp;
-        if(handler != null){
-            resp = handler.handle(request);
-        }else {
-            resp = handleInvalidCommand();
-        }
-        messenger.sendObject(resp, objectOutputStream);
+    private Response handleZscore(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                Double score = store.zScore(key, args.getFirst());
+                return new Response(score != null, score != null ? ZSetType.formatScore(score) : "null");
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the ZRANK command to get the rank of a member of a sorted set.
+     *
+     * @param request The request containing the key and the member.
+     * @return The response with the rank from 0, or "null" if there is none.
+     */
+    private Response handleZrank(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                Long rank = store.zRank(key, args.getFirst());
+                return new Response(rank != null, rank != null ? Long.toString(rank) : "null");
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the ZRANGE command to get the members between two ranks of a sorted set.
+     *
+     * @param request The request containing the key, the first and last ranks and optionally WITHSCORES.
+     * @return The response with the number of members, and the members, each followed by its score if asked.
+     */
+    private Response handleZrange(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                NumberType start = NumberType.parseInteger(args.get(0));
+                NumberType stop = NumberType.parseInteger(args.get(1));
+                if(start == null || stop == null){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+                boolean withScores = false;
+                for(String option : args.subList(2, args.size())){
+                    if(!option.equalsIgnoreCase("WITHSCORES")){
+                        return new Response(false, "ERR syntax error");
+                    }
+                    withScores = true;
+                }
+                List<String> values = store.zRange(key, start.longValue(), stop.longValue(), withScores);
+                return new Response(true, Integer.toString(withScores ? values.size() / 2 : values.size()), values);
+            }
+        }
+        return new Response(false, "Invalid command or range");
+    }
+
+    /**
+     * Handles the ZRANGEBYSCORE command to get the members within a range of scores of a sorted set.
+     *
+     * @param request The request containing the key, the lowest and highest scores, and optionally
+     *                WITHSCORES and LIMIT with an offset and a count.
+     * @return The response with the number of members, and the members, each followed by its score if asked.
+     */
+    private Response handleZrangebyscore(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                ZSetType.ScoreRange range = ZSetType.ScoreRange.parse(args.get(0), args.get(1));
+                if(range == null){
+                    return new Response(false, "ERR min or max is not a float");
+                }
+                boolean withScores = false;
+                long offset = 0;
+                long count = -1;
+                for(int i = 2; i < args.size(); i++){
+                    String option = args.get(i);
+                    if(option.equalsIgnoreCase("WITHSCORES")){
+                        withScores = true;
+                    }else if(option.equalsIgnoreCase("LIMIT") && i + 2 < args.size()){
+                        NumberType o = NumberType.parseInteger(args.get(i + 1));
+                        NumberType c = NumberType.parseInteger(args.get(i + 2));
+                        if(o == null || c == null){
+                            return new Response(false, "ERR value is not an integer or out of range");
+                        }
+                        offset = o.longValue();
+                        count = c.longValue();
+                        i += 2;
+                    }else{
+                        return new Response(false, "ERR syntax error");
+                    }
+                }
+                List<String> values = store.zRangeByScore(key, range, offset, count, withScores);
+                return new Response(true, Integer.toString(withScores ? values.size() / 2 : values.size()), values);
+            }
+        }
+        return new Response(false, "Invalid command or range");
+    }
+
+    /**
+     * Handles the ZREM command to remove members from a sorted set.
+     *
+     * @param request The request containing the key and the members.
+     * @return The response with the number of members removed.
+     */
+    private Response handleZrem(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                return new Response(true, Integer.toString(store.zRem(key, args)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SADD command to add members to a set.
+     *
+     * @param request The request containing the key and the members.
+     * @return The response with the number of members that were new.
+     */
+    private Response handleSadd(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                return new Response(true, Integer.toString(store.sAdd(key, args)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SREM command to remove members from a set.
+     *
+     * @param request The request containing the key and the members.
+     * @return The response with the number of members removed.
+     */
+    private Response handleSrem(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                return new Response(true, Integer.toString(store.sRem(key, args)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SISMEMBER command to check whether a member is in a set.
+     *
+     * @param request The request containing the key and the member.
+     * @return The response with 1 if the set has the member, 0 otherwise.
+     */
+    private Response handleSismember(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                return new Response(true, store.sIsMember(key, args.getFirst()) ? "1" : "0");
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SCARD command to get the number of members of a set.
+     *
+     * @param request The request containing the key.
+     * @return The response with the number of members, 0 if the key does not exist.
+     */
+    private Response handleScard(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            if(key != null){
+                return new Response(true, Integer.toString(store.sCard(key)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SMEMBERS command to get the members of a set.
+     *
+     * @param request The request containing the key.
+     * @return The response with the number of members, and the members.
+     */
+    private Response handleSmembers(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            if(key != null){
+                List<String> members = store.sMembers(key);
+                return new Response(true, Integer.toString(members.size()), members);
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the SINTER, SUNION and SDIFF commands to combine several sets.
+     *
+     * @param request The request containing the keys of the sets.
+     * @return The response with the number of members, and the members.
+     */
+    private Response handleSetAlgebra(Request request) {
+        if(request != null){
+            List<String> keys = request.getKeys();
+            if(!keys.isEmpty()){
+                List<String> members = switch(request.getCommand()){
+                    case SINTER -> store.sInter(keys);
+                    case SUNION -> store.sUnion(keys);
+                    default -> store.sDiff(keys);
+                };
+                return new Response(true, Integer.toString(members.size()), members);
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the LRANGE command to get a range of elements of a list.
+     *
+     * @param request The request containing the key, the first index and the last index.
+     * @return The response with the number of elements and the elements themselves.
+     */
+    private Response handleLrange(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                try{
+                    List<String> values = store.lRange(key, Long.parseLong(args.get(0)), Long.parseLong(args.get(1)));
+                    return new Response(true, Integer.toString(values.size()), values);
+                }catch (NumberFormatException e){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the LINDEX command to get the element at an index of a list.
+     *
+     * @param request The request containing the key and the index.
+     * @return The response with the element, or "null" if there is none.
+     */
+    private Response handleLindex(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                try{
+                    String value = store.lIndex(key, Long.parseLong(args.getFirst()));
+                    return new Response(value != null, value != null ? value : "null");
+                }catch (NumberFormatException e){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the LSET command to replace the element at an index of a list.
+     *
+     * @param request The request containing the key, the index and the new element.
+     * @return The response indicating success or failure.
+     */
+    private Response handleLset(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                try{
+                    store.lSet(key, Long.parseLong(args.get(0)), args.get(1));
+                    return new Response(true, "OK");
+                }catch (NumberFormatException e){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the LTRIM command to keep only a range of elements of a list.
+     *
+     * @param request The request containing the key, the first index and the last index to keep.
+     * @return The response indicating success or failure.
+     */
+    private Response handleLtrim(Request request) {
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && args.size() >= 2){
+                try{
+                    store.lTrim(key, Long.parseLong(args.get(0)), Long.parseLong(args.get(1)));
+                    return new Response(true, "OK");
+                }catch (NumberFormatException e){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    private Response handleDelete(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            if(command == Command.DELETE && key != null) {
+                store.delete(key);
+                return new Response(true, store.get(key));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the MGET command to get the values of several keys in one response.
+     *
+     * @param request The request whose key and arguments are the keys to get.
+     * @return The response with the number of keys found and one value per key.
+     */
+    private Response handleMget(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            List<String> keys = request.getKeys();
+            if(command == Command.MGET && !keys.isEmpty()){
+                List<String> values = store.mGet(keys);
+                int found = 0;
+                for(String value : values){
+                    if(value != null)
+                        found++;
+                }
+                return new Response(true, Integer.toString(found), values);
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    /**
+     * Handles the MSET command to set several key-value pairs atomically.
+     *
+     * @param request The request whose key and arguments alternate between keys and values.
+     * @return The response with the number of keys set.
+     */
+    private Response handleMset(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            List<String> pairs = request.getKeys();
+            if(command == Command.MSET && !pairs.isEmpty() && pairs.size() % 2 == 0){
+                List<String> keys = new ArrayList<>(pairs.size() / 2);
+                List<String> values = new ArrayList<>(pairs.size() / 2);
+                for(int i = 0; i < pairs.size(); i += 2){
+                    keys.add(pairs.get(i));
+                    values.add(pairs.get(i + 1));
+                }
+                store.mSet(keys, values);
+                return new Response(true, Integer.toString(keys.size()));
+            }
+        }
+        return new Response(false, "Invalid command or key-value pairs");
+    }
+
+    /**
+     * Handles the MDEL command to delete several keys atomically.
+     *
+     * @param request The request whose key and arguments are the keys to delete.
+     * @return The response with the number of keys deleted.
+     */
+    private Response handleMdel(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            List<String> keys = request.getKeys();
+            if(command == Command.MDEL && !keys.isEmpty()){
+                return new Response(true, Integer.toString(store.mDelete(keys)));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    private Response handleSetx(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            String val = request.getArgs().getFirst();
+            Long time = Long.parseLong(request.getArgs().get(1));
+            if(command == Command.SETX && key != null && val != null){
+                store.put(key, val, time);
+                return new Response(true, store.get(key));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    private Response handleGet(Request request) {
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            if(command == Command.GET && key != null){
+                String val = store.get(key);
+                return new Response(!val.equals("null"), store.get(key));
+            }
+        }
+        return new Response(false, "Invalid command or key");
+    }
+
+    private Response handleSet(Request request) {
+        if (request != null) {
+            Command command = request.getCommand();
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+
+            if (command == Command.SET && !args.isEmpty()) {
+                String val = args.getFirst();
+                if (key != null && val != null) {
+                    store.put(key, val);
+                    return new Response(true, store.get(key));
+                }
+            }
+        }
+        return new Response(false, "Invalid command or value");
+    }
+
+    private Response handleEcho(Request request) {
+        return new Response(true, "echo");
+    }
+
+    private Response handlePing(Request request) {
+        return new Response(true, "pong");
+    }
+
+    private Response handleIncrement(Request request){
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            if(command == Command.INCREMENT && key != null){
+                return new Response(true, store.increment(key));
+            }
+        }
+        return new Response(true, "Invalid command or value");
+    }
+    private Response handleDecrement(Request request){
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            if(command == Command.DECREMENT && key != null){
+                return new Response(true, store.decrement(key));
+            }
+        }
+        return new Response(false, "Invalid command or value");
+    }
+
+    /**
+     * Handles the INCRBY and DECRBY commands to add an integer to, or subtract
+     * it from, the value of a key.
+     *
+     * @param request The request containing the key and the integer.
+     * @return The response with the new value.
+     */
+    private Response handleIncrby(Request request){
+        if(request != null){
+            Command command = request.getCommand();
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                NumberType delta = NumberType.parseInteger(args.getFirst());
+                if(delta == null){
+                    return new Response(false, "ERR value is not an integer or out of range");
+                }
+                long value = command == Command.INCRBY ? store.incrBy(key, delta.longValue()) : store.decrBy(key, delta.longValue());
+                return new Response(true, Long.toString(value));
+            }
+        }
+        return new Response(false, "Invalid command or value");
+    }
+
+    /**
+     * Handles the INCRBYFLOAT command to add a decimal number to the value of a key.
+     *
+     * @param request The request containing the key and the decimal number.
+     * @return The response with the new value.
+     */
+    private Response handleIncrbyfloat(Request request){
+        if(request != null){
+            String key = request.getKey();
+            List<String> args = request.getArgs();
+            if(key != null && !args.isEmpty()){
+                NumberType delta = NumberType.parseFloat(args.getFirst());
+                if(delta == null){
+                    return new Response(false, "ERR value is not a valid float");
+                }
+                return new Response(true, store.incrByFloat(key, delta.doubleValue()));
+            }
+        }
+        return new Response(false, "Invalid command or value");
+    }
+
+    /**
+     * Sets the address of the client whose requests are executed next, as
+     * recorded in the slow log.
+     *
+     * @param clientAddress The client address.
+     */
+    void setClientAddress(String clientAddress) {
+        this.clientAddress = clientAddress;
+    }
+
+    /**
+     * Runs a request through the appropriate command handler. A command that
+     * fails, for example because the store is out of memory, is answered with
+     * the error rather than dropping the connection. A request that may block
+     * has no handler here and must go through {@link #executeAsync(Request)}.
+     *
+     * @param request The request to execute.
+     * @return The response to the request.
+     * @throws IllegalArgumentException If the request {@link #mayBlock(Request) may block}.
+     */
+    public Response execute(Request request) {
+        if(mayBlock(request))
+            throw new IllegalArgumentException(request.getCommand() + " may block and must be run with executeAsync");
+        Command command = request.getCommand();
+        long start = stats.start(command, slowLog.isEnabled());
+        CommandHandler handler = command != null ? commandMap.get(command) : null;
+        Response response;
+        boolean error = false;
+        if(handler != null && context.isReadOnly() && WRITE_COMMANDS.contains(command)){
+            response = readOnlyError();
+            error = true;
+        }else if(handler != null){
+            try{
+                response = handler.handle(request);
+                error = isError(response);
+            }catch (RuntimeException e){
+                response = failure(command, e);
+                error = true;
+            }
+        }else{
+            response = handleInvalidCommand();
+            error = true;
+        }
+        long nanos = stats.finish(command, start, error);
+        if(nanos >= 0)
+            slowLog.record(request, nanos, clientAddress);
+        return response;
+    }
+
+    /**
+     * Answers a request whose handler threw. An IllegalStateException carries
+     * the message for the client, such as an out of memory error; anything else,
+     * such as an argument that is not a number, a missing argument or a file
+     * that cannot be read, is answered with an ERR reply.
+     */
+    private static Response failure(Command command, RuntimeException e) {
+        if(e instanceof IllegalStateException)
+            return new Response(false, e.getMessage());
+        if(e instanceof NumberFormatException)
+            return new Response(false, "ERR value is not an integer or out of range");
+        if(e instanceof IndexOutOfBoundsException || e instanceof NoSuchElementException)
+            return new Response(false, "ERR wrong number of arguments for '" + command + "' command");
+        String message = e.getMessage();
+        if(message == null)
+            return new Response(false, "ERR " + e.getClass().getSimpleName());
+        int newline = message.indexOf('\n');
+        return new Response(false, "ERR " + (newline < 0 ? message : message.substring(0, newline)));
+    }
+
+    /**
+     * Checks whether a failed response reports an error, as opposed to a
+     * missing key or another expected negative answer.
+     */
+    private static boolean isError(Response response) {
+        if(response.isSuccess())
+            return false;
+        String message = response.getResponse();
+        return message != null && (message.startsWith("ERR") || message.startsWith("WRONGTYPE")
+                || message.startsWith("OOM") || message.startsWith("Invalid") || message.startsWith("READONLY"));
+    }
+
+    private static Response readOnlyError() {
+        return new Response(false, "READONLY You can't write against a read only follower");
+    }
+
+    /**
+     * Checks whether a request may have to wait for another client before it can
+     * be answered, and so must be run with {@link #executeAsync(Request)} by a
+     * caller that cannot block.
+     *
+     * @param request The request.
+     * @return True for the blocking list pops.
+     */
+    public static boolean mayBlock(Request request) {
+        Command command = request.getCommand();
+        return command == Command.BLPOP || command == Command.BRPOP;
+    }
+
+    /**
+     * Runs a request without blocking the calling thread. A request that has to
+     * wait, such as a blocking pop on an empty list, is answered by completing the
+     * future later from another thread; cancelling the future stops the wait.
+     *
+     * @param request The request to execute.
+     * @return A future completed with the response.
+     */
+    public CompletableFuture<Response> executeAsync(Request request) {
+        if(!mayBlock(request)){
+            return CompletableFuture.completedFuture(execute(request));
+        }
+        long start = stats.start(request.getCommand(), slowLog.isEnabled());
+        if(context.isReadOnly()){
+            stats.finish(request.getCommand(), start, true);
+            return CompletableFuture.completedFuture(readOnlyError());
+        }
+        try{
+            CompletableFuture<Response> response = startBlockingPop(request);
+            long nanos = stats.finish(request.getCommand(), start, response.isDone() && isError(response.join()));
+            if(nanos >= 0)
+                slowLog.record(request, nanos, clientAddress);
+            return response;
+        }catch (RuntimeException e){
+            stats.finish(request.getCommand(), start, true);
+            return CompletableFuture.completedFuture(failure(request.getCommand(), e));
+        }
+    }
+
+    /**
+     * Dispatches a request to the appropriate command handler and writes the response.
+     * The response is buffered; the caller flushes the stream once it has no more
+     * requests waiting, so a pipelined batch is answered with a single flush.
+     * A request that has to wait flushes the earlier responses first and then
+     * blocks the calling thread, without holding any lock, until it is answered.
+     *
+     * @param request The request to dispatch.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void dispatch(Request request) throws IOException {
+        if(mayBlock(request)){
+            CompletableFuture<Response> response = executeAsync(request);
+            if(!response.isDone()){
+                syncLog();
+                dataOutputStream.flush();
+                awaitWhileConnected(request, response);
+            }
+            messenger.writeObject(response.join(), dataOutputStream);
+            return;
+        }
+        messenger.writeObject(execute(request), dataOutputStream);
+    }
+
+    /**
+     * Sets how {@link #dispatch(Request)} tells, while a request waits, whether
+     * the client has gone away, so the wait can be given up.
+     *
+     * @param clientGone Returns true once the client has closed the connection.
+     */
+    public void setDisconnectCheck(BooleanSupplier clientGone) {
+        this.clientGone = clientGone;
+    }
+
+    /**
+     * Waits for a request to be answered, checking every {@value #WAIT_CHECK_MS} ms
+     * that the client is still there. If it has gone, the wait is cancelled so no
+     * element is handed to it, and an element that reached it first is pushed back.
+     *
+     * @throws EOFException If the client went away while waiting.
+     */
+    private void awaitWhileConnected(Request request, CompletableFuture<Response> response) throws IOException {
+        while(true){
+            try{
+                response.get(WAIT_CHECK_MS, TimeUnit.MILLISECONDS);
+                return;
+            }catch (ExecutionException e){
+                return;
+            }catch (TimeoutException e){
+                if(clientGone.getAsBoolean()){
+                    abandon(request, response);
+                    throw new EOFException("Client disconnected while waiting");
+                }
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                abandon(request, response);
+                throw new InterruptedIOException("Interrupted while waiting");
+            }
+        }
+    }
+
+    /**
+     * Gives up waiting for a blocking pop whose answer cannot be delivered,
+     * putting the element back on its end of the list if one was already taken.
+     */
+    private void abandon(Request request, CompletableFuture<Response> response) {
+        if(response.cancel(false))
+            return;
+        Response popped = response.join();
+        if(!popped.isSuccess())
+            return;
+        try{
+            if(request.getCommand() == Command.BLPOP)
+                store.lPush(request.getKey(), popped.getResponse());
+            else
+                store.rPush(request.getKey(), popped.getResponse());
+        }catch (IllegalStateException e){
+            System.out.println("Failed to return an undelivered element to " + request.getKey() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits until the changes made by the requests executed so far on this thread
+     * are as durable as the command log's fsync policy requires. Called before the
+     * responses are sent.
+     */
+    public void syncLog() {
+        CommandLog log = context.getCommandLog();
+        if(log != null)
+            log.sync();
     }
 
     private Response handleInvalidCommand() {
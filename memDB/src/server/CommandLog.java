@@ -0,0 +1,630 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Command;
+import protocol.FrameBuffer;
+import protocol.Request;
+import server.keyvalstore.ChangeListener;
+import server.keyvalstore.DataStore;
+import server.keyvalstore.HashType;
+import server.keyvalstore.ListType;
+import server.keyvalstore.NumberType;
+import server.keyvalstore.OffHeapStringType;
+import server.keyvalstore.SetType;
+import server.keyvalstore.StringType;
+import server.keyvalstore.Type;
+import server.keyvalstore.ZSetType;
+import utils.ObjectMessenger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log of every change made to the data store, replayed on
+ * startup to rebuild the data set.
+ * <p>
+ * Each change is recorded as the command that reproduces it, framed like a
+ * request on the wire and encoded with {@link BinaryCodec}. Commands only
+ * append to an in-memory buffer; a flusher thread writes whatever has
+ * accumulated in one go and, depending on the {@link Fsync} policy, forces it
+ * to disk. Under {@link Fsync#ALWAYS} a connection waits for its changes to be
+ * durable before it answers, so concurrent clients share each fsync.
+ * <p>
+ * The log is rewritten in the background once it has doubled in size since
+ * the last rewrite: the store is dumped segment by segment into a new file
+ * while changes to segments already dumped are also kept aside, then those are
+ * appended and the new file atomically replaces the old one.
+ * <p>
+ * When LOAD replaces the whole keyspace, the loaded entries are written to a
+ * new file and forced to disk before they are swapped in, and that file
+ * replaces the log at the moment of the swap. The log on disk therefore
+ * always matches either the old keyspace or the loaded one.
+ */
+public class CommandLog implements ChangeListener {
+    /**
+     * When appended changes are forced to disk.
+     */
+    public enum Fsync {
+        ALWAYS,     // Before the client is answered
+        EVERYSEC,   // At most once a second
+        NO          // When the operating system decides
+    }
+
+    /**
+     * The size the log must reach before it is rewritten automatically.
+     */
+    private static final long MIN_REWRITE_SIZE = 64L * 1024 * 1024;
+    private static final long FSYNC_INTERVAL_MS = 1000;
+    private static final int DUMP_CHUNK = 1024 * 1024;
+    /**
+     * The most fields of a hash written in one record when the log is rewritten.
+     */
+    private static final int DUMP_BATCH = 64;
+
+    private final Path path;
+    private final Fsync fsync;
+    private final DataStore store;
+    private final BinaryCodec codec = new BinaryCodec();
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Guards the buffers, sequence numbers and rewrite state.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    /**
+     * Held while the file is written or replaced, always taken before {@link #lock}.
+     */
+    private final ReentrantLock ioLock = new ReentrantLock();
+
+    private FrameBuffer buffer = new FrameBuffer();
+    private FrameBuffer spare = new FrameBuffer();
+    private FileChannel channel;
+    private long appendedSeq;
+    private long writtenSeq;
+    private long durableSeq;
+    private long size;
+    private long rewriteBaseSize;
+    private IOException failure;
+    private volatile boolean running = true;
+
+    private FrameBuffer rewriteBuffer;
+    private int dumpedUpTo = -1;
+    private boolean rewriteScheduled;
+    /**
+     * Counts the times the log was replaced by a loaded keyspace, so a rewrite
+     * started before does not put its dump of the old keyspace back.
+     */
+    private long replacements;
+    /**
+     * The file holding the keyspace about to be loaded, between {@link #onReplacing} and {@link #onReplaced()}.
+     */
+    private Path replacement;
+
+    private CommandLog(Path path, Fsync fsync, DataStore store) {
+        this.path = path;
+        this.fsync = fsync;
+        this.store = store;
+    }
+
+    /**
+     * Opens the log of a server, replays it into the server's store and starts
+     * recording the store's changes.
+     *
+     * @param context The server state; its configuration gives the fsync policy.
+     * @return The open log.
+     */
+    public static CommandLog open(ServerContext context) {
+        Path path = Path.of("data", "appendonly.aof");
+        CommandLog log = new CommandLog(path, context.getConfig().getAppendFsync(), context.getStore());
+        try {
+            Files.createDirectories(path.getParent());
+            int replayed = log.replay();
+            log.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            log.size = log.channel.size();
+            log.rewriteBaseSize = log.size;
+            System.out.println("Replayed " + replayed + " commands from " + path);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open command log " + path, e);
+        }
+        Thread flusher = new Thread(log::flushLoop, "command-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        context.getStore().setChangeListener(log);
+        return log;
+    }
+
+    /**
+     * Applies every complete record in the file to the store. A record cut
+     * short by a crash is dropped and the file truncated after the last good one.
+     * Expiry is turned off while replaying, so each record finds the key as it
+     * was when the record was written; keys whose time has since passed are
+     * removed at the end. The memory budget is not enforced either, since the
+     * changes fitted it when they were made.
+     */
+    private int replay() throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        int count = 0;
+        long good = 0;
+        byte[] payload = new byte[256];
+        store.setExpiring(false);
+        store.setLimitingMemory(false);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > ObjectMessenger.MAX_FRAME_LENGTH) {
+                        break;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(store, (Request) codec.decode(payload, 0, length));
+                good += 4 + length;
+                count++;
+            }
+        } finally {
+            store.setExpiring(true);
+            store.setLimitingMemory(true);
+            store.purgeExpired();
+        }
+        if (good < Files.size(path)) {
+            System.out.println("Truncating incomplete command log " + path + " to " + good + " bytes");
+            try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                truncate.truncate(good);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Applies a logged change to a store.
+     *
+     * @param store The store to change.
+     * @param change The command that reproduces the change.
+     * @throws IllegalStateException If the command is not one that changes are logged as.
+     */
+    static void apply(DataStore store, Request change) {
+        String key = change.getKey();
+        List<String> args = change.getArgs();
+        switch (change.getCommand()) {
+            case SET -> store.put(key, args.getFirst());
+            case DELETE -> store.delete(key);
+            case INCREMENT, DECREMENT -> {
+                try {
+                    if (change.getCommand() == Command.INCREMENT) {
+                        store.increment(key);
+                    } else {
+                        store.decrement(key);
+                    }
+                } catch (IllegalStateException e) {
+                    // Older logs also recorded increments of values that were not numbers, which changed nothing
+                }
+            }
+            case INCRBY -> store.incrBy(key, Long.parseLong(args.getFirst()));
+            case LPUSH -> store.lPush(key, args.getFirst());
+            case RPUSH -> store.rPush(key, args.getFirst());
+            case POP -> store.pop(key);
+            case LPOP -> store.lPop(key);
+            case LSET -> store.lSet(key, Long.parseLong(args.get(0)), args.get(1));
+            case LTRIM -> store.lTrim(key, Long.parseLong(args.get(0)), Long.parseLong(args.get(1)));
+            case EXPIREAT -> store.expireAt(key, Long.parseLong(args.getFirst()));
+            case PERSIST -> store.persist(key);
+            case HSET -> store.hSet(key, args);
+            case HDEL -> store.hDel(key, args);
+            case ZADD -> {
+                double[] scores = new double[args.size() / 2];
+                List<String> members = new ArrayList<>(scores.length);
+                for (int i = 0; i < scores.length; i++) {
+                    scores[i] = ZSetType.parseScore(args.get(2 * i));
+                    members.add(args.get(2 * i + 1));
+                }
+                store.zAdd(key, scores, members);
+            }
+            case ZREM -> store.zRem(key, args);
+            case SADD -> store.sAdd(key, args);
+            case SREM -> store.sRem(key, args);
+            default -> throw new IllegalStateException("Unexpected command in log: " + change.getCommand());
+        }
+    }
+
+    /**
+     * Appends a change to the log buffer.
+     *
+     * @param segment The index of the segment holding the key.
+     * @param change The command that reproduces the change.
+     */
+    @Override
+    public void onChange(int segment, Request change) {
+        lock.lock();
+        try {
+            int start = buffer.size();
+            buffer.writeInt(0);
+            codec.encode(change, buffer);
+            buffer.setInt(start, buffer.size() - start - 4);
+            if (rewriteBuffer != null && segment <= dumpedUpTo) {
+                rewriteBuffer.writeBytes(buffer.array(), start, buffer.size() - start);
+            }
+            lastAppended.get()[0] = ++appendedSeq;
+            if (start == 0) {
+                appended.signal();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every change made by the calling thread is durable, if the
+     * policy requires it. Called before the thread answers its clients.
+     */
+    public void sync() {
+        long seq = lastAppended.get()[0];
+        if (fsync != Fsync.ALWAYS || seq == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw new UncheckedIOException("Command log failed", failure);
+                }
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes accumulated changes, forcing them to disk as the policy requires,
+     * until the log is closed.
+     */
+    private void flushLoop() {
+        long lastFsync = System.currentTimeMillis();
+        while (running) {
+            try {
+                lock.lock();
+                try {
+                    if (buffer.size() == 0) {
+                        appended.await(FSYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                boolean force = fsync == Fsync.ALWAYS
+                        || (fsync == Fsync.EVERYSEC && System.currentTimeMillis() - lastFsync >= FSYNC_INTERVAL_MS);
+                if (flush(force) && force)
+                    lastFsync = System.currentTimeMillis();
+                if (shouldRewrite())
+                    rewrite();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    durable.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                System.out.println("Command log failed: " + e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered changes and optionally forces the file.
+     *
+     * @return True if anything was written or forced.
+     */
+    private boolean flush(boolean force) throws IOException {
+        ioLock.lock();
+        try {
+            long seq;
+            lock.lock();
+            try {
+                if (buffer.size() == 0 && writtenSeq == durableSeq) {
+                    return false;
+                }
+                FrameBuffer full = buffer;
+                buffer = spare;
+                spare = full;
+                seq = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer out = ByteBuffer.wrap(spare.array(), 0, spare.size());
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            long written = spare.size();
+            spare.reset();
+            if (force)
+                channel.force(false);
+            lock.lock();
+            try {
+                writtenSeq = seq;
+                size += written;
+                if (force) {
+                    durableSeq = seq;
+                    durable.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private boolean shouldRewrite() {
+        lock.lock();
+        try {
+            return rewriteBuffer == null && size >= Math.max(MIN_REWRITE_SIZE, 2 * rewriteBaseSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts rewriting the log in the background. If a rewrite is already
+     * running another one follows it, so the result reflects the store as of
+     * this call even if it was changed without going through the log.
+     *
+     * @return True if a rewrite was started, false if it was scheduled after the running one.
+     */
+    public boolean rewrite() {
+        lock.lock();
+        try {
+            if (rewriteBuffer != null) {
+                rewriteScheduled = true;
+                return false;
+            }
+            rewriteBuffer = new FrameBuffer();
+            dumpedUpTo = -1;
+        } finally {
+            lock.unlock();
+        }
+        Thread rewriter = new Thread(this::runRewrite, "command-log-rewrite");
+        rewriter.setDaemon(true);
+        rewriter.start();
+        return true;
+    }
+
+    private void runRewrite() {
+        Path temp = path.resolveSibling(path.getFileName() + ".rewrite");
+        boolean again;
+        long replacementsAtStart;
+        lock.lock();
+        replacementsAtStart = replacements;
+        lock.unlock();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FrameBuffer dump = new FrameBuffer();
+            for (int i = 0; i < store.segmentCount(); i++) {
+                int segment = i;
+                store.visitSegment(i, (key, value) -> dumpEntry(key, value, record -> appendRecord(dump, record)), () -> {
+                    lock.lock();
+                    dumpedUpTo = segment;
+                    lock.unlock();
+                });
+                if (dump.size() >= DUMP_CHUNK) {
+                    writeFully(out, dump);
+                }
+            }
+            writeFully(out, dump);
+            ioLock.lock();
+            lock.lock();
+            try {
+                if (replacements != replacementsAtStart) {
+                    Files.deleteIfExists(temp);
+                    System.out.println("Command log rewrite dropped, the keyspace was replaced while it ran");
+                    return;
+                }
+                writeFully(out, rewriteBuffer);
+                out.force(false);
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                reopen();
+            } finally {
+                rewriteBuffer = null;
+                again = rewriteScheduled;
+                rewriteScheduled = false;
+                lock.unlock();
+                ioLock.unlock();
+            }
+            System.out.println("Rewrote command log " + path + " to " + size + " bytes");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Command log rewrite failed: " + e);
+            lock.lock();
+            rewriteBuffer = null;
+            again = false;
+            rewriteScheduled = false;
+            lock.unlock();
+        }
+        if (again)
+            rewrite();
+    }
+
+    /**
+     * Switches to the file that just replaced the log, whose contents are
+     * already durable, dropping the changes not yet written to the old one.
+     * Must be called holding {@link #ioLock} and {@link #lock}.
+     */
+    private void reopen() throws IOException {
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        buffer.reset();
+        writtenSeq = appendedSeq;
+        durableSeq = appendedSeq;
+        durable.signalAll();
+        size = channel.size();
+        rewriteBaseSize = size;
+    }
+
+    /**
+     * Writes the entries of a keyspace about to replace the store's to a new
+     * file and forces it to disk, ready to take the place of the log.
+     *
+     * @param entries Passes every entry of the new keyspace to a visitor.
+     * @throws UncheckedIOException If the file cannot be written, in which case the keyspace must not be replaced.
+     */
+    @Override
+    public void onReplacing(Consumer<BiConsumer<String, Type>> entries) {
+        Path temp = path.resolveSibling(path.getFileName() + ".load");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            FrameBuffer dump = new FrameBuffer();
+            long now = System.currentTimeMillis();
+            try {
+                entries.accept((key, value) -> {
+                    if (value.isExpired(now)) {
+                        return;
+                    }
+                    dumpEntry(key, value, record -> appendRecord(dump, record));
+                    if (dump.size() >= DUMP_CHUNK) {
+                        try {
+                            writeFully(out, dump);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeFully(out, dump);
+            out.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write the loaded keyspace to " + temp, e);
+        }
+        lock.lock();
+        replacement = temp;
+        lock.unlock();
+    }
+
+    /**
+     * Puts the file written by {@link #onReplacing} in place of the log, at the
+     * moment the store swaps in the loaded keyspace.
+     */
+    @Override
+    public void onReplaced() {
+        ioLock.lock();
+        lock.lock();
+        try {
+            if (replacement == null) {
+                return;
+            }
+            Files.move(replacement, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            replacement = null;
+            replacements++;
+            reopen();
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Failed to replace command log " + path, e);
+        } finally {
+            lock.unlock();
+            ioLock.unlock();
+        }
+        System.out.println("Replaced command log " + path + " with the loaded keyspace, " + size + " bytes");
+    }
+
+    /**
+     * Passes on the commands that recreate one entry. Each command must be used
+     * before the next is passed, as the same argument list may be reused.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @param out Receives each command.
+     */
+    static void dumpEntry(String key, Type value, Consumer<Request> out) {
+        if (value instanceof StringType || value instanceof OffHeapStringType || value instanceof NumberType) {
+            out.accept(new Request(Command.SET, key, List.of(value.get())));
+        } else if (value instanceof ListType list) {
+            for (String v : list.values()) {
+                out.accept(new Request(Command.RPUSH, key, List.of(v)));
+            }
+        } else if (value instanceof HashType hash) {
+            List<String> entries = hash.entries();
+            for (int i = 0; i < entries.size(); i += 2 * DUMP_BATCH) {
+                out.accept(new Request(Command.HSET, key, entries.subList(i, Math.min(entries.size(), i + 2 * DUMP_BATCH))));
+            }
+        } else if (value instanceof ZSetType zset) {
+            List<String> batch = new ArrayList<>(2 * DUMP_BATCH);
+            zset.forEach((member, score) -> {
+                batch.add(ZSetType.formatScore(score));
+                batch.add(member);
+                if (batch.size() == 2 * DUMP_BATCH) {
+                    out.accept(new Request(Command.ZADD, key, batch));
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                out.accept(new Request(Command.ZADD, key, batch));
+            }
+        } else if (value instanceof SetType set) {
+            List<String> members = set.members();
+            for (int i = 0; i < members.size(); i += DUMP_BATCH) {
+                out.accept(new Request(Command.SADD, key, members.subList(i, Math.min(members.size(), i + DUMP_BATCH))));
+            }
+        }
+        if (value.getExpiry() != -1) {
+            out.accept(new Request(Command.EXPIREAT, key, List.of(Long.toString(value.getExpiry()))));
+        }
+    }
+
+    private void appendRecord(FrameBuffer out, Request record) {
+        try {
+            int start = out.size();
+            out.writeInt(0);
+            codec.encode(record, out);
+            out.setInt(start, out.size() - start - 4);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeFully(FileChannel out, FrameBuffer data) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(data.array(), 0, data.size());
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+        data.reset();
+    }
+
+    /**
+     * Stops recording changes, writes and forces what is buffered, and closes the file.
+     */
+    public void close() {
+        store.setChangeListener(null);
+        running = false;
+        try {
+            flush(true);
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close command log", e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package server;
+
+import protocol.Command;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the calls, errors and latency of every command the server executes.
+ * <p>
+ * The counters are striped: each thread records into the stripe its id maps
+ * to, and there are at least twice as many stripes as processors, so threads
+ * rarely update the same counters and recording a command costs a few
+ * uncontended atomic increments. The stripes are only added up when the
+ * statistics are read.
+ * <p>
+ * Every call is counted, but unless the caller needs every call timed, only
+ * one in four per stripe is, as reading the clock twice costs more than the
+ * counting itself. The timed calls go into
+ * a latency histogram per command whose buckets grow with the value, every
+ * power of two being split into eight, so percentiles are kept to within 12.5%.
+ */
+public class CommandStats {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    /**
+     * Latencies are capped just below 2^40 nanoseconds, about 18 minutes.
+     */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = LINEAR_LIMIT + (40 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+    private static final int CALLS = 0;
+    private static final int ERRORS = 1;
+    private static final int NANOS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int STRIDE = FIRST_BUCKET + BUCKETS;
+    /**
+     * One in how many calls is timed, minus one.
+     */
+    private static final long SAMPLE_MASK = 3;
+    /**
+     * Returned by {@link #start(Command, boolean)} for a call that is not timed.
+     */
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    private static final Command[] COMMANDS = Command.values();
+    /**
+     * The row counting requests whose command was not recognised.
+     */
+    private static final int UNKNOWN = COMMANDS.length;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    /**
+     * Constructs empty statistics with stripes for the processors of this machine.
+     */
+    public CommandStats() {
+        int wanted = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        int count = Integer.highestOneBit(Math.max(1, wanted - 1) << 1);
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray((COMMANDS.length + 1) * STRIDE);
+        }
+        mask = count - 1;
+    }
+
+    private static int bucketFor(long nanos) {
+        long value = Math.min(Math.max(0, nanos), MAX_VALUE);
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the largest value counted in a bucket.
+     */
+    private static long highestIn(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long top = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    private AtomicLongArray stripe() {
+        return stripes[(int) Thread.currentThread().threadId() & mask];
+    }
+
+    private static int row(Command command) {
+        return (command != null ? command.ordinal() : UNKNOWN) * STRIDE;
+    }
+
+    /**
+     * Counts a command about to be executed and decides whether to time it.
+     *
+     * @param command The command, or null if it was not recognised.
+     * @param timed True to time the command whether or not it is sampled.
+     * @return The value to pass to {@link #finish(Command, long, boolean)}.
+     */
+    public long start(Command command, boolean timed) {
+        if ((stripe().getAndIncrement(row(command) + CALLS) & SAMPLE_MASK) == 0 || timed)
+            return System.nanoTime();
+        return NOT_TIMED;
+    }
+
+    /**
+     * Records the outcome of a command counted by {@link #start(Command, boolean)}.
+     *
+     * @param command The command, or null if it was not recognised.
+     * @param start The value returned by {@link #start(Command, boolean)}.
+     * @param error True if it failed with an error.
+     * @return How long the command took in nanoseconds, or -1 if it was not timed.
+     */
+    public long finish(Command command, long start, boolean error) {
+        if (!error && start == NOT_TIMED)
+            return -1;
+        AtomicLongArray stripe = stripe();
+        int row = row(command);
+        if (error)
+            stripe.getAndIncrement(row + ERRORS);
+        if (start == NOT_TIMED)
+            return -1;
+        long nanos = System.nanoTime() - start;
+        stripe.getAndAdd(row + NANOS, nanos);
+        stripe.getAndIncrement(row + FIRST_BUCKET + bucketFor(nanos));
+        return nanos;
+    }
+
+    /**
+     * Adds up one counter of a row across the stripes.
+     */
+    private long sum(int index) {
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            total += stripe.get(index);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of commands executed so far.
+     *
+     * @return The number of calls of every command together.
+     */
+    public long totalCalls() {
+        long total = 0;
+        for (int row = 0; row <= UNKNOWN; row++) {
+            total += sum(row * STRIDE + CALLS);
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of commands that failed with an error so far.
+     *
+     * @return The number of errors of every command together.
+     */
+    public long totalErrors() {
+        long total = 0;
+        for (int row = 0; row <= UNKNOWN; row++) {
+            total += sum(row * STRIDE + ERRORS);
+        }
+        return total;
+    }
+
+    /**
+     * Describes every command called so far, one line each, in the form
+     * {@code cmdstat_get:calls=10,errors=0,usec_per_call=1.25,p50_usec=1.0,p99_usec=3.0,p99.9_usec=7.5}.
+     * The latencies are those of the timed calls.
+     *
+     * @return The lines, in command order.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        long[] buckets = new long[BUCKETS];
+        for (int row = 0; row <= UNKNOWN; row++) {
+            int base = row * STRIDE;
+            long calls = sum(base + CALLS);
+            if (calls == 0)
+                continue;
+            long timed = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = sum(base + FIRST_BUCKET + b);
+                timed += buckets[b];
+            }
+            String name = row == UNKNOWN ? "unknown" : COMMANDS[row].name().toLowerCase();
+            lines.add(String.format("cmdstat_%s:calls=%d,errors=%d,usec_per_call=%.2f,p50_usec=%.1f,p99_usec=%.1f,p99.9_usec=%.1f",
+                    name, calls, sum(base + ERRORS), timed > 0 ? sum(base + NANOS) / 1e3 / timed : 0,
+                    percentile(buckets, 50) / 1e3, percentile(buckets, 99) / 1e3, percentile(buckets, 99.9) / 1e3));
+        }
+        return lines;
+    }
+
+    /**
+     * Gets the value at or below which the given percentage of the counted
+     * values fall, rounded up to the end of its bucket.
+     */
+    private static long percentile(long[] buckets, double percentile) {
+        long count = 0;
+        for (long c : buckets) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int b = 0; b < buckets.length; b++) {
+            seen += buckets[b];
+            if (seen >= rank) {
+                return highestIn(b);
+            }
+        }
+        return MAX_VALUE;
+    }
+}
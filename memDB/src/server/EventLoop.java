@@ -0,0 +1,193 @@
+package server;
+
+import utils.ObjectMessenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread serving many non-blocking client connections.
+ * <p>
+ * Reads and writes go through scratch buffers owned by the loop; a connection
+ * only keeps a buffer of its own while it holds a partial request or a
+ * response the socket could not take yet, so idle connections cost almost
+ * no memory.
+ */
+class EventLoop implements Runnable {
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ServerContext context;
+    private final CommandDispatcher dispatcher;
+    private final ObjectMessenger messenger;
+    private final Thread thread;
+    private ByteBuffer readScratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private ByteBuffer writeScratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Constructs an event loop executing commands against the server's store.
+     *
+     * @param name The name of the loop thread.
+     * @param context The state shared by all connections.
+     * @throws IOException If the selector cannot be opened.
+     */
+    EventLoop(String name, ServerContext context) throws IOException {
+        selector = Selector.open();
+        this.context = context;
+        messenger = new ObjectMessenger(context.getConfig().getCodec());
+        dispatcher = new CommandDispatcher(context);
+        thread = new Thread(this, name);
+    }
+
+    /**
+     * Starts the loop thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted channel to this loop.
+     *
+     * @param channel The accepted channel.
+     */
+    void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on the loop thread, such as answering a request that waited
+     * for another client.
+     *
+     * @param task The task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Selects ready channels and serves them until the loop is stopped.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                registerPending();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            conn.onReadable();
+                        if (key.isValid() && key.isWritable())
+                            conn.onWritable();
+                    } catch (IOException | RuntimeException e) {
+                        conn.close();
+                    }
+                }
+            } catch (IOException e) {
+                stop();
+            }
+        }
+        closeAll();
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, channel, key));
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection conn)
+                conn.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Stops the loop and closes its connections.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    ServerContext context() {
+        return context;
+    }
+
+    CommandDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    ObjectMessenger messenger() {
+        return messenger;
+    }
+
+    /**
+     * Gets the read scratch buffer, cleared and at least the given size.
+     */
+    ByteBuffer readScratch(int capacity) {
+        if (readScratch.capacity() < capacity)
+            readScratch = ByteBuffer.allocate(Math.max(capacity, readScratch.capacity() * 2));
+        readScratch.clear();
+        return readScratch;
+    }
+
+    /**
+     * Gets the write scratch buffer, cleared.
+     */
+    ByteBuffer writeScratch() {
+        writeScratch.clear();
+        return writeScratch;
+    }
+
+    /**
+     * Replaces the write scratch buffer with a larger copy of it.
+     */
+    ByteBuffer growWriteScratch(int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(writeScratch.capacity() * 2, writeScratch.position() + needed));
+        writeScratch.flip();
+        bigger.put(writeScratch);
+        writeScratch = bigger;
+        return writeScratch;
+    }
+}
@@ -0,0 +1,272 @@
+package server;
+
+import protocol.Request;
+import protocol.Response;
+import utils.ObjectMessenger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking client connection served by an {@link EventLoop}.
+ * <p>
+ * Every complete request frame that has arrived is executed in order and the
+ * responses are written back together. While the socket cannot take all of
+ * the output, the connection stops reading so a slow client cannot make the
+ * server buffer without bound.
+ * <p>
+ * A request that has to wait for another client, such as a blocking pop on an
+ * empty list, parks the connection rather than the loop: the requests after it
+ * are held back, and once its future is answered the loop resumes with them.
+ * While parked the connection keeps reading, up to a limit, so it notices a
+ * client that goes away and gives up its wait.
+ */
+class NioConnection {
+    /**
+     * The most request bytes held back while the connection is parked before it stops reading.
+     */
+    private static final int PARKED_READ_LIMIT = 64 * 1024;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String address;
+    /**
+     * Bytes of an incomplete request frame, in write mode, or null.
+     */
+    private ByteBuffer pendingIn;
+    /**
+     * Response bytes the socket has not taken yet, in read mode, or null.
+     */
+    private ByteBuffer pendingOut;
+    /**
+     * The answer to a request that is waiting for another client, or null.
+     */
+    private CompletableFuture<Response> parked;
+    private boolean closed;
+
+    /**
+     * Constructs a connection for a channel registered with the given loop.
+     *
+     * @param loop The event loop serving the connection.
+     * @param channel The client channel.
+     * @param key The selection key of the channel.
+     */
+    NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.address = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+        loop.context().connectionOpened();
+    }
+
+    /**
+     * Reads what is available, executes every complete request and writes the responses.
+     *
+     * @throws IOException If the channel fails or a frame is invalid.
+     */
+    void onReadable() throws IOException {
+        if (parked != null) {
+            ByteBuffer in = loop.readScratch(0);
+            if (channel.read(in) == -1) {
+                close();
+                return;
+            }
+            in.flip();
+            holdBack(in);
+            updateInterest();
+            return;
+        }
+        ByteBuffer in;
+        if (pendingIn != null) {
+            pendingIn.flip();
+            int required = pendingIn.remaining() >= 4 ? 4 + pendingIn.getInt(0) : 0;
+            if (required < 0 || required > 4 + ObjectMessenger.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + (required - 4));
+            }
+            in = loop.readScratch(required);
+            in.put(pendingIn);
+            pendingIn = null;
+        } else {
+            in = loop.readScratch(0);
+        }
+        if (channel.read(in) == -1) {
+            close();
+            return;
+        }
+        in.flip();
+        serve(in, loop.writeScratch());
+    }
+
+    /**
+     * Answers the parked request and serves the requests held back behind it.
+     */
+    private void resume(Response response) {
+        if (!key.isValid()) {
+            return;
+        }
+        parked = null;
+        try {
+            ByteBuffer out = append(loop.writeScratch(), response);
+            ByteBuffer in;
+            if (pendingIn != null) {
+                pendingIn.flip();
+                in = loop.readScratch(pendingIn.remaining());
+                in.put(pendingIn);
+                pendingIn = null;
+            } else {
+                in = loop.readScratch(0);
+            }
+            in.flip();
+            serve(in, out);
+            updateInterest();
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    /**
+     * Executes every complete request in the input until one has to wait, then
+     * writes the responses and keeps what is left of the input.
+     */
+    private void serve(ByteBuffer in, ByteBuffer out) throws IOException {
+        ObjectMessenger messenger = loop.messenger();
+        CommandDispatcher dispatcher = loop.dispatcher();
+        dispatcher.setClientAddress(address);
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 0 || length > ObjectMessenger.MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            int start = in.position() + 4;
+            Request request = (Request) messenger.decode(in.array(), start, length);
+            in.position(start + length);
+            if (CommandDispatcher.mayBlock(request)) {
+                CompletableFuture<Response> response = dispatcher.executeAsync(request);
+                if (!response.isDone()) {
+                    parked = response;
+                    break;
+                }
+                out = append(out, response.join());
+            } else {
+                out = append(out, dispatcher.execute(request));
+            }
+        }
+        holdBack(in);
+        dispatcher.syncLog();
+        out.flip();
+        write(out);
+        if (parked != null) {
+            updateInterest();
+            CompletableFuture<Response> response = parked;
+            response.thenAccept(r -> loop.execute(() -> {
+                if (parked == response)
+                    resume(r);
+            }));
+        }
+    }
+
+    /**
+     * Keeps the unserved bytes of the input until they can be served.
+     */
+    private void holdBack(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return;
+        }
+        if (pendingIn == null) {
+            pendingIn = ByteBuffer.allocate(in.remaining());
+        } else if (pendingIn.remaining() < in.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(pendingIn.position() + in.remaining());
+            pendingIn.flip();
+            bigger.put(pendingIn);
+            pendingIn = bigger;
+        }
+        pendingIn.put(in);
+    }
+
+    /**
+     * Reads while nothing is waiting to be written, unless the connection is
+     * parked and already holds back as much input as it may.
+     */
+    private void updateInterest() {
+        if (pendingOut != null) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (parked != null && pendingIn != null && pendingIn.position() >= PARKED_READ_LIMIT) {
+            key.interestOps(0);
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes buffered output once the socket can take more.
+     *
+     * @throws IOException If the channel fails.
+     */
+    void onWritable() throws IOException {
+        channel.write(pendingOut);
+        if (!pendingOut.hasRemaining()) {
+            pendingOut = null;
+            updateInterest();
+        }
+    }
+
+    private ByteBuffer append(ByteBuffer out, Response response) throws IOException {
+        ObjectMessenger messenger = loop.messenger();
+        int length = messenger.encode(response);
+        if (out.remaining() < 4 + length) {
+            out = loop.growWriteScratch(4 + length);
+        }
+        out.putInt(length);
+        out.put(messenger.encodedBytes(), 0, length);
+        return out;
+    }
+
+    private void write(ByteBuffer out) throws IOException {
+        if (!out.hasRemaining()) {
+            return;
+        }
+        if (pendingOut == null) {
+            channel.write(out);
+            if (!out.hasRemaining()) {
+                return;
+            }
+            pendingOut = ByteBuffer.allocate(out.remaining());
+        } else {
+            ByteBuffer bigger = ByteBuffer.allocate(pendingOut.remaining() + out.remaining());
+            bigger.put(pendingOut);
+            pendingOut = bigger;
+        }
+        pendingOut.put(out);
+        pendingOut.flip();
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Closes the connection and releases its buffers.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        loop.context().connectionClosed();
+        key.cancel();
+        if (parked != null) {
+            parked.cancel(false);
+            parked = null;
+        }
+        pendingIn = null;
+        pendingOut = null;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A non-blocking server that accepts connections and spreads them across a
+ * fixed number of selector event loops.
+ */
+public class NioServer {
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private int next;
+
+    /**
+     * Constructs a server that listens on the configured port.
+     *
+     * @param context The state shared by all connections, whose options give the
+     *                port, backlog, number of event loops and codec.
+     */
+    public NioServer(ServerContext context) {
+        ServerConfig config = context.getConfig();
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(config.getPort()), config.getBacklog());
+            loops = new EventLoop[Math.max(1, config.getEventLoops())];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop("event-loop-" + i, context);
+            }
+            System.out.println("Server started " + server.getLocalAddress() + " with " + loops.length + " event loops");
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to start server");
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread,
+     * handing them to the loops in turn.
+     */
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        try {
+            while (server.isOpen()) {
+                SocketChannel conn = server.accept();
+                loops[next].register(conn);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            stop();
+        }
+    }
+
+    /**
+     * Stops the server, closing the listening channel and every connection.
+     */
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
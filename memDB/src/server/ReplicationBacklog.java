@@ -0,0 +1,148 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent part of a leader's replication stream, kept in a ring of
+ * fixed size so followers can read it at their own pace and resume after a
+ * short disconnect.
+ * <p>
+ * Every byte of the stream has an offset, counted from the first byte the
+ * leader ever appended. The ring holds the bytes from {@link #startOffset()}
+ * up to {@link #endOffset()}; older bytes are overwritten. A follower whose
+ * next offset is still in the ring carries on from there, one whose offset
+ * has been overwritten needs a full sync.
+ */
+class ReplicationBacklog {
+    private final byte[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private long end;
+
+    /**
+     * Constructs an empty backlog.
+     *
+     * @param size The number of bytes of the stream to keep.
+     */
+    ReplicationBacklog(int size) {
+        ring = new byte[size];
+    }
+
+    /**
+     * Appends bytes to the stream and wakes the readers waiting for them.
+     *
+     * @param data The bytes to append.
+     * @param off The offset of the first byte in the array.
+     * @param len The number of bytes.
+     */
+    void append(byte[] data, int off, int len) {
+        lock.lock();
+        try {
+            if (len > ring.length) {
+                off += len - ring.length;
+                end += len - ring.length;
+                len = ring.length;
+            }
+            int at = (int) (end % ring.length);
+            int first = Math.min(len, ring.length - at);
+            System.arraycopy(data, off, ring, at, first);
+            System.arraycopy(data, off + first, ring, 0, len - first);
+            end += len;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the bytes of the stream from an offset, waiting for some if there are none yet.
+     *
+     * @param offset The offset of the first byte to copy.
+     * @param out Receives the bytes.
+     * @param timeoutMillis How long to wait for bytes to be appended.
+     * @return The number of bytes copied, 0 if none were appended in time, or
+     *         -1 if the bytes at the offset have been overwritten.
+     * @throws IllegalArgumentException If the offset is past the end of the stream.
+     */
+    int read(long offset, byte[] out, long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            if (offset > end) {
+                throw new IllegalArgumentException("Offset " + offset + " is past the end of the stream " + end);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (offset == end) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return 0;
+                }
+                appended.awaitNanos(remaining);
+            }
+            if (offset < startOffset()) {
+                return -1;
+            }
+            int len = (int) Math.min(out.length, end - offset);
+            int at = (int) (offset % ring.length);
+            int first = Math.min(len, ring.length - at);
+            System.arraycopy(ring, at, out, 0, first);
+            System.arraycopy(ring, 0, out, first, len - first);
+            return len;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether the stream can still be read from an offset.
+     *
+     * @param offset The offset.
+     * @return True if every byte from the offset to the end is in the ring.
+     */
+    boolean contains(long offset) {
+        lock.lock();
+        try {
+            return offset >= startOffset() && offset <= end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the offset of the oldest byte still in the ring.
+     *
+     * @return The offset.
+     */
+    long startOffset() {
+        lock.lock();
+        try {
+            return Math.max(0, end - ring.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the offset the next appended byte will have.
+     *
+     * @return The offset, which is also the number of bytes ever appended.
+     */
+    long endOffset() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of bytes of the stream the ring keeps.
+     *
+     * @return The size in bytes.
+     */
+    int size() {
+        return ring.length;
+    }
+}
@@ -0,0 +1,214 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Request;
+import server.keyvalstore.DataStore;
+import utils.ObjectMessenger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the data store of a follower a copy of a leader's, by applying the
+ * stream the leader sends on its replication port.
+ * <p>
+ * The follower remembers the replication id and offset it has reached. After
+ * losing the connection it reconnects and asks to continue from there, which
+ * the leader allows while the offset is still in its backlog; otherwise the
+ * leader sends a full sync, for which the store is emptied and refilled. The
+ * protocol is described in {@link ReplicationLeader}. Once synced, a leader
+ * that sends nothing, not even a heartbeat, for a few seconds is taken to be gone.
+ * <p>
+ * A follower does not enforce its own memory budget or expire keys by its own
+ * clock: every change the leader sends is applied to the same values the
+ * leader changed, and keys are only removed when the leader's deletes arrive.
+ * Reads still hide keys whose time to live has passed.
+ */
+public class ReplicationFollower {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 5 * ReplicationLeader.HEARTBEAT_MS;
+    /**
+     * How long to wait for the records of a full sync, which may start only once
+     * a snapshot already being saved by the leader is done.
+     */
+    private static final int SYNC_TIMEOUT_MS = 60_000;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private final DataStore store;
+    private final ServerContext context;
+    private final BinaryCodec codec = new BinaryCodec();
+    private volatile String replicationId = "?";
+    private volatile long offset = -1;
+    private volatile boolean linkUp;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private volatile long fullSyncs;
+    private volatile long partialSyncs;
+
+    private ReplicationFollower(ServerContext context) {
+        this.context = context;
+        this.store = context.getStore();
+        this.host = context.getConfig().getReplicaOfHost();
+        this.port = context.getConfig().getReplicaOfPort();
+    }
+
+    /**
+     * Starts following the leader named by the configuration of a server.
+     *
+     * @param context The server state.
+     * @return The running follower.
+     */
+    public static ReplicationFollower open(ServerContext context) {
+        ReplicationFollower follower = new ReplicationFollower(context);
+        // The leader expires and evicts keys and sends the deletes
+        follower.store.setLimitingMemory(false);
+        follower.store.setExpiring(false);
+        Thread thread = new Thread(follower::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+        return follower;
+    }
+
+    /**
+     * Follows the leader, reconnecting after a short delay whenever the connection is lost.
+     */
+    private void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Lost connection to leader " + host + ":" + port + ": " + e);
+                }
+            } finally {
+                linkUp = false;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        try (Socket s = new Socket()) {
+            socket = s;
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setSoTimeout(SYNC_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            out.writeUTF(replicationId);
+            out.writeLong(offset);
+            out.flush();
+            byte[] payload = new byte[256];
+            byte reply = in.readByte();
+            if (reply == ReplicationLeader.FULL_SYNC) {
+                // Until the sync completes the store matches no offset of any leader
+                replicationId = "?";
+                offset = -1;
+                long start = System.nanoTime();
+                store.clear();
+                int records = 0;
+                while (true) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    payload = readRecord(in, length, payload);
+                    apply(payload, length);
+                    records++;
+                }
+                String id = in.readUTF();
+                long at = in.readLong();
+                replicationId = id;
+                offset = at;
+                fullSyncs++;
+                CommandLog log = context.getCommandLog();
+                if (log != null) {
+                    log.rewrite();
+                }
+                System.out.println("Full sync from leader " + host + ":" + port + ": " + records + " records up to offset " + at
+                        + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            } else if (reply == ReplicationLeader.CONTINUE) {
+                partialSyncs++;
+                System.out.println("Continuing replication from leader " + host + ":" + port + " at offset " + offset);
+            } else {
+                throw new IOException("Unexpected replication reply " + reply);
+            }
+            linkUp = true;
+            s.setSoTimeout(READ_TIMEOUT_MS);
+            while (running) {
+                int length = in.readInt();
+                if (length == 0) {
+                    continue;
+                }
+                payload = readRecord(in, length, payload);
+                apply(payload, length);
+                offset += 4 + length;
+            }
+        }
+    }
+
+    private static byte[] readRecord(DataInputStream in, int length, byte[] payload) throws IOException {
+        if (length > ObjectMessenger.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid replication record length " + length);
+        }
+        if (payload.length < length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        in.readFully(payload, 0, length);
+        return payload;
+    }
+
+    /**
+     * Applies one record to the store. A record the store refuses is reported
+     * and skipped so the stream goes on.
+     */
+    private void apply(byte[] payload, int length) throws IOException {
+        Request change = (Request) codec.decode(payload, 0, length);
+        try {
+            CommandLog.apply(store, change);
+        } catch (IllegalStateException e) {
+            System.out.println("Failed to apply replicated " + change.getCommand() + " " + change.getKey() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Describes the follower and its link to the leader for INFO.
+     *
+     * @return Lines of {@code name:value} pairs.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("leader_host:" + host);
+        lines.add("leader_port:" + port);
+        lines.add("leader_link_status:" + (linkUp ? "up" : "down"));
+        lines.add("replication_id:" + replicationId);
+        lines.add("replication_offset:" + offset);
+        lines.add("full_syncs:" + fullSyncs);
+        lines.add("partial_syncs:" + partialSyncs);
+        return lines;
+    }
+
+    /**
+     * Stops following the leader.
+     */
+    public void close() {
+        running = false;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close connection to leader: " + e);
+            }
+        }
+    }
+}
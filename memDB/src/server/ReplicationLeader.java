@@ -0,0 +1,438 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.FrameBuffer;
+import protocol.Request;
+import server.keyvalstore.ChangeListener;
+import server.keyvalstore.DataStore;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends every change made to the data store to followers connected on the
+ * replication port.
+ * <p>
+ * Each change is framed and encoded like a command log record and appended to
+ * a {@link ReplicationBacklog}, whose offsets number the bytes of the stream.
+ * A connecting follower names the replication id and offset it has reached.
+ * If the id is this leader's and the offset is still in the backlog, it is
+ * sent the stream from there. Otherwise it gets a full sync: the store is
+ * visited at one point in time with {@link DataStore#forEachAtSnapshot(Runnable, java.util.function.BiConsumer)},
+ * while clients keep writing, and spooled to a temporary file as the records
+ * that recreate each entry. The file is sent once the visit is over, so a slow
+ * follower does not hold up saves and other syncs, followed by the offset of
+ * the stream at that point, from which the follower then carries on. Every
+ * follower is served by its own thread reading the backlog at its own pace;
+ * one that falls so far behind that its next bytes have been overwritten is
+ * disconnected and comes back for a full sync. One whose socket accepts no
+ * bytes for {@link #REPL_TIMEOUT_MS} is disconnected as well.
+ * When the whole keyspace is replaced, by LOAD, the leader takes a new
+ * replication id and disconnects every follower, so none carries on from an
+ * offset of the old keyspace and all come back for a full sync.
+ * <p>
+ * The handshake and the stream, in order:
+ * <pre>
+ *   follower: UTF replication id ("?" if none), long offset (-1 if none)
+ *   leader:   byte 'C'                                                   to continue, or
+ *             byte 'F', records, int -1, UTF replication id, long offset   for a full sync
+ *   leader:   records from the offset, and int 0 as a heartbeat once a second when idle
+ * </pre>
+ * A record is an int length followed by a request encoded with {@link BinaryCodec}.
+ */
+public class ReplicationLeader implements ChangeListener {
+    static final byte CONTINUE = 'C';
+    static final byte FULL_SYNC = 'F';
+    /**
+     * How often an idle leader tells its followers it is still there, in milliseconds.
+     */
+    static final int HEARTBEAT_MS = 1000;
+    /**
+     * How long a write to a follower may block, or a connecting follower take
+     * to send its handshake, before it is disconnected, in milliseconds.
+     */
+    static final int REPL_TIMEOUT_MS = 60_000;
+    private static final int SEND_CHUNK = 64 * 1024;
+
+    /**
+     * A connected follower, as reported by INFO.
+     */
+    private static final class Follower {
+        private final String address;
+        private final Socket socket;
+        private volatile String state = "sync";
+        private volatile long offset;
+        /**
+         * When the write in progress to the socket started, in epoch milliseconds, or 0 if none is.
+         */
+        private volatile long writingSince;
+
+        private Follower(Socket socket) {
+            this.socket = socket;
+            this.address = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+    }
+
+    /**
+     * Notes on its follower when each write to the socket starts and ends, so a
+     * follower that stopped reading can be told from one that is merely busy.
+     */
+    private static final class WatchedOutputStream extends FilterOutputStream {
+        private final Follower follower;
+
+        private WatchedOutputStream(OutputStream out, Follower follower) {
+            super(out);
+            this.follower = follower;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            follower.writingSince = System.currentTimeMillis();
+            try {
+                out.write(b);
+            } finally {
+                follower.writingSince = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            follower.writingSince = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } finally {
+                follower.writingSince = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            follower.writingSince = System.currentTimeMillis();
+            try {
+                out.flush();
+            } finally {
+                follower.writingSince = 0;
+            }
+        }
+    }
+
+    private final DataStore store;
+    private final ReplicationBacklog backlog;
+    private volatile String replicationId;
+    private final ServerSocket server;
+    private final BinaryCodec codec = new BinaryCodec();
+    private final FrameBuffer frame = new FrameBuffer();
+    /**
+     * Guards {@link #frame}, keeps changes in the order they are appended to the
+     * backlog and orders a change of replication id against the handshakes.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final LongAdder fullSyncs = new LongAdder();
+    private final LongAdder partialSyncs = new LongAdder();
+    private volatile boolean running = true;
+
+    private ReplicationLeader(DataStore store, int backlogSize, ServerSocket server) {
+        this.store = store;
+        this.backlog = new ReplicationBacklog(backlogSize);
+        this.server = server;
+        this.replicationId = newReplicationId();
+    }
+
+    private static String newReplicationId() {
+        byte[] id = new byte[20];
+        ThreadLocalRandom.current().nextBytes(id);
+        return HexFormat.of().formatHex(id);
+    }
+
+    /**
+     * Starts accepting followers on the replication port of a server and
+     * recording the changes to its store, after those of its command log.
+     *
+     * @param context The server state; its configuration gives the port and the backlog size.
+     * @return The running leader.
+     */
+    public static ReplicationLeader open(ServerContext context) {
+        ServerConfig config = context.getConfig();
+        ServerSocket server;
+        try {
+            server = new ServerSocket(config.getReplPort());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to listen for followers on port " + config.getReplPort(), e);
+        }
+        ReplicationLeader leader = new ReplicationLeader(context.getStore(), config.getReplBacklogSize(), server);
+        CommandLog log = context.getCommandLog();
+        context.getStore().setChangeListener(log != null ? log.andThen(leader) : leader);
+        Thread acceptor = new Thread(leader::acceptLoop, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread watchdog = new Thread(leader::watchLoop, "replication-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        System.out.println("Replication listening on " + server.getLocalSocketAddress() + " with id " + leader.replicationId);
+        return leader;
+    }
+
+    /**
+     * Appends a change to the backlog.
+     *
+     * @param segment The index of the segment holding the key.
+     * @param change The command that reproduces the change.
+     */
+    @Override
+    public void onChange(int segment, Request change) {
+        lock.lock();
+        try {
+            frame.reset();
+            frame.writeInt(0);
+            codec.encode(change, frame);
+            frame.setInt(0, frame.size() - 4);
+            backlog.append(frame.array(), 0, frame.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a new replication id and disconnects every follower, since the
+     * stream no longer leads from their data to the store's.
+     */
+    @Override
+    public void onReplaced() {
+        lock.lock();
+        try {
+            replicationId = newReplicationId();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to disconnect a follower: " + e);
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Keyspace replaced, new replication id " + replicationId);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Replication accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Disconnects every follower whose current write has been blocked for longer
+     * than {@link #REPL_TIMEOUT_MS}, which fails the write and ends its thread.
+     */
+    private void watchLoop() {
+        while (running) {
+            try {
+                Thread.sleep(HEARTBEAT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Follower follower : followers) {
+                long since = follower.writingSince;
+                if (since != 0 && now - since > REPL_TIMEOUT_MS) {
+                    System.out.println("Follower " + follower.address + " stopped reading for " + (now - since) + " ms, disconnecting");
+                    try {
+                        follower.socket.close();
+                    } catch (IOException e) {
+                        System.out.println("Failed to disconnect a follower: " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers the handshake of a follower and sends it the stream until it disconnects.
+     */
+    private void serve(Socket socket) {
+        Follower follower = new Follower(socket);
+        sockets.add(socket);
+        followers.add(follower);
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(REPL_TIMEOUT_MS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new WatchedOutputStream(socket.getOutputStream(), follower), SEND_CHUNK));
+            String id = in.readUTF();
+            long offset = in.readLong();
+            long next;
+            if (canContinue(id, offset)) {
+                out.writeByte(CONTINUE);
+                next = offset;
+                partialSyncs.increment();
+                System.out.println("Follower " + follower.address + " continuing from offset " + offset);
+            } else {
+                out.writeByte(FULL_SYNC);
+                long start = System.nanoTime();
+                long[] sent = new long[1];
+                next = sendSnapshot(out, sent);
+                fullSyncs.increment();
+                System.out.println("Full sync of " + follower.address + ": " + sent[0] + " records up to offset " + next
+                        + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            }
+            out.flush();
+            follower.state = "online";
+            stream(out, next, follower);
+        } catch (IOException | UncheckedIOException e) {
+            if (running) {
+                System.out.println("Follower " + follower.address + " disconnected: " + e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(follower);
+            sockets.remove(socket);
+        }
+    }
+
+    /**
+     * Checks whether a follower can carry on from where it stopped. Its socket is
+     * already registered, so a later change of replication id disconnects it.
+     */
+    private boolean canContinue(String id, long offset) {
+        lock.lock();
+        try {
+            return id.equals(replicationId) && backlog.contains(offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the records that recreate the store as it was at one point in time,
+     * then the replication id and the offset of the stream at that point. The
+     * records are spooled to a temporary file while the store is visited and
+     * sent afterwards, so the follower's pace does not lengthen the snapshot.
+     *
+     * @param sent Receives the number of records sent.
+     * @return The offset of the stream at that point.
+     */
+    private long sendSnapshot(DataOutputStream out, long[] sent) throws IOException {
+        BinaryCodec snapshotCodec = new BinaryCodec();
+        FrameBuffer records = new FrameBuffer();
+        long[] at = new long[1];
+        String[] id = new String[1];
+        Path spool = Files.createTempFile("repl-sync-", ".spool");
+        try {
+            try (OutputStream file = Files.newOutputStream(spool)) {
+                store.forEachAtSnapshot(() -> {
+                    id[0] = replicationId;
+                    at[0] = backlog.endOffset();
+                }, (key, value) -> CommandLog.dumpEntry(key, value, record -> {
+                    try {
+                        int start = records.size();
+                        records.writeInt(0);
+                        snapshotCodec.encode(record, records);
+                        records.setInt(start, records.size() - start - 4);
+                        sent[0]++;
+                        if (records.size() >= SEND_CHUNK) {
+                            file.write(records.array(), 0, records.size());
+                            records.reset();
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                file.write(records.array(), 0, records.size());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.copy(spool, out);
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+        out.writeInt(-1);
+        out.writeUTF(id[0]);
+        out.writeLong(at[0]);
+        return at[0];
+    }
+
+    /**
+     * Sends the backlog from an offset as it grows, with a heartbeat whenever
+     * nothing was appended for a while, until the follower falls behind or the
+     * leader stops.
+     */
+    private void stream(DataOutputStream out, long next, Follower follower) throws IOException, InterruptedException {
+        byte[] chunk = new byte[SEND_CHUNK];
+        while (running) {
+            int n = backlog.read(next, chunk, HEARTBEAT_MS);
+            if (n < 0) {
+                System.out.println("Follower " + follower.address + " fell behind the replication backlog at offset " + next);
+                return;
+            }
+            if (n == 0) {
+                // Only sent when caught up, so always between records
+                out.writeInt(0);
+            } else {
+                out.write(chunk, 0, n);
+                next += n;
+                follower.offset = next;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Describes the leader and its followers for INFO.
+     *
+     * @return Lines of {@code name:value} pairs.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("replication_id:" + replicationId);
+        lines.add("replication_offset:" + backlog.endOffset());
+        lines.add("repl_backlog_size:" + backlog.size());
+        lines.add("repl_backlog_first_offset:" + backlog.startOffset());
+        lines.add("connected_followers:" + followers.size());
+        int i = 0;
+        for (Follower f : followers) {
+            lines.add("follower" + i++ + ":address=" + f.address + ",state=" + f.state + ",offset=" + f.offset);
+        }
+        lines.add("full_syncs:" + fullSyncs.sum());
+        lines.add("partial_syncs:" + partialSyncs.sum());
+        return lines;
+    }
+
+    /**
+     * Stops accepting followers and disconnects those connected.
+     */
+    public void close() {
+        running = false;
+        try {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to close replication port: " + e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package server;
 
+import server.keyvalstore.DataStore;
+
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -8,7 +10,10 @@ import java.net.Socket;
  * A server that listens for incoming connections and handles them using client handlers.
  */
 public class Server {
-    private final ServerSocket server;
+    private final ServerConfig config;
+    private final ServerContext context;
+    private ServerSocket server;
+    private NioServer nioServer;
 
     /**
      * Constructs a server that listens on the specified port.
@@ -16,8 +21,39 @@ public class Server {
      * @param port The port to listen on.
      */
     public Server(int port) {
+        this(new ServerConfig(port));
+    }
+
+    /**
+     * Constructs a server with the given configuration.
+     *
+     * @param config The startup options.
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        DataStore store = new DataStore();
+        store.setMaxMemory(config.getMaxMemory(), config.getMaxMemoryPolicy());
+        store.setOffHeap(config.isOffHeap());
+        store.setHashLimits(config.getHashMaxPackedEntries(), config.getHashMaxPackedValue());
+        store.setZSetLimits(config.getZsetMaxPackedEntries(), config.getZsetMaxPackedValue());
+        store.setSetLimits(config.getSetMaxIntsetEntries());
+        this.context = new ServerContext(config, store);
+        if (config.isAppendOnly()) {
+            context.setCommandLog(CommandLog.open(context));
+        }
+        if (config.getReplPort() > 0) {
+            context.setLeader(ReplicationLeader.open(context));
+        }
+        if (config.getReplicaOfHost() != null) {
+            context.setFollower(ReplicationFollower.open(context));
+        }
+        context.getSaver().start();
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            nioServer = new NioServer(context);
+            return;
+        }
         try {
-            server = new ServerSocket(port);
+            server = new ServerSocket(config.getPort(), config.getBacklog());
             System.out.println("Server started " + server.getLocalSocketAddress());
         } catch (IOException e) {
             throw new RuntimeException("Failed to start server");
@@ -26,13 +62,22 @@ public class Server {
 
     /**
      * Starts the server, accepting incoming connections and creating client handler threads.
+     * Every client handler shares the server's data store. In virtual mode each
+     * handler runs on a virtual thread; in NIO mode the connections are served
+     * by event loops instead.
      */
     public void start() {
+        if (nioServer != null) {
+            nioServer.start();
+            return;
+        }
         try {
             while (!server.isClosed()) {
                 Socket conn = server.accept();
-                ClientHandler client = new ClientHandler(conn);
-                Thread clientThread = new Thread(client);
+                ClientHandler client = new ClientHandler(conn, context);
+                Thread clientThread = config.getMode() == ServerConfig.Mode.VIRTUAL
+                        ? Thread.ofVirtual().unstarted(client)
+                        : new Thread(client);
                 clientThread.start();
                 System.out.println("Connection from :  " + conn.getInetAddress().toString() + " On Port : " + conn.getPort());
             }
@@ -42,26 +87,40 @@ public class Server {
     }
 
     /**
-     * Stops the server, closing the server socket.
+     * Stops the server, closing the server socket, automatic saves, replication,
+     * the command log and the data store's background expiry.
      */
     public void stop() {
         try {
-            if (server != null) {
+            if (nioServer != null) {
+                nioServer.stop();
+            } else if (server != null) {
                 server.close();
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            context.getSaver().shutdown();
+            if (context.getLeader() != null) {
+                context.getLeader().close();
+            }
+            if (context.getFollower() != null) {
+                context.getFollower().close();
+            }
+            if (context.getCommandLog() != null) {
+                context.getCommandLog().close();
+            }
+            context.getStore().close();
         }
     }
 
     /**
-     * Main method to start the server on port 5001.
+     * Main method to start the server.
      *
-     * @param args The command-line arguments.
+     * @param args The port followed by optional {@code --name value} options.
      */
     public static void main(String[] args) {
-        int port = Integer.parseInt(args[0]);
-        Server server = new Server(port);
+        Server server = new Server(ServerConfig.fromArgs(args));
         server.start();
     }
 }
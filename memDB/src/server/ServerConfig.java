@@ -0,0 +1,509 @@
+package server;
+
+import protocol.BinaryCodec;
+import protocol.Codec;
+import protocol.SerialCodec;
+import server.keyvalstore.EvictionPolicy;
+import server.keyvalstore.HashType;
+import server.keyvalstore.SetType;
+import server.keyvalstore.ZSetType;
+
+import java.util.List;
+
+/**
+ * Startup options for the server, parsed from the command line.
+ * <p>
+ * The first argument is the port, followed by optional {@code --name value} pairs.
+ */
+public class ServerConfig {
+    /**
+     * How client connections are served.
+     */
+    public enum Mode {
+        THREAD,     // One platform thread per connection
+        VIRTUAL,    // One virtual thread per connection
+        NIO         // Selector event loops over non-blocking channels
+    }
+
+    private final int port;
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int backlog = 1024;
+    private Codec codec = new SerialCodec();
+    private boolean appendOnly;
+    private CommandLog.Fsync appendFsync = CommandLog.Fsync.EVERYSEC;
+    private List<BackgroundSaver.SaveRule> saveRules = List.of();
+    private long maxMemory;
+    private EvictionPolicy maxMemoryPolicy = EvictionPolicy.NOEVICTION;
+    private boolean offHeap;
+    private long slowlogThreshold = 10_000;
+    private int slowlogMaxLen = 128;
+    private int hashMaxPackedEntries = HashType.DEFAULT_MAX_PACKED_ENTRIES;
+    private int hashMaxPackedValue = HashType.DEFAULT_MAX_PACKED_VALUE;
+    private int zsetMaxPackedEntries = ZSetType.DEFAULT_MAX_PACKED_ENTRIES;
+    private int zsetMaxPackedValue = ZSetType.DEFAULT_MAX_PACKED_VALUE;
+    private int setMaxIntsetEntries = SetType.DEFAULT_MAX_INTSET_ENTRIES;
+    private int replPort;
+    private int replBacklogSize = 1024 * 1024;
+    private String replicaOfHost;
+    private int replicaOfPort;
+
+    /**
+     * Constructs a configuration with default options for the given port.
+     *
+     * @param port The port to listen on.
+     */
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Parses a configuration from command-line arguments.
+     *
+     * @param args The port followed by optional {@code --name value} pairs.
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an option is unknown or has no value.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: Server <port> [--mode thread|virtual|nio] [--event-loops n] [--backlog n] [--codec serial|binary] [--appendonly yes|no] [--appendfsync always|everysec|no] [--save seconds:changes,...] [--maxmemory bytes[kb|mb|gb]] [--maxmemory-policy noeviction|allkeys-lru|allkeys-lfu|volatile-ttl|allkeys-random] [--offheap yes|no] [--slowlog-log-slower-than micros] [--slowlog-max-len n] [--hash-max-packed-entries n] [--hash-max-packed-value chars] [--zset-max-packed-entries n] [--zset-max-packed-value chars] [--set-max-intset-entries n] [--repl-port n] [--repl-backlog-size bytes[kb|mb|gb]] [--replicaof host:port]");
+        }
+        ServerConfig config = new ServerConfig(Integer.parseInt(args[0]));
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--mode" -> config.mode = Mode.valueOf(value.toUpperCase());
+                case "--event-loops" -> config.eventLoops = Integer.parseInt(value);
+                case "--backlog" -> config.backlog = Integer.parseInt(value);
+                case "--codec" -> config.codec = Codec.forName(value);
+                case "--appendonly" -> config.appendOnly = value.equalsIgnoreCase("yes");
+                case "--appendfsync" -> config.appendFsync = CommandLog.Fsync.valueOf(value.toUpperCase());
+                case "--save" -> config.saveRules = BackgroundSaver.SaveRule.parseAll(value);
+                case "--maxmemory" -> config.maxMemory = parseBytes(value);
+                case "--maxmemory-policy" -> config.maxMemoryPolicy = EvictionPolicy.fromName(value);
+                case "--offheap" -> config.offHeap = value.equalsIgnoreCase("yes");
+                case "--slowlog-log-slower-than" -> config.slowlogThreshold = Long.parseLong(value);
+                case "--slowlog-max-len" -> config.slowlogMaxLen = Integer.parseInt(value);
+                case "--hash-max-packed-entries" -> config.hashMaxPackedEntries = Integer.parseInt(value);
+                case "--hash-max-packed-value" -> config.hashMaxPackedValue = Integer.parseInt(value);
+                case "--zset-max-packed-entries" -> config.zsetMaxPackedEntries = Integer.parseInt(value);
+                case "--zset-max-packed-value" -> config.zsetMaxPackedValue = Integer.parseInt(value);
+                case "--set-max-intset-entries" -> config.setMaxIntsetEntries = Integer.parseInt(value);
+                case "--repl-port" -> config.replPort = Integer.parseInt(value);
+                case "--repl-backlog-size" -> config.replBacklogSize = Math.toIntExact(parseBytes(value));
+                case "--replicaof" -> {
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("Expected host:port for --replicaof, got " + value);
+                    }
+                    config.replicaOfHost = value.substring(0, colon);
+                    config.replicaOfPort = Integer.parseInt(value.substring(colon + 1));
+                }
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (config.replPort > 0 && config.replicaOfHost != null) {
+            throw new IllegalArgumentException("A follower cannot also serve followers: use --repl-port or --replicaof, not both");
+        }
+        return config;
+    }
+
+    /**
+     * Parses a size in bytes with an optional {@code kb}, {@code mb} or {@code gb} suffix.
+     *
+     * @param value The size, e.g. {@code 512mb}.
+     * @return The size in bytes.
+     * @throws NumberFormatException If the size is not a number.
+     */
+    static long parseBytes(String value) {
+        String v = value.trim().toLowerCase();
+        long unit = 1;
+        if (v.endsWith("kb")) {
+            unit = 1024;
+        } else if (v.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (v.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            v = v.substring(0, v.length() - 2);
+        } else if (v.endsWith("b")) {
+            v = v.substring(0, v.length() - 1);
+        }
+        return Long.parseLong(v.trim()) * unit;
+    }
+
+    /**
+     * Gets the port to listen on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets how client connections are served.
+     *
+     * @return The server mode.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets how client connections are served.
+     *
+     * @param mode The server mode.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Gets the number of event-loop threads used in NIO mode.
+     *
+     * @return The number of event loops.
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Sets the number of event-loop threads used in NIO mode.
+     *
+     * @param eventLoops The number of event loops.
+     */
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Gets the maximum number of pending connections waiting to be accepted.
+     *
+     * @return The accept backlog.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Gets the codec used to encode requests and responses on the wire.
+     *
+     * @return The codec, {@link SerialCodec} unless {@link BinaryCodec} was chosen.
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec used to encode requests and responses on the wire.
+     *
+     * @param codec The codec.
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Gets whether changes are recorded in the append-only command log.
+     *
+     * @return True if the command log is enabled.
+     */
+    public boolean isAppendOnly() {
+        return appendOnly;
+    }
+
+    /**
+     * Sets whether changes are recorded in the append-only command log.
+     *
+     * @param appendOnly True to enable the command log.
+     */
+    public void setAppendOnly(boolean appendOnly) {
+        this.appendOnly = appendOnly;
+    }
+
+    /**
+     * Gets when changes recorded in the command log are forced to disk.
+     *
+     * @return The fsync policy, {@link CommandLog.Fsync#EVERYSEC} by default.
+     */
+    public CommandLog.Fsync getAppendFsync() {
+        return appendFsync;
+    }
+
+    /**
+     * Sets when changes recorded in the command log are forced to disk.
+     *
+     * @param appendFsync The fsync policy.
+     */
+    public void setAppendFsync(CommandLog.Fsync appendFsync) {
+        this.appendFsync = appendFsync;
+    }
+
+    /**
+     * Gets the rules that start automatic background saves.
+     *
+     * @return The save rules, empty if snapshots are only saved on request.
+     */
+    public List<BackgroundSaver.SaveRule> getSaveRules() {
+        return saveRules;
+    }
+
+    /**
+     * Sets the rules that start automatic background saves.
+     *
+     * @param saveRules The save rules.
+     */
+    public void setSaveRules(List<BackgroundSaver.SaveRule> saveRules) {
+        this.saveRules = saveRules;
+    }
+
+    /**
+     * Gets the memory budget of the data store.
+     *
+     * @return The budget in bytes of estimated entry size, or 0 for no limit.
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Sets the memory budget of the data store.
+     *
+     * @param maxMemory The budget in bytes, or 0 for no limit.
+     */
+    public void setMaxMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Gets how keys are evicted once the memory budget is exceeded.
+     *
+     * @return The eviction policy, {@link EvictionPolicy#NOEVICTION} by default.
+     */
+    public EvictionPolicy getMaxMemoryPolicy() {
+        return maxMemoryPolicy;
+    }
+
+    /**
+     * Sets how keys are evicted once the memory budget is exceeded.
+     *
+     * @param maxMemoryPolicy The eviction policy.
+     */
+    public void setMaxMemoryPolicy(EvictionPolicy maxMemoryPolicy) {
+        this.maxMemoryPolicy = maxMemoryPolicy;
+    }
+
+    /**
+     * Gets whether string values are kept off the heap.
+     *
+     * @return True if string values are stored in off-heap slabs.
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Sets whether string values are kept off the heap.
+     *
+     * @param offHeap True to store string values in off-heap slabs.
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Gets the shortest execution time of a command written to the slow log.
+     *
+     * @return The threshold in microseconds; 0 logs every command and a negative value none.
+     */
+    public long getSlowlogThreshold() {
+        return slowlogThreshold;
+    }
+
+    /**
+     * Sets the shortest execution time of a command written to the slow log.
+     *
+     * @param slowlogThreshold The threshold in microseconds; 0 logs every command and a negative value none.
+     */
+    public void setSlowlogThreshold(long slowlogThreshold) {
+        this.slowlogThreshold = slowlogThreshold;
+    }
+
+    /**
+     * Gets the most entries the slow log keeps.
+     *
+     * @return The slow log capacity.
+     */
+    public int getSlowlogMaxLen() {
+        return slowlogMaxLen;
+    }
+
+    /**
+     * Sets the most entries the slow log keeps.
+     *
+     * @param slowlogMaxLen The slow log capacity.
+     */
+    public void setSlowlogMaxLen(int slowlogMaxLen) {
+        this.slowlogMaxLen = slowlogMaxLen;
+    }
+
+    /**
+     * Gets the most fields a hash keeps packed into a single array.
+     *
+     * @return The number of fields.
+     */
+    public int getHashMaxPackedEntries() {
+        return hashMaxPackedEntries;
+    }
+
+    /**
+     * Sets the most fields a hash keeps packed into a single array.
+     *
+     * @param hashMaxPackedEntries The number of fields.
+     */
+    public void setHashMaxPackedEntries(int hashMaxPackedEntries) {
+        this.hashMaxPackedEntries = hashMaxPackedEntries;
+    }
+
+    /**
+     * Gets the longest field or value a hash keeps packed into a single array.
+     *
+     * @return The length in characters.
+     */
+    public int getHashMaxPackedValue() {
+        return hashMaxPackedValue;
+    }
+
+    /**
+     * Sets the longest field or value a hash keeps packed into a single array.
+     *
+     * @param hashMaxPackedValue The length in characters.
+     */
+    public void setHashMaxPackedValue(int hashMaxPackedValue) {
+        this.hashMaxPackedValue = hashMaxPackedValue;
+    }
+
+    /**
+     * Gets the most members a sorted set keeps packed into a single array.
+     *
+     * @return The number of members.
+     */
+    public int getZsetMaxPackedEntries() {
+        return zsetMaxPackedEntries;
+    }
+
+    /**
+     * Sets the most members a sorted set keeps packed into a single array.
+     *
+     * @param zsetMaxPackedEntries The number of members.
+     */
+    public void setZsetMaxPackedEntries(int zsetMaxPackedEntries) {
+        this.zsetMaxPackedEntries = zsetMaxPackedEntries;
+    }
+
+    /**
+     * Gets the longest member a sorted set keeps packed into a single array.
+     *
+     * @return The length in characters.
+     */
+    public int getZsetMaxPackedValue() {
+        return zsetMaxPackedValue;
+    }
+
+    /**
+     * Sets the longest member a sorted set keeps packed into a single array.
+     *
+     * @param zsetMaxPackedValue The length in characters.
+     */
+    public void setZsetMaxPackedValue(int zsetMaxPackedValue) {
+        this.zsetMaxPackedValue = zsetMaxPackedValue;
+    }
+
+    /**
+     * Gets the most members a set of integers keeps as a sorted array.
+     *
+     * @return The number of members.
+     */
+    public int getSetMaxIntsetEntries() {
+        return setMaxIntsetEntries;
+    }
+
+    /**
+     * Sets the most members a set of integers keeps as a sorted array.
+     *
+     * @param setMaxIntsetEntries The number of members.
+     */
+    public void setSetMaxIntsetEntries(int setMaxIntsetEntries) {
+        this.setMaxIntsetEntries = setMaxIntsetEntries;
+    }
+
+    /**
+     * Gets the port followers connect to.
+     *
+     * @return The port, or 0 if the server does not serve followers.
+     */
+    public int getReplPort() {
+        return replPort;
+    }
+
+    /**
+     * Sets the port followers connect to.
+     *
+     * @param replPort The port, or 0 to serve no followers.
+     */
+    public void setReplPort(int replPort) {
+        this.replPort = replPort;
+    }
+
+    /**
+     * Gets how many bytes of recent changes a leader keeps for followers that reconnect.
+     *
+     * @return The size in bytes.
+     */
+    public int getReplBacklogSize() {
+        return replBacklogSize;
+    }
+
+    /**
+     * Sets how many bytes of recent changes a leader keeps for followers that reconnect.
+     *
+     * @param replBacklogSize The size in bytes.
+     */
+    public void setReplBacklogSize(int replBacklogSize) {
+        this.replBacklogSize = replBacklogSize;
+    }
+
+    /**
+     * Gets the host of the leader this server follows.
+     *
+     * @return The host, or null if the server is not a follower.
+     */
+    public String getReplicaOfHost() {
+        return replicaOfHost;
+    }
+
+    /**
+     * Gets the replication port of the leader this server follows.
+     *
+     * @return The port.
+     */
+    public int getReplicaOfPort() {
+        return replicaOfPort;
+    }
+
+    /**
+     * Makes the server a read-only follower of a leader.
+     *
+     * @param host The host of the leader, or null to follow no leader.
+     * @param port The replication port of the leader.
+     */
+    public void setReplicaOf(String host, int port) {
+        this.replicaOfHost = host;
+        this.replicaOfPort = port;
+    }
+}
@@ -0,0 +1,188 @@
+package server;
+
+import server.keyvalstore.DataStore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The state shared by every connection of one server: its options, its data
+ * store, its snapshot saver, the optional append-only command log, its
+ * replication role, the statistics reported by INFO and the slow log.
+ */
+public class ServerContext {
+    private final ServerConfig config;
+    private final DataStore store;
+    private final BackgroundSaver saver;
+    private CommandLog commandLog;
+    private ReplicationLeader leader;
+    private ReplicationFollower follower;
+    private final CommandStats stats = new CommandStats();
+    private final SlowLog slowLog;
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicInteger connectedClients = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+
+    /**
+     * Constructs a context for the given options and store.
+     *
+     * @param config The startup options.
+     * @param store The data store shared by all connections.
+     */
+    public ServerContext(ServerConfig config, DataStore store) {
+        this.config = config;
+        this.store = store;
+        this.saver = new BackgroundSaver(store, config.getSaveRules());
+        this.slowLog = new SlowLog(config.getSlowlogThreshold(), config.getSlowlogMaxLen());
+    }
+
+    /**
+     * Gets the startup options.
+     *
+     * @return The server configuration.
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the data store shared by all connections.
+     *
+     * @return The data store.
+     */
+    public DataStore getStore() {
+        return store;
+    }
+
+    /**
+     * Gets the saver that writes snapshots of the data store.
+     *
+     * @return The snapshot saver.
+     */
+    public BackgroundSaver getSaver() {
+        return saver;
+    }
+
+    /**
+     * Gets the append-only command log.
+     *
+     * @return The command log, or null if it is disabled.
+     */
+    public CommandLog getCommandLog() {
+        return commandLog;
+    }
+
+    /**
+     * Sets the append-only command log.
+     *
+     * @param commandLog The command log.
+     */
+    void setCommandLog(CommandLog commandLog) {
+        this.commandLog = commandLog;
+    }
+
+    /**
+     * Gets the side of replication that serves followers.
+     *
+     * @return The leader, or null if the server does not serve followers.
+     */
+    public ReplicationLeader getLeader() {
+        return leader;
+    }
+
+    /**
+     * Sets the side of replication that serves followers.
+     *
+     * @param leader The leader.
+     */
+    void setLeader(ReplicationLeader leader) {
+        this.leader = leader;
+    }
+
+    /**
+     * Gets the side of replication that follows a leader.
+     *
+     * @return The follower, or null if the server follows no leader.
+     */
+    public ReplicationFollower getFollower() {
+        return follower;
+    }
+
+    /**
+     * Sets the side of replication that follows a leader.
+     *
+     * @param follower The follower.
+     */
+    void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Checks whether clients may only read, because the data belongs to a leader.
+     *
+     * @return True if the server is a follower.
+     */
+    public boolean isReadOnly() {
+        return follower != null;
+    }
+
+    /**
+     * Gets the per-command statistics.
+     *
+     * @return The command statistics.
+     */
+    public CommandStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Gets the log of commands that took longer than the configured threshold.
+     *
+     * @return The slow log.
+     */
+    public SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    /**
+     * Gets when the server started.
+     *
+     * @return The start time in epoch milliseconds.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Counts a newly accepted connection.
+     */
+    void connectionOpened() {
+        connectedClients.incrementAndGet();
+        totalConnections.increment();
+    }
+
+    /**
+     * Counts a connection that has been closed.
+     */
+    void connectionClosed() {
+        connectedClients.decrementAndGet();
+    }
+
+    /**
+     * Gets the number of open client connections.
+     *
+     * @return The number of connected clients.
+     */
+    public int getConnectedClients() {
+        return connectedClients.get();
+    }
+
+    /**
+     * Gets the number of connections accepted since the server started.
+     *
+     * @return The number of connections received.
+     */
+    public long getTotalConnections() {
+        return totalConnections.sum();
+    }
+}
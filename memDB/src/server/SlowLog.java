@@ -0,0 +1,151 @@
+package server;
+
+import protocol.Command;
+import protocol.Request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent commands that took longer than a threshold to execute.
+ * <p>
+ * Entries go into a fixed ring of slots without locking: each takes the next
+ * number from a counter and is stored in the slot that number maps to,
+ * replacing the oldest. Readers walk back from the newest number and skip any
+ * slot that has since been reused or not yet filled. Resetting only moves the
+ * floor below which entries are ignored, so it never races with writers.
+ * <p>
+ * Only the first arguments of a command are kept, each cut to a bounded
+ * length, so a huge MSET costs no more to log than a small one.
+ */
+public class SlowLog {
+    /**
+     * The most arguments kept per entry, counting the key.
+     */
+    private static final int MAX_ARGS = 32;
+    /**
+     * The most characters kept per argument.
+     */
+    private static final int MAX_ARG_LENGTH = 128;
+
+    /**
+     * A command that took longer than the threshold.
+     *
+     * @param id The number of the entry, increasing from 0.
+     * @param time When the command finished, in epoch milliseconds.
+     * @param micros How long the command took to execute, in microseconds.
+     * @param client The address of the client that sent it.
+     * @param command The command and its key and arguments, shortened.
+     */
+    public record Entry(long id, long time, long micros, String client, String command) {
+        @Override
+        public String toString() {
+            return id + " " + time + " " + micros + "us " + client + " " + command;
+        }
+    }
+
+    private final long thresholdNanos;
+    private final AtomicReferenceArray<Entry> slots;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long floor;
+
+    /**
+     * Constructs an empty slow log.
+     *
+     * @param thresholdMicros The shortest execution time logged, in microseconds;
+     *                        0 logs every command and a negative value none.
+     * @param capacity The most entries kept.
+     */
+    public SlowLog(long thresholdMicros, int capacity) {
+        this.thresholdNanos = thresholdMicros < 0 ? -1 : thresholdMicros * 1000;
+        this.slots = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Checks whether commands are logged at all, in which case every command
+     * has to be timed.
+     *
+     * @return True if the threshold is not negative.
+     */
+    public boolean isEnabled() {
+        return thresholdNanos >= 0;
+    }
+
+    /**
+     * Logs a command if it took at least the threshold.
+     *
+     * @param request The command.
+     * @param nanos How long it took to execute.
+     * @param client The address of the client that sent it.
+     */
+    public void record(Request request, long nanos, String client) {
+        if (thresholdNanos < 0 || nanos < thresholdNanos) {
+            return;
+        }
+        long id = next.getAndIncrement();
+        slots.set((int) (id % slots.length()), new Entry(id, System.currentTimeMillis(), nanos / 1000, client, describe(request)));
+    }
+
+    private static String describe(Request request) {
+        StringBuilder sb = new StringBuilder();
+        Command command = request.getCommand();
+        sb.append(command != null ? command.name() : "UNKNOWN");
+        List<String> parts = new ArrayList<>();
+        if (request.getKey() != null)
+            parts.add(request.getKey());
+        List<String> args = request.getArgs();
+        for (int i = 0; i < args.size() && parts.size() < MAX_ARGS; i++) {
+            parts.add(args.get(i));
+        }
+        int total = (request.getKey() != null ? 1 : 0) + args.size();
+        for (String part : parts) {
+            sb.append(' ');
+            if (part.length() > MAX_ARG_LENGTH) {
+                sb.append(part, 0, MAX_ARG_LENGTH).append("... (").append(part.length() - MAX_ARG_LENGTH).append(" more chars)");
+            } else {
+                sb.append(part);
+            }
+        }
+        if (total > parts.size()) {
+            sb.append(" ... (").append(total - parts.size()).append(" more arguments)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the newest entries, newest first.
+     *
+     * @param count The most entries to return.
+     * @return The entries.
+     */
+    public List<Entry> get(int count) {
+        List<Entry> entries = new ArrayList<>();
+        long newest = next.get() - 1;
+        long low = Math.max(floor, newest + 1 - slots.length());
+        for (long id = newest; id >= low && entries.size() < count; id--) {
+            Entry e = slots.get((int) (id % slots.length()));
+            if (e != null && e.id() == id) {
+                entries.add(e);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Gets the number of entries kept.
+     *
+     * @return The number of entries.
+     */
+    public int length() {
+        return get(slots.length()).size();
+    }
+
+    /**
+     * Forgets every entry logged so far.
+     */
+    public void reset() {
+        floor = next.get();
+    }
+}
@@ -0,0 +1,71 @@
+package server.keyvalstore;
+
+import protocol.Request;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Receives every change made to the data store, described as the command that
+ * reproduces it. Changes to one key arrive in the order they were applied.
+ */
+public interface ChangeListener {
+    /**
+     * Called while the segment holding the changed key is still locked, so
+     * implementations must be quick and must not call back into the store.
+     *
+     * @param segment The index of the segment holding the key.
+     * @param change The command that reproduces the change.
+     */
+    void onChange(int segment, Request change);
+
+    /**
+     * Called before the whole keyspace is replaced at once, such as by LOAD,
+     * with the entries that will replace it, while the store still serves the
+     * old ones. Nothing is locked. Throwing stops the replacement.
+     *
+     * @param entries Passes every entry of the new keyspace to a visitor, which must not modify or keep the values.
+     */
+    default void onReplacing(Consumer<BiConsumer<String, Type>> entries) {
+    }
+
+    /**
+     * Called when the whole keyspace was replaced at once, such as by LOAD,
+     * instead of reporting a change for every key. Called while every segment
+     * is locked, so the same rules apply as for {@link #onChange(int, Request)}.
+     */
+    default void onReplaced() {
+    }
+
+    /**
+     * Returns a listener that passes each change to this listener and then to another.
+     *
+     * @param next The listener told second.
+     * @return The combined listener.
+     */
+    default ChangeListener andThen(ChangeListener next) {
+        ChangeListener first = this;
+        return new ChangeListener() {
+            @Override
+            public void onChange(int segment, Request change) {
+                first.onChange(segment, change);
+                next.onChange(segment, change);
+            }
+
+            @Override
+            public void onReplacing(Consumer<BiConsumer<String, Type>> entries) {
+                first.onReplacing(entries);
+                next.onReplacing(entries);
+            }
+
+            @Override
+            public void onReplaced() {
+                try {
+                    first.onReplaced();
+                } finally {
+                    next.onReplaced();
+                }
+            }
+        };
+    }
+}
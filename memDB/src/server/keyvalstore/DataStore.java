@@ -1,18 +1,583 @@
 package server.keyvalstore;
 
+import protocol.Command;
+import protocol.Request;
+import utils.Glob;
 import utils.ObjectIO;
+import utils.SnapshotIO;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.ObjDoubleConsumer;
 
 /**
  * Represents a key-value store that supports different types of values.
+ * <p>
+ * A single instance is shared by every connection. The keyspace is split into
+ * lock-striped segments, each guarding its own map, so commands on different
+ * keys rarely contend and compound operations on one key run under that key's
+ * segment lock. Keys with a time to live are expired lazily when a command
+ * touches them and actively by the store's {@link ExpiryManager}.
+ * <p>
+ * An optional {@link ChangeListener} is told about every change as the command
+ * that reproduces it. Expiry times are reported as absolute deadlines so that
+ * replaying the changes later yields the same expiry.
+ * <p>
+ * Snapshots are taken copy-on-write: starting one only flags every segment,
+ * and until a segment has been saved the first write to each of its keys sets
+ * the old value aside for the snapshot and changes a copy instead. Writers are
+ * never stopped for the whole save.
+ * <p>
+ * The store estimates the memory its entries use. With a budget set, a write
+ * that finds it exceeded first evicts keys chosen by the {@link EvictionPolicy}.
+ * Each segment map keeps its keys in insertion order, and eviction samples keys
+ * from the head and moves the survivors to the tail, so over time every key is
+ * sampled, like the hand of a clock, while reads never reorder anything.
+ * <p>
+ * Strings that are canonical integers are stored as {@link NumberType}s, so
+ * counters are changed with arithmetic rather than by parsing and formatting
+ * text. They are still changed under the segment write lock: that is what keeps
+ * each change ordered with the others reported to the listener and lets
+ * snapshots set the old value aside.
+ * <p>
+ * String values can be kept off the heap, in slots of a {@link SlabAllocator}
+ * per segment, so a large store adds little for the garbage collector to trace.
+ * A slot is freed as soon as its value leaves the map, unless a pending
+ * snapshot still needs it, in which case it is freed once the snapshot is done
+ * with the segment.
  */
-public class DataStore {
+public final class DataStore {
     /**
-     * The underlying map to store key-value pairs.
+     * The default number of segments, must be a power of two.
      */
-    public Map<String, Type> map = new HashMap<>();
+    public static final int DEFAULT_SEGMENTS = 64;
+    /**
+     * The number of evictable keys compared to choose each victim.
+     */
+    private static final int EVICTION_SAMPLES = 5;
+    /**
+     * The most keys looked at to find the samples, for policies that skip some keys.
+     */
+    private static final int EVICTION_SCAN_LIMIT = 64;
+    /**
+     * The most keys a scan takes from one pass over a segment; larger counts take several passes.
+     */
+    private static final int SCAN_HEAP_LIMIT = 4096;
+    private static final String WRONG_TYPE = "WRONGTYPE Operation against a key holding the wrong kind of value";
+    private static final String NOT_INTEGER = "ERR value is not an integer or out of range";
+    private static final String NOT_FLOAT = "ERR value is not a valid float";
+    private static final String OVERFLOW = "ERR increment or decrement would overflow";
+    private static final String NOT_FINITE = "ERR increment would produce NaN or Infinity";
+
+    private final Segment[] segments;
+    private final int mask;
+    private final ExpiryManager expiry;
+    private volatile ChangeListener listener;
+    private final LongAdder changes = new LongAdder();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final LongAdder usedMemory = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private volatile long maxMemory;
+    private volatile EvictionPolicy policy = EvictionPolicy.NOEVICTION;
+    private volatile boolean offHeap;
+    private volatile boolean expiring = true;
+    private volatile boolean limitingMemory = true;
+    private volatile int hashMaxPackedEntries = HashType.DEFAULT_MAX_PACKED_ENTRIES;
+    private volatile int hashMaxPackedValue = HashType.DEFAULT_MAX_PACKED_VALUE;
+    private volatile int zsetMaxPackedEntries = ZSetType.DEFAULT_MAX_PACKED_ENTRIES;
+    private volatile int zsetMaxPackedValue = ZSetType.DEFAULT_MAX_PACKED_VALUE;
+    private volatile int setMaxIntsetEntries = SetType.DEFAULT_MAX_INTSET_ENTRIES;
+
+    /**
+     * A slice of the keyspace guarded by its own read-write lock.
+     */
+    private static final class Segment {
+        private final int index;
+        private Map<String, Type> map = new LinkedHashMap<>();
+        private SlabAllocator slabs = new SlabAllocator();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        /**
+         * While a snapshot has not saved this segment yet, the values its keys
+         * had when the snapshot started, null for keys that did not exist. The
+         * values are never changed again.
+         */
+        private Map<String, Type> preimages;
+        /**
+         * The clients waiting to pop from each empty list key of this segment,
+         * in the order they started waiting.
+         */
+        private final Map<String, ArrayDeque<Waiter>> waiters = new HashMap<>();
+
+        private Segment(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A client waiting for an element to be pushed to a list.
+     *
+     * @param future Completed with the element, or with null if the client stops waiting.
+     * @param first True to take the first element of the list, false to take the last.
+     */
+    private record Waiter(CompletableFuture<String> future, boolean first) {
+    }
+
+    /**
+     * Constructs a data store with the default number of segments.
+     */
+    public DataStore(){
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Constructs a data store with the given number of segments.
+     *
+     * @param segmentCount The number of segments, rounded up to a power of two.
+     */
+    public DataStore(int segmentCount){
+        int size = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+        segments = new Segment[size];
+        for(int i = 0; i < size; i++){
+            segments[i] = new Segment(i);
+        }
+        mask = size - 1;
+        expiry = new ExpiryManager(this);
+    }
+
+    private int indexFor(String key){
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private Segment segmentFor(String key){
+        return segments[indexFor(key)];
+    }
+
+    /**
+     * Gets the distinct segments holding the given keys in index order, which is
+     * the order every operation spanning several segments acquires their locks in.
+     */
+    private Segment[] segmentsFor(List<String> keys){
+        boolean[] used = new boolean[segments.length];
+        int count = 0;
+        for(String key : keys){
+            int i = indexFor(key);
+            if(!used[i]){
+                used[i] = true;
+                count++;
+            }
+        }
+        Segment[] locked = new Segment[count];
+        int n = 0;
+        for(int i = 0; i < used.length; i++){
+            if(used[i])
+                locked[n++] = segments[i];
+        }
+        return locked;
+    }
+
+    /**
+     * A compound operation run under the write lock of a key's segment.
+     *
+     * @param <R> The result type.
+     */
+    @FunctionalInterface
+    private interface Mutation<R> {
+        /**
+         * Applies the operation.
+         *
+         * @param s The segment holding the key.
+         * @param current The live value of the key, or null if it is absent or expired.
+         * @return The result of the operation.
+         */
+        R apply(Segment s, Type current);
+    }
+
+    /**
+     * Runs a read-only operation against the live value of a key under its segment read lock.
+     * An expired value is passed as null and removed once the read lock is released.
+     */
+    private <R> R read(String key, Function<Type, R> reader){
+        Segment s = segmentFor(key);
+        long now = System.currentTimeMillis();
+        boolean expired = false;
+        s.lock.readLock().lock();
+        try{
+            Type current = s.map.get(key);
+            if(current != null && current.isExpired(now)){
+                expired = true;
+                current = null;
+            }
+            if(current != null && policy.tracksAccess())
+                current.setAccess(policy.touch(current.getAccess()));
+            return reader.apply(current);
+        }finally {
+            s.lock.readLock().unlock();
+            if(expired)
+                expireIfDue(key, now);
+        }
+    }
+
+    /**
+     * Runs a compound operation against the live value of a key under its segment write lock.
+     * An expired value is removed, and reported as deleted, before the operation
+     * sees it, unless expiry is turned off. The change in the entry's estimated
+     * size is accounted for afterwards.
+     */
+    private <R> R write(String key, Mutation<R> mutation){
+        Segment s = segmentFor(key);
+        long now = System.currentTimeMillis();
+        s.lock.writeLock().lock();
+        try{
+            preserve(s, key, true);
+            Type current = s.map.get(key);
+            long before = current != null ? MemoryUsage.ofEntry(key, current) : 0;
+            if(current != null && expiring && current.isExpired(now)){
+                s.map.remove(key);
+                dropped(s, key, current);
+                expiry.untrack(key);
+                expiry.recordExpired();
+                changed(s, Command.DELETE, key, List.of());
+                current = null;
+            }
+            long expiresBefore = current != null ? current.getExpiry() : -1;
+            R result = mutation.apply(s, current);
+            Type after = s.map.get(key);
+            long expiresAfter = after != null ? after.getExpiry() : -1;
+            if(expiring && expiresAfter != expiresBefore)
+                expiry.track(key, expiresAfter);
+            if(current != null && after != current)
+                dropped(s, key, current);
+            long size = after != null ? MemoryUsage.ofEntry(key, after) : 0;
+            if(size != before)
+                usedMemory.add(size - before);
+            if(after != null && policy.tracksAccess())
+                after.setAccess(after == current ? policy.touch(after.getAccess()) : policy.initialAccess());
+            return result;
+        }finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes room for a write that may need memory, evicting keys if the budget is
+     * exceeded. Must be called without holding any segment lock.
+     *
+     * @throws IllegalStateException If the budget is exceeded and nothing can be evicted.
+     */
+    private void reserve(){
+        long max = maxMemory;
+        if(max <= 0 || !limitingMemory)
+            return;
+        while(usedMemory.sum() > max){
+            if(policy == EvictionPolicy.NOEVICTION || !evictOne())
+                throw new IllegalStateException("OOM command not allowed when used memory > 'maxmemory'");
+        }
+    }
+
+    /**
+     * Evicts one key from the first segment, starting at a random one, that has
+     * a key the policy may evict.
+     *
+     * @return True if a key was evicted.
+     */
+    private boolean evictOne(){
+        if(policy == EvictionPolicy.VOLATILE_TTL)
+            return expiry.evictNearest();
+        int start = ThreadLocalRandom.current().nextInt(segments.length);
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < segments.length; i++){
+            Segment s = segments[(start + i) & mask];
+            s.lock.writeLock().lock();
+            try{
+                if(evictFrom(s, now))
+                    return true;
+            }finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Samples keys from the head of a segment and evicts the lowest ranked one.
+     * Every other key looked at moves to the tail. Must be called while holding
+     * the write lock of the segment.
+     *
+     * @return True if a key was evicted.
+     */
+    private boolean evictFrom(Segment s, long now){
+        List<Map.Entry<String, Type>> scanned = new ArrayList<>(EVICTION_SAMPLES);
+        Iterator<Map.Entry<String, Type>> it = s.map.entrySet().iterator();
+        String victim = null;
+        long best = Long.MAX_VALUE;
+        int samples = 0;
+        while(it.hasNext() && samples < EVICTION_SAMPLES && scanned.size() < EVICTION_SCAN_LIMIT){
+            Map.Entry<String, Type> e = it.next();
+            scanned.add(e);
+            long rank = policy.rank(e.getValue(), now);
+            if(rank == Long.MAX_VALUE)
+                continue;
+            samples++;
+            if(victim == null || rank < best){
+                victim = e.getKey();
+                best = rank;
+            }
+        }
+        for(Map.Entry<String, Type> e : scanned){
+            if(!e.getKey().equals(victim)){
+                s.map.remove(e.getKey());
+                s.map.put(e.getKey(), e.getValue());
+            }
+        }
+        if(victim == null)
+            return false;
+        evict(s, victim, best == Long.MIN_VALUE);
+        return true;
+    }
+
+    /**
+     * Evicts a key if it still expires at the given time, which is how the
+     * {@link ExpiryManager} evicts the key closest to expiring.
+     *
+     * @param key The key to evict.
+     * @param expTime The expiry time the key was tracked with.
+     * @return True if the key was evicted.
+     */
+    boolean evictIfExpiresAt(String key, long expTime){
+        Segment s = segmentFor(key);
+        s.lock.writeLock().lock();
+        try{
+            Type current = s.map.get(key);
+            if(current == null || current.getExpiry() != expTime)
+                return false;
+            evict(s, key, current.isExpired(System.currentTimeMillis()));
+            return true;
+        }finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key to make room. Must be called while holding the write lock
+     * of the segment.
+     *
+     * @param expired True if the key had already expired, in which case it is
+     *                counted as expired rather than evicted.
+     */
+    private void evict(Segment s, String key, boolean expired){
+        preserve(s, key, false);
+        Type removed = s.map.remove(key);
+        usedMemory.add(-MemoryUsage.ofEntry(key, removed));
+        dropped(s, key, removed);
+        expiry.untrack(key);
+        if(expired)
+            expiry.recordExpired();
+        else
+            evicted.increment();
+        changed(s, Command.DELETE, key, List.of());
+    }
+
+    /**
+     * Reports a change to the listener, if there is one. Must be called while
+     * holding the write lock of the segment.
+     */
+    private void changed(Segment s, Command command, String key, String arg){
+        changed(s, command, key, List.of(arg));
+    }
+
+    private void changed(Segment s, Command command, String key, List<String> args){
+        changes.increment();
+        ChangeListener l = listener;
+        if(l != null){
+            l.onChange(s.index, new Request(command, key, args));
+        }
+    }
+
+    /**
+     * Sets the current value of a key aside for a pending snapshot before it is
+     * first changed. Must be called while holding the write lock of the segment.
+     *
+     * @param inPlace True if the value may be changed in place, in which case a
+     *                copy of it takes its place in the map.
+     */
+    private void preserve(Segment s, String key, boolean inPlace){
+        if(s.preimages != null && !s.preimages.containsKey(key)){
+            Type t = s.map.get(key);
+            s.preimages.put(key, t);
+            if(t != null && inPlace)
+                s.map.put(key, t.copy());
+        }
+    }
+
+    /**
+     * Creates the value stored for a string: a number if the string is an
+     * integer in canonical form, otherwise a string in the given slabs when
+     * values are kept off the heap and it fits a slot. The caller must hold the
+     * lock guarding the slabs.
+     */
+    private Type newString(SlabAllocator slabs, String value){
+        NumberType n = NumberType.parseInteger(value);
+        if(n != null)
+            return n;
+        if(offHeap){
+            long handle = slabs.allocate(value);
+            if(handle != -1)
+                return new OffHeapStringType(slabs, handle);
+        }
+        return new StringType(value);
+    }
+
+    /**
+     * Frees the slot of a value that was taken out of the map, unless a pending
+     * snapshot set it aside. Must be called while holding the write lock of the segment.
+     */
+    private void dropped(Segment s, String key, Type value){
+        if(value instanceof OffHeapStringType o && (s.preimages == null || !o.sharesSlot(s.preimages.get(key))))
+            o.free();
+    }
+
+    /**
+     * Ends a snapshot for a segment, freeing the slots of the values set aside
+     * for it that are no longer in the map. Must be called while holding the
+     * write lock of the segment.
+     */
+    private void endSnapshot(Segment s){
+        for(Map.Entry<String, Type> e : s.preimages.entrySet()){
+            if(e.getValue() instanceof OffHeapStringType o && !o.sharesSlot(s.map.get(e.getKey())))
+                o.free();
+        }
+        s.preimages = null;
+    }
+
+    /**
+     * Removes a key if its value has expired at the given time and expiry is turned on.
+     *
+     * @param key The key to check.
+     * @param now The current time in epoch milliseconds.
+     */
+    void expireIfDue(String key, long now){
+        if(!expiring)
+            return;
+        Segment s = segmentFor(key);
+        s.lock.writeLock().lock();
+        try{
+            Type current = s.map.get(key);
+            if(current != null && current.isExpired(now))
+                expire(s, key, current);
+        }finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an expired key and reports it as deleted, so a command log or a
+     * follower applying the changes later, by its own clock, drops it too. Must
+     * be called while holding the write lock of the segment.
+     */
+    private void expire(Segment s, String key, Type current){
+        preserve(s, key, false);
+        s.map.remove(key);
+        usedMemory.add(-MemoryUsage.ofEntry(key, current));
+        dropped(s, key, current);
+        expiry.untrack(key);
+        expiry.recordExpired();
+        changed(s, Command.DELETE, key, List.of());
+    }
+
+    /**
+     * Turns the removal of expired keys on or off. While it is off, expired keys
+     * stay until they are deleted and writes treat them as live, so changes
+     * recorded by a command log or sent by a leader are applied to the same
+     * values they were made to; reads still hide them. No deadlines are kept
+     * while it is off; turning it back on indexes the keys that have a time to live.
+     *
+     * @param expiring False to keep expired keys, true to remove them again.
+     */
+    public void setExpiring(boolean expiring){
+        for(Segment s : segments){
+            s.lock.writeLock().lock();
+        }
+        try{
+            this.expiring = expiring;
+            expiry.clear();
+            if(expiring){
+                for(Segment s : segments){
+                    for(Map.Entry<String, Type> e : s.map.entrySet()){
+                        if(e.getValue().getExpiry() != -1)
+                            expiry.track(e.getKey(), e.getValue().getExpiry());
+                    }
+                }
+            }
+        }finally {
+            for(Segment s : segments){
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Turns the memory budget on or off for writes. While it is off, writes
+     * neither evict keys nor are rejected for lack of memory, so changes recorded
+     * by a command log or sent by a leader, which made room for them itself, are
+     * all applied; the store may then stay above its budget.
+     *
+     * @param limitingMemory False to apply every write, true to enforce the budget again.
+     */
+    public void setLimitingMemory(boolean limitingMemory){
+        this.limitingMemory = limitingMemory;
+    }
+
+    /**
+     * Checks whether expired keys are removed.
+     *
+     * @return True unless expiry was turned off.
+     */
+    boolean isExpiring(){
+        return expiring;
+    }
+
+    /**
+     * Removes every key whose time to live has passed, reporting each as deleted.
+     * Used once changes were applied with expiry turned off.
+     *
+     * @return The number of keys removed.
+     */
+    public int purgeExpired(){
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for(Segment s : segments){
+            s.lock.writeLock().lock();
+            try{
+                List<String> due = new ArrayList<>();
+                for(Map.Entry<String, Type> e : s.map.entrySet()){
+                    if(e.getValue().isExpired(now))
+                        due.add(e.getKey());
+                }
+                for(String key : due){
+                    expire(s, key, s.map.get(key));
+                }
+                removed += due.size();
+            }finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+        return removed;
+    }
 
     /**
      * Puts a string value into the store with the specified key.
@@ -21,8 +586,12 @@ public class DataStore {
      * @param value The string value to put.
      */
     public void put(String key, String value){
-        StringType t = new StringType(value);
-        map.put(key, t);
+        reserve();
+        write(key, (s, current) -> {
+            s.map.put(key, newString(s.slabs, value));
+            changed(s, Command.SET, key, value);
+            return null;
+        });
     }
 
     /**
@@ -33,9 +602,16 @@ public class DataStore {
      * @param time The expiry time in milliseconds.
      */
     public void put(String key, String value, Long time){
-        StringType t = new StringType(value);
-        t.setExpiry(time);
-        map.put(key, t);
+        reserve();
+        long expTime = System.currentTimeMillis() + time;
+        write(key, (s, current) -> {
+            Type t = newString(s.slabs, value);
+            t.setExpiryAt(expTime);
+            s.map.put(key, t);
+            changed(s, Command.SET, key, value);
+            changed(s, Command.EXPIREAT, key, Long.toString(expTime));
+            return null;
+        });
     }
 
     /**
@@ -45,9 +621,7 @@ public class DataStore {
      * @return The string value, or "null" if the key does not exist.
      */
     public String get(String key){
-        if(map.get(key) != null)
-            return map.get(key).get();
-        return "null";
+        return read(key, t -> t != null ? t.get() : "null");
     }
 
     /**
@@ -56,31 +630,180 @@ public class DataStore {
      * @param key The key of the value to delete.
      */
     public void delete(String key){
-        if(map.get(key) != null){
-            map.remove(key);
-        }
+        write(key, (s, current) -> {
+            if(current != null){
+                s.map.remove(key);
+                changed(s, Command.DELETE, key, List.of());
+            }
+            return null;
+        });
     }
 
     /**
-     * Increments the value associated with the specified key if it is a number.
+     * Adds one to the number associated with the specified key, which is
+     * created as 0 first if it does not exist.
      *
      * @param key The key of the value to increment.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not a number or the result would overflow.
      */
-    public void increment(String key){
-        if(map.get(key) != null){
-            map.get(key).increment();
-        }
+    public String increment(String key){
+        return add(key, 1);
     }
 
     /**
-     * Decrements the value associated with the specified key if it is a number.
+     * Subtracts one from the number associated with the specified key, which
+     * is created as 0 first if it does not exist.
      *
      * @param key The key of the value to decrement.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not a number or the result would overflow.
+     */
+    public String decrement(String key){
+        return add(key, -1);
+    }
+
+    /**
+     * Adds to an integer, or to a decimal number, keeping the kind of number it is.
+     */
+    private String add(String key, long delta){
+        reserve();
+        return write(key, (s, current) -> {
+            NumberType n = numberOf(current, NumberType::parseFloat, NOT_FLOAT);
+            if(n.isIntegral())
+                return Long.toString(addInteger(s, key, current, n, delta));
+            return addFloat(s, key, current, n, delta);
+        });
+    }
+
+    /**
+     * Adds to the integer associated with the specified key, which is created
+     * as 0 first if it does not exist.
+     *
+     * @param key The key of the value.
+     * @param delta The amount to add, may be negative.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not an integer or the result would overflow.
+     */
+    public long incrBy(String key, long delta){
+        reserve();
+        return write(key, (s, current) -> {
+            NumberType n = numberOf(current, NumberType::parseInteger, NOT_INTEGER);
+            if(!n.isIntegral())
+                throw new IllegalStateException(NOT_INTEGER);
+            return addInteger(s, key, current, n, delta);
+        });
+    }
+
+    /**
+     * Subtracts from the integer associated with the specified key, which is
+     * created as 0 first if it does not exist.
+     *
+     * @param key The key of the value.
+     * @param delta The amount to subtract, may be negative.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not an integer or the result would overflow.
+     */
+    public long decrBy(String key, long delta){
+        if(delta == Long.MIN_VALUE)
+            throw new IllegalStateException(OVERFLOW);
+        return incrBy(key, -delta);
+    }
+
+    /**
+     * Adds a decimal amount to the number associated with the specified key,
+     * which is created as 0 first if it does not exist.
+     *
+     * @param key The key of the value.
+     * @param delta The amount to add, may be negative.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not a number or the result would not be finite.
+     */
+    public String incrByFloat(String key, double delta){
+        reserve();
+        return write(key, (s, current) -> {
+            NumberType n = numberOf(current, NumberType::parseFloat, NOT_FLOAT);
+            return addFloat(s, key, current, n, delta);
+        });
+    }
+
+    /**
+     * Gets the number held by a value for arithmetic: the value itself if it
+     * is stored as a number, otherwise a new number parsed from its text with
+     * the same expiry, or 0 if there is no value.
+     *
+     * @throws IllegalStateException If the value is not a string or its text does not parse.
+     */
+    private static NumberType numberOf(Type current, Function<String, NumberType> parser, String error){
+        if(current == null)
+            return NumberType.of(0);
+        if(current instanceof NumberType n)
+            return n;
+        if(!(current instanceof StringType) && !(current instanceof OffHeapStringType))
+            throw new IllegalStateException(WRONG_TYPE);
+        NumberType n = parser.apply(current.get());
+        if(n == null)
+            throw new IllegalStateException(error);
+        n.setExpiryAt(current.getExpiry());
+        return n;
+    }
+
+    /**
+     * Adds to an integer and stores it, reporting the change as INCRBY so that
+     * replaying it gives the same result whatever the value was stored as.
+     * Must be called while holding the write lock of the segment.
      */
-    public void decrement(String key){
-        if(map.get(key) != null) {
-            map.get(key).decrement();
+    private long addInteger(Segment s, String key, Type current, NumberType n, long delta){
+        long value;
+        try{
+            value = Math.addExact(n.longValue(), delta);
+        }catch(ArithmeticException e){
+            throw new IllegalStateException(OVERFLOW);
         }
+        n.set(value);
+        if(n != current)
+            s.map.put(key, n);
+        changed(s, Command.INCRBY, key, Long.toString(delta));
+        return value;
+    }
+
+    /**
+     * Adds to a number as a double and stores it, reporting the change as the
+     * resulting value so that replaying it cannot drift through rounding. Must
+     * be called while holding the write lock of the segment.
+     */
+    private String addFloat(Segment s, String key, Type current, NumberType n, double delta){
+        double value = n.doubleValue() + delta;
+        if(!Double.isFinite(value))
+            throw new IllegalStateException(NOT_FINITE);
+        n.set(value);
+        if(n != current)
+            s.map.put(key, n);
+        String result = n.get();
+        changed(s, Command.SET, key, result);
+        if(n.getExpiry() != -1)
+            changed(s, Command.EXPIREAT, key, Long.toString(n.getExpiry()));
+        return result;
+    }
+
+    /**
+     * Gets the list held by a value.
+     *
+     * @throws IllegalStateException If the value is not a list.
+     */
+    private static ListType asList(Type t){
+        if(t instanceof ListType list)
+            return list;
+        throw new IllegalStateException(WRONG_TYPE);
+    }
+
+    /**
+     * Removes a list that has no elements left, as a key never holds an empty
+     * list. Must be called while holding the write lock of the segment.
+     */
+    private static void removeIfEmpty(Segment s, String key, ListType list){
+        if(list.len() == 0)
+            s.map.remove(key);
     }
 
     /**
@@ -90,27 +813,130 @@ public class DataStore {
      * @return The length of the list, or -1 if the key does not exist.
      */
     public Integer lLen(String key){
-        if(map.get(key) != null){
-            ListType list = (ListType) map.get(key);
-            return list.len();
-        }
-        return -1;
+        return read(key, t -> t != null ? asList(t).len() : -1);
     }
 
     /**
-     * Pushes a value to the beginning of the list associated with the specified key.
+     * Pushes a value to the beginning of the list associated with the specified
+     * key, creating the list if it does not exist.
      *
      * @param key   The key of the list.
      * @param value The value to push.
+     * @return The length of the list after the push.
      */
-    public void lPush(String key, String value){
-        Type list = map.get(key);
-        if(list == null){
-            ListType t = new ListType();
-            t.lPush(value);
-            map.put(key, t);
-        }else{
-            ((ListType) list).lPush(value);
+    public int lPush(String key, String value){
+        return push(key, value, true);
+    }
+
+    /**
+     * Pushes a value to the end of the list associated with the specified key,
+     * creating the list if it does not exist.
+     *
+     * @param key   The key of the list.
+     * @param value The value to push.
+     * @return The length of the list after the push.
+     */
+    public int rPush(String key, String value){
+        return push(key, value, false);
+    }
+
+    private int push(String key, String value, boolean first){
+        reserve();
+        return write(key, (s, current) -> {
+            ListType list = current != null ? asList(current) : new ListType();
+            if(first)
+                list.lPush(value);
+            else
+                list.rPush(value);
+            changed(s, first ? Command.LPUSH : Command.RPUSH, key, value);
+            int length = list.len();
+            serveWaiters(s, key, list);
+            if(list.len() == 0)
+                s.map.remove(key);
+            else if(list != current)
+                s.map.put(key, list);
+            return length;
+        });
+    }
+
+    /**
+     * Hands elements of a list to the clients waiting on its key, oldest first,
+     * until either runs out. Each hand-off is reported as the pop it amounts to.
+     * Must be called while holding the write lock of the segment.
+     */
+    private void serveWaiters(Segment s, String key, ListType list){
+        ArrayDeque<Waiter> queue = s.waiters.get(key);
+        if(queue == null)
+            return;
+        Waiter waiter;
+        while(list.len() > 0 && (waiter = queue.poll()) != null){
+            String value = waiter.first() ? list.lPop() : list.rPop();
+            if(waiter.future().complete(value)){
+                changed(s, waiter.first() ? Command.LPOP : Command.POP, key, List.of());
+            }else if(waiter.first()){
+                list.lPush(value);
+            }else{
+                list.rPush(value);
+            }
+        }
+        if(queue.isEmpty())
+            s.waiters.remove(key);
+    }
+
+    /**
+     * Removes and returns the first or last element of the list associated with
+     * the specified key, waiting for one to be pushed if the key does not exist.
+     * <p>
+     * Clients waiting on the same key are served in the order they started
+     * waiting, each push handing its element to at most one of them. Nothing is
+     * held while waiting: the element is delivered by completing the returned
+     * future, from the thread that pushed it. Completing the future with null
+     * stops waiting, and an element is never taken for a wait that has stopped.
+     *
+     * @param key The key of the list.
+     * @param first True to take the first element, false to take the last.
+     * @param timeout The most milliseconds to wait, or 0 to wait indefinitely.
+     * @return A future completed with the element, or with null if the timeout passes first.
+     */
+    public CompletableFuture<String> blockingPop(String key, boolean first, long timeout){
+        CompletableFuture<String> future = write(key, (s, current) -> {
+            if(current != null){
+                ListType list = asList(current);
+                String value = first ? list.lPop() : list.rPop();
+                removeIfEmpty(s, key, list);
+                changed(s, first ? Command.LPOP : Command.POP, key, List.of());
+                return CompletableFuture.completedFuture(value);
+            }
+            CompletableFuture<String> waiting = new CompletableFuture<>();
+            s.waiters.computeIfAbsent(key, k -> new ArrayDeque<>()).add(new Waiter(waiting, first));
+            return waiting;
+        });
+        if(!future.isDone()){
+            future.whenComplete((value, e) -> {
+                if(value == null)
+                    removeWaiter(key, future);
+            });
+            if(timeout > 0)
+                future.completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Forgets a client that stopped waiting before an element reached it.
+     */
+    private void removeWaiter(String key, CompletableFuture<String> future){
+        Segment s = segmentFor(key);
+        s.lock.writeLock().lock();
+        try{
+            ArrayDeque<Waiter> queue = s.waiters.get(key);
+            if(queue != null){
+                queue.removeIf(w -> w.future() == future);
+                if(queue.isEmpty())
+                    s.waiters.remove(key);
+            }
+        }finally {
+            s.lock.writeLock().unlock();
         }
     }
 
@@ -118,42 +944,1276 @@ public class DataStore {
      * Pops a value from the end of the list associated with the specified key.
      *
      * @param key The key of the list.
-     * @return The popped value, or "null" if the list is empty or the key does not exist.
+     * @return The popped value, or "null" if the key does not exist.
      */
     public String pop(String key){
-        if(map.get(key) != null){
-            ListType t = (ListType) map.get(key);
-            return t.pop();
-        }
-        return "null";
+        String value = rPop(key);
+        return value != null ? value : "null";
     }
 
     /**
-     * Gets the keys in the store.
+     * Removes and returns the first element of the list associated with the
+     * specified key. The key is removed with its last element.
      *
-     * @return A string representation of the keys.
+     * @param key The key of the list.
+     * @return The element, or null if the key does not exist.
      */
-    public String getKeys(){
-        return map.keySet().toString();
+    public String lPop(String key){
+        return popFrom(key, true);
     }
 
     /**
-     * Loads data from a file into the store.
+     * Removes and returns the last element of the list associated with the
+     * specified key. The key is removed with its last element.
      *
-     * @param fileName The name of the file to load from.
+     * @param key The key of the list.
+     * @return The element, or null if the key does not exist.
+     */
+    public String rPop(String key){
+        return popFrom(key, false);
+    }
+
+    private String popFrom(String key, boolean first){
+        return write(key, (s, current) -> {
+            if(current == null)
+                return null;
+            ListType list = asList(current);
+            String value = first ? list.lPop() : list.rPop();
+            removeIfEmpty(s, key, list);
+            changed(s, first ? Command.LPOP : Command.POP, key, List.of());
+            return value;
+        });
+    }
+
+    /**
+     * Gets the element at an index of the list associated with the specified key.
+     *
+     * @param key The key of the list.
+     * @param index The index, negative to count back from the end.
+     * @return The element, or null if the key does not exist or the index is out of range.
+     */
+    public String lIndex(String key, long index){
+        return read(key, t -> t != null ? asList(t).index(index) : null);
+    }
+
+    /**
+     * Gets a range of elements of the list associated with the specified key.
+     *
+     * @param key The key of the list.
+     * @param start The first index, negative to count back from the end.
+     * @param stop The last index, included, negative to count back from the end.
+     * @return The elements in order, empty if the key does not exist.
+     */
+    public List<String> lRange(String key, long start, long stop){
+        return read(key, t -> t != null ? asList(t).range(start, stop) : new ArrayList<>());
+    }
+
+    /**
+     * Replaces the element at an index of the list associated with the specified key.
+     *
+     * @param key The key of the list.
+     * @param index The index, negative to count back from the end.
+     * @param value The new element.
+     * @throws IllegalStateException If the key does not exist or the index is out of range.
+     */
+    public void lSet(String key, long index, String value){
+        reserve();
+        write(key, (s, current) -> {
+            if(current == null)
+                throw new IllegalStateException("ERR no such key");
+            if(!asList(current).set(index, value))
+                throw new IllegalStateException("ERR index out of range");
+            changed(s, Command.LSET, key, List.of(Long.toString(index), value));
+            return null;
+        });
+    }
+
+    /**
+     * Keeps only a range of elements of the list associated with the specified
+     * key. The key is removed if no element is left.
+     *
+     * @param key The key of the list.
+     * @param start The first index to keep, negative to count back from the end.
+     * @param stop The last index to keep, negative to count back from the end.
+     */
+    public void lTrim(String key, long start, long stop){
+        write(key, (s, current) -> {
+            if(current == null)
+                return null;
+            ListType list = asList(current);
+            list.trim(start, stop);
+            removeIfEmpty(s, key, list);
+            changed(s, Command.LTRIM, key, List.of(Long.toString(start), Long.toString(stop)));
+            return null;
+        });
+    }
+
+    /**
+     * Gets the hash held by a value.
+     *
+     * @throws IllegalStateException If the value is not a hash.
+     */
+    private static HashType asHash(Type t){
+        if(t instanceof HashType hash)
+            return hash;
+        throw new IllegalStateException(WRONG_TYPE);
+    }
+
+    /**
+     * Sets fields of the hash associated with the specified key, creating the
+     * hash if it does not exist.
+     *
+     * @param key The key of the hash.
+     * @param fieldsAndValues Each field followed by its value.
+     * @return The number of fields that were new.
+     */
+    public int hSet(String key, List<String> fieldsAndValues){
+        reserve();
+        return write(key, (s, current) -> {
+            HashType hash = current != null ? asHash(current) : new HashType();
+            int entries = hashMaxPackedEntries;
+            int value = hashMaxPackedValue;
+            int added = 0;
+            for(int i = 0; i + 1 < fieldsAndValues.size(); i += 2){
+                if(hash.set(fieldsAndValues.get(i), fieldsAndValues.get(i + 1), entries, value))
+                    added++;
+            }
+            if(hash != current)
+                s.map.put(key, hash);
+            changed(s, Command.HSET, key, fieldsAndValues);
+            return added;
+        });
+    }
+
+    /**
+     * Gets the value of a field of the hash associated with the specified key.
+     *
+     * @param key The key of the hash.
+     * @param field The field.
+     * @return The value, or null if the key or the field does not exist.
+     */
+    public String hGet(String key, String field){
+        return read(key, t -> t != null ? asHash(t).get(field) : null);
+    }
+
+    /**
+     * Gets the values of several fields of the hash associated with the specified key.
+     *
+     * @param key The key of the hash.
+     * @param fields The fields.
+     * @return The values in field order, with null for fields that do not exist.
+     */
+    public List<String> hMGet(String key, List<String> fields){
+        return read(key, t -> {
+            HashType hash = t != null ? asHash(t) : null;
+            List<String> values = new ArrayList<>(fields.size());
+            for(String field : fields){
+                values.add(hash != null ? hash.get(field) : null);
+            }
+            return values;
+        });
+    }
+
+    /**
+     * Removes fields from the hash associated with the specified key. The key is
+     * removed with its last field.
+     *
+     * @param key The key of the hash.
+     * @param fields The fields to remove.
+     * @return The number of fields that existed and were removed.
+     */
+    public int hDel(String key, List<String> fields){
+        return write(key, (s, current) -> {
+            if(current == null)
+                return 0;
+            HashType hash = asHash(current);
+            List<String> removed = new ArrayList<>(fields.size());
+            for(String field : fields){
+                if(hash.remove(field))
+                    removed.add(field);
+            }
+            if(hash.len() == 0)
+                s.map.remove(key);
+            if(!removed.isEmpty())
+                changed(s, Command.HDEL, key, removed);
+            return removed.size();
+        });
+    }
+
+    /**
+     * Adds to the integer value of a field of the hash associated with the
+     * specified key. A missing hash or field is created as 0 first. The change
+     * is reported as the resulting value, like {@link #incrByFloat(String, double)}.
+     *
+     * @param key The key of the hash.
+     * @param field The field.
+     * @param delta The amount to add, may be negative.
+     * @return The new value.
+     * @throws IllegalStateException If the value is not an integer or the result would overflow.
+     */
+    public long hIncrBy(String key, String field, long delta){
+        reserve();
+        return write(key, (s, current) -> {
+            HashType hash = current != null ? asHash(current) : new HashType();
+            String old = hash.get(field);
+            NumberType n = old != null ? NumberType.parseInteger(old) : NumberType.of(0);
+            if(n == null)
+                throw new IllegalStateException("ERR hash value is not an integer");
+            long value;
+            try{
+                value = Math.addExact(n.longValue(), delta);
+            }catch(ArithmeticException e){
+                throw new IllegalStateException(OVERFLOW);
+            }
+            String result = Long.toString(value);
+            hash.set(field, result, hashMaxPackedEntries, hashMaxPackedValue);
+            if(hash != current)
+                s.map.put(key, hash);
+            changed(s, Command.HSET, key, List.of(field, result));
+            return value;
+        });
+    }
+
+    /**
+     * Gets every field and value of the hash associated with the specified key.
+     *
+     * @param key The key of the hash.
+     * @return Each field followed by its value, empty if the key does not exist.
+     */
+    public List<String> hGetAll(String key){
+        return read(key, t -> t != null ? asHash(t).entries() : new ArrayList<>());
+    }
+
+    /**
+     * Gets the number of fields of the hash associated with the specified key.
+     *
+     * @param key The key of the hash.
+     * @return The number of fields, 0 if the key does not exist.
+     */
+    public int hLen(String key){
+        return read(key, t -> t != null ? asHash(t).len() : 0);
+    }
+
+    /**
+     * Gets the sorted set held by a value.
+     *
+     * @throws IllegalStateException If the value is not a sorted set.
+     */
+    private static ZSetType asZSet(Type t){
+        if(t instanceof ZSetType zset)
+            return zset;
+        throw new IllegalStateException(WRONG_TYPE);
+    }
+
+    /**
+     * Sets the scores of members of the sorted set associated with the specified
+     * key, creating the sorted set if it does not exist.
+     *
+     * @param key The key of the sorted set.
+     * @param scores The scores, none of them NaN.
+     * @param members The members, one for each score.
+     * @return The number of members that were new.
+     */
+    public int zAdd(String key, double[] scores, List<String> members){
+        reserve();
+        return write(key, (s, current) -> {
+            ZSetType zset = current != null ? asZSet(current) : new ZSetType();
+            int entries = zsetMaxPackedEntries;
+            int value = zsetMaxPackedValue;
+            int added = 0;
+            List<String> args = new ArrayList<>(members.size() * 2);
+            for(int i = 0; i < members.size(); i++){
+                if(zset.add(members.get(i), scores[i], entries, value))
+                    added++;
+                args.add(ZSetType.formatScore(scores[i]));
+                args.add(members.get(i));
+            }
+            if(zset != current)
+                s.map.put(key, zset);
+            changed(s, Command.ZADD, key, args);
+            return added;
+        });
+    }
+
+    /**
+     * Adds to the score of a member of the sorted set associated with the
+     * specified key. A missing sorted set or member is created with a score of
+     * 0 first. The change is reported as a ZADD of the resulting score.
+     *
+     * @param key The key of the sorted set.
+     * @param member The member.
+     * @param delta The amount to add, may be negative.
+     * @return The new score.
+     * @throws IllegalStateException If the result is not a number.
+     */
+    public double zIncrBy(String key, String member, double delta){
+        reserve();
+        return write(key, (s, current) -> {
+            ZSetType zset = current != null ? asZSet(current) : new ZSetType();
+            Double old = zset.score(member);
+            double score = (old != null ? old : 0) + delta;
+            if(Double.isNaN(score))
+                throw new IllegalStateException("ERR resulting score is not a number (NaN)");
+            zset.add(member, score, zsetMaxPackedEntries, zsetMaxPackedValue);
+            if(zset != current)
+                s.map.put(key, zset);
+            changed(s, Command.ZADD, key, List.of(ZSetType.formatScore(score), member));
+            return score;
+        });
+    }
+
+    /**
+     * Gets the score of a member of the sorted set associated with the specified key.
+     *
+     * @param key The key of the sorted set.
+     * @param member The member.
+     * @return The score, or null if the key or the member does not exist.
+     */
+    public Double zScore(String key, String member){
+        return read(key, t -> t != null ? asZSet(t).score(member) : null);
+    }
+
+    /**
+     * Gets the rank of a member of the sorted set associated with the specified
+     * key, its position from 0 in order of score.
+     *
+     * @param key The key of the sorted set.
+     * @param member The member.
+     * @return The rank, or null if the key or the member does not exist.
+     */
+    public Long zRank(String key, String member){
+        return read(key, t -> {
+            long rank = t != null ? asZSet(t).rank(member) : -1;
+            return rank >= 0 ? rank : null;
+        });
+    }
+
+    /**
+     * Gets the members between two ranks of the sorted set associated with the
+     * specified key, both included, in order of score.
+     *
+     * @param key The key of the sorted set.
+     * @param start The first rank, negative to count back from the end.
+     * @param stop The last rank, negative to count back from the end.
+     * @param withScores True to follow each member with its score.
+     * @return The members, empty if the key does not exist.
+     */
+    public List<String> zRange(String key, long start, long stop, boolean withScores){
+        return read(key, t -> {
+            List<String> values = new ArrayList<>();
+            if(t != null)
+                asZSet(t).range(start, stop, collector(values, withScores));
+            return values;
+        });
+    }
+
+    /**
+     * Gets the members whose scores are within a range of the sorted set
+     * associated with the specified key, in order of score.
+     *
+     * @param key The key of the sorted set.
+     * @param range The range of scores.
+     * @param offset How many of the members in the range to skip first.
+     * @param count The most members to return, or a negative number for all of them.
+     * @param withScores True to follow each member with its score.
+     * @return The members, empty if the key does not exist.
+     */
+    public List<String> zRangeByScore(String key, ZSetType.ScoreRange range, long offset, long count, boolean withScores){
+        return read(key, t -> {
+            List<String> values = new ArrayList<>();
+            if(t != null)
+                asZSet(t).rangeByScore(range, offset, count, collector(values, withScores));
+            return values;
+        });
+    }
+
+    private static ObjDoubleConsumer<String> collector(List<String> values, boolean withScores){
+        if(!withScores)
+            return (member, score) -> values.add(member);
+        return (member, score) -> {
+            values.add(member);
+            values.add(ZSetType.formatScore(score));
+        };
+    }
+
+    /**
+     * Removes members from the sorted set associated with the specified key. The
+     * key is removed with its last member.
+     *
+     * @param key The key of the sorted set.
+     * @param members The members to remove.
+     * @return The number of members that existed and were removed.
+     */
+    public int zRem(String key, List<String> members){
+        return write(key, (s, current) -> {
+            if(current == null)
+                return 0;
+            ZSetType zset = asZSet(current);
+            List<String> removed = new ArrayList<>(members.size());
+            for(String member : members){
+                if(zset.remove(member))
+                    removed.add(member);
+            }
+            if(zset.len() == 0)
+                s.map.remove(key);
+            if(!removed.isEmpty())
+                changed(s, Command.ZREM, key, removed);
+            return removed.size();
+        });
+    }
+
+    /**
+     * Gets the set held by a value.
+     *
+     * @throws IllegalStateException If the value is not a set.
+     */
+    private static SetType asSet(Type t){
+        if(t instanceof SetType set)
+            return set;
+        throw new IllegalStateException(WRONG_TYPE);
+    }
+
+    /**
+     * Adds members to the set associated with the specified key, creating the
+     * set if it does not exist.
+     *
+     * @param key The key of the set.
+     * @param members The members to add.
+     * @return The number of members that were new.
+     */
+    public int sAdd(String key, List<String> members){
+        reserve();
+        return write(key, (s, current) -> {
+            SetType set = current != null ? asSet(current) : new SetType();
+            int entries = setMaxIntsetEntries;
+            List<String> added = new ArrayList<>(members.size());
+            for(String member : members){
+                if(set.add(member, entries))
+                    added.add(member);
+            }
+            if(set != current)
+                s.map.put(key, set);
+            if(!added.isEmpty())
+                changed(s, Command.SADD, key, added);
+            return added.size();
+        });
+    }
+
+    /**
+     * Removes members from the set associated with the specified key. The key is
+     * removed with its last member.
+     *
+     * @param key The key of the set.
+     * @param members The members to remove.
+     * @return The number of members that existed and were removed.
+     */
+    public int sRem(String key, List<String> members){
+        return write(key, (s, current) -> {
+            if(current == null)
+                return 0;
+            SetType set = asSet(current);
+            List<String> removed = new ArrayList<>(members.size());
+            for(String member : members){
+                if(set.remove(member))
+                    removed.add(member);
+            }
+            if(set.len() == 0)
+                s.map.remove(key);
+            if(!removed.isEmpty())
+                changed(s, Command.SREM, key, removed);
+            return removed.size();
+        });
+    }
+
+    /**
+     * Checks whether a member is in the set associated with the specified key.
+     *
+     * @param key The key of the set.
+     * @param member The member.
+     * @return True if the set has the member, false if it does not or the key does not exist.
+     */
+    public boolean sIsMember(String key, String member){
+        return read(key, t -> t != null && asSet(t).contains(member));
+    }
+
+    /**
+     * Gets the number of members of the set associated with the specified key.
+     *
+     * @param key The key of the set.
+     * @return The number of members, 0 if the key does not exist.
+     */
+    public int sCard(String key){
+        return read(key, t -> t != null ? asSet(t).len() : 0);
+    }
+
+    /**
+     * Gets the members of the set associated with the specified key.
+     *
+     * @param key The key of the set.
+     * @return The members in no particular order, empty if the key does not exist.
+     */
+    public List<String> sMembers(String key){
+        return read(key, t -> t != null ? asSet(t).members() : new ArrayList<>());
+    }
+
+    /**
+     * Gets the members that are in every one of the sets associated with the
+     * specified keys. A missing key counts as an empty set.
+     *
+     * @param keys The keys of the sets.
+     * @return The common members, in no particular order.
+     */
+    public List<String> sInter(List<String> keys){
+        return readSets(keys, sets -> sets.contains(null) ? new ArrayList<>() : SetType.intersect(sets));
+    }
+
+    /**
+     * Gets the members that are in any of the sets associated with the specified keys.
+     *
+     * @param keys The keys of the sets.
+     * @return The members, each once, in no particular order.
+     */
+    public List<String> sUnion(List<String> keys){
+        return readSets(keys, sets -> {
+            sets.removeIf(set -> set == null);
+            return SetType.union(sets);
+        });
+    }
+
+    /**
+     * Gets the members of the set associated with the first key that are in none
+     * of the sets associated with the others.
+     *
+     * @param keys The key of the set to take members from, followed by the keys of the sets to leave out.
+     * @return The remaining members, in no particular order.
+     */
+    public List<String> sDiff(List<String> keys){
+        return readSets(keys, sets -> {
+            SetType first = sets.getFirst();
+            if(first == null)
+                return new ArrayList<>();
+            List<SetType> others = new ArrayList<>(sets.subList(1, sets.size()));
+            others.removeIf(set -> set == null);
+            return SetType.difference(first, others);
+        });
+    }
+
+    /**
+     * Runs a read-only operation against the sets of several keys under the
+     * read locks of all their segments, so it sees them at a single moment.
+     * Missing and expired keys are passed as null.
+     *
+     * @throws IllegalStateException If a key holds something other than a set.
+     */
+    private <R> R readSets(List<String> keys, Function<List<SetType>, R> reader){
+        Segment[] locked = segmentsFor(keys);
+        long now = System.currentTimeMillis();
+        for(Segment s : locked){
+            s.lock.readLock().lock();
+        }
+        try{
+            List<SetType> sets = new ArrayList<>(keys.size());
+            for(String key : keys){
+                Type t = segmentFor(key).map.get(key);
+                sets.add(t != null && !t.isExpired(now) ? asSet(t) : null);
+            }
+            return reader.apply(sets);
+        }finally {
+            for(Segment s : locked){
+                s.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the values of several keys as of one point in time.
+     *
+     * @param keys The keys to get.
+     * @return The string values in key order, with null for keys that do not exist.
+     */
+    public List<String> mGet(List<String> keys){
+        Segment[] locked = segmentsFor(keys);
+        long now = System.currentTimeMillis();
+        List<String> values = new ArrayList<>(keys.size());
+        for(Segment s : locked){
+            s.lock.readLock().lock();
+        }
+        try{
+            for(String key : keys){
+                Type t = segmentFor(key).map.get(key);
+                values.add(t != null && !t.isExpired(now) ? t.get() : null);
+            }
+        }finally {
+            for(Segment s : locked){
+                s.lock.readLock().unlock();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Puts several string values atomically: no reader sees some of them applied
+     * and others not.
+     *
+     * @param keys The keys to set.
+     * @param values The values, one per key.
+     */
+    public void mSet(List<String> keys, List<String> values){
+        reserve();
+        Segment[] locked = segmentsFor(keys);
+        for(Segment s : locked){
+            s.lock.writeLock().lock();
+        }
+        try{
+            for(int i = 0; i < keys.size(); i++){
+                Segment s = segmentFor(keys.get(i));
+                preserve(s, keys.get(i), false);
+                Type t = newString(s.slabs, values.get(i));
+                t.setAccess(policy.initialAccess());
+                Type old = s.map.put(keys.get(i), t);
+                usedMemory.add(MemoryUsage.ofEntry(keys.get(i), t) - (old != null ? MemoryUsage.ofEntry(keys.get(i), old) : 0));
+                if(old != null){
+                    dropped(s, keys.get(i), old);
+                    if(old.getExpiry() != -1)
+                        expiry.untrack(keys.get(i));
+                }
+                changed(s, Command.SET, keys.get(i), values.get(i));
+            }
+        }finally {
+            for(Segment s : locked){
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Deletes several keys atomically.
+     *
+     * @param keys The keys to delete.
+     * @return The number of keys that existed.
+     */
+    public int mDelete(List<String> keys){
+        Segment[] locked = segmentsFor(keys);
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for(Segment s : locked){
+            s.lock.writeLock().lock();
+        }
+        try{
+            for(String key : keys){
+                Segment s = segmentFor(key);
+                preserve(s, key, false);
+                Type t = s.map.remove(key);
+                if(t == null)
+                    continue;
+                usedMemory.add(-MemoryUsage.ofEntry(key, t));
+                dropped(s, key, t);
+                if(t.getExpiry() != -1)
+                    expiry.untrack(key);
+                if(t.isExpired(now))
+                    expiry.recordExpired();
+                else
+                    deleted++;
+                changed(s, Command.DELETE, key, List.of());
+            }
+        }finally {
+            for(Segment s : locked){
+                s.lock.writeLock().unlock();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Sets a time to live on an existing key.
+     *
+     * @param key The key to expire.
+     * @param time The time to live in milliseconds.
+     * @return True if the key exists and the expiry was set.
+     */
+    public boolean expire(String key, long time){
+        return write(key, (s, t) -> {
+            if(t == null)
+                return false;
+            t.setExpiry(time);
+            changed(s, Command.EXPIREAT, key, Long.toString(t.getExpiry()));
+            return true;
+        });
+    }
+
+    /**
+     * Sets an absolute expiry time on an existing key.
+     *
+     * @param key The key to expire.
+     * @param expTime The expiry time in epoch milliseconds.
+     * @return True if the key exists and the expiry was set.
+     */
+    public boolean expireAt(String key, long expTime){
+        return write(key, (s, t) -> {
+            if(t == null)
+                return false;
+            t.setExpiryAt(expTime);
+            changed(s, Command.EXPIREAT, key, Long.toString(expTime));
+            return true;
+        });
+    }
+
+    /**
+     * Gets the remaining time to live of a key.
+     *
+     * @param key The key to check.
+     * @return The remaining time in milliseconds, -1 if the key has no expiry, or -2 if it does not exist.
+     */
+    public long ttl(String key){
+        return read(key, t -> {
+            if(t == null)
+                return -2L;
+            if(t.getExpiry() == -1)
+                return -1L;
+            return Math.max(0L, t.getExpiry() - System.currentTimeMillis());
+        });
+    }
+
+    /**
+     * Removes the time to live from a key.
+     *
+     * @param key The key to persist.
+     * @return True if the key existed and had an expiry.
+     */
+    public boolean persist(String key){
+        return write(key, (s, t) -> {
+            if(t == null || t.getExpiry() == -1)
+                return false;
+            t.persist();
+            changed(s, Command.PERSIST, key, List.of());
+            return true;
+        });
+    }
+
+    /**
+     * Sets the listener told about every change, replacing any previous one.
+     *
+     * @param listener The listener, or null to stop reporting changes.
+     */
+    public void setChangeListener(ChangeListener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the number of segments the keyspace is split into.
+     *
+     * @return The number of segments.
+     */
+    public int segmentCount(){
+        return segments.length;
+    }
+
+    /**
+     * Visits the live entries of one segment under its read lock, then runs a
+     * callback before the lock is released. Changes to the segment reported to
+     * the listener are therefore either reflected in the visit or reported after
+     * the callback has run.
+     *
+     * @param index The index of the segment.
+     * @param visitor Receives each key and value; must not modify the value.
+     * @param afterVisit Runs once the segment has been visited, still under its lock.
+     */
+    public void visitSegment(int index, BiConsumer<String, Type> visitor, Runnable afterVisit){
+        Segment s = segments[index];
+        long now = System.currentTimeMillis();
+        s.lock.readLock().lock();
+        try{
+            for(Map.Entry<String, Type> e : s.map.entrySet()){
+                if(!e.getValue().isExpired(now))
+                    visitor.accept(e.getKey(), e.getValue());
+            }
+            afterVisit.run();
+        }finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of changes made to the store since it was created.
+     *
+     * @return The number of changes.
+     */
+    public long changeCount(){
+        return changes.sum();
+    }
+
+    /**
+     * Visits every live entry as it was at one point in time while writers carry
+     * on. The point in time is fixed by briefly taking every segment write lock.
+     * After that each segment in turn has its entries collected under its read
+     * lock, using the value set aside for each key changed since, and visited
+     * with no lock held: until the segment is done, writers change copies rather
+     * than the values being visited. Only one snapshot runs at a time; a second
+     * caller waits for the first.
+     *
+     * @param visitor Receives each key and value; must not modify or keep the value.
+     */
+    public void forEachAtSnapshot(BiConsumer<String, Type> visitor){
+        forEachAtSnapshot(() -> {}, visitor);
+    }
+
+    /**
+     * Visits every live entry as it was at one point in time, like
+     * {@link #forEachAtSnapshot(BiConsumer)}, first running an action at that
+     * point. The action runs while every segment write lock is held, so each
+     * change has either been reported to the listener before it, and is
+     * reflected in the visit, or is reported after it.
+     *
+     * @param atSnapshot Runs at the point in time; must be quick, must not throw and must not call back into the store.
+     * @param visitor Receives each key and value; must not modify or keep the value.
+     */
+    public void forEachAtSnapshot(Runnable atSnapshot, BiConsumer<String, Type> visitor){
+        snapshotLock.lock();
+        try{
+            for(Segment s : segments){
+                s.lock.writeLock().lock();
+            }
+            long at = System.currentTimeMillis();
+            atSnapshot.run();
+            for(Segment s : segments){
+                s.preimages = new HashMap<>();
+                s.lock.writeLock().unlock();
+            }
+            List<Map.Entry<String, Type>> entries = new ArrayList<>();
+            for(Segment s : segments){
+                s.lock.readLock().lock();
+                try{
+                    for(Map.Entry<String, Type> e : s.map.entrySet()){
+                        Type t = s.preimages.containsKey(e.getKey()) ? s.preimages.get(e.getKey()) : e.getValue();
+                        if(t != null && !t.isExpired(at))
+                            entries.add(Map.entry(e.getKey(), t));
+                    }
+                    for(Map.Entry<String, Type> e : s.preimages.entrySet()){
+                        if(e.getValue() != null && !e.getValue().isExpired(at) && !s.map.containsKey(e.getKey()))
+                            entries.add(Map.entry(e.getKey(), e.getValue()));
+                    }
+                }finally {
+                    s.lock.readLock().unlock();
+                }
+                for(Map.Entry<String, Type> e : entries){
+                    visitor.accept(e.getKey(), e.getValue());
+                }
+                entries.clear();
+                s.lock.writeLock().lock();
+                endSnapshot(s);
+                s.lock.writeLock().unlock();
+            }
+        }finally {
+            for(Segment s : segments){
+                if(s.preimages != null){
+                    s.lock.writeLock().lock();
+                    endSnapshot(s);
+                    s.lock.writeLock().unlock();
+                }
+            }
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the memory budget and how keys are evicted once it is exceeded.
+     *
+     * @param maxMemory The budget in bytes of estimated entry size, or 0 for no limit.
+     * @param policy The eviction policy.
+     */
+    public void setMaxMemory(long maxMemory, EvictionPolicy policy){
+        this.policy = policy;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Gets the memory budget.
+     *
+     * @return The budget in bytes, or 0 if there is no limit.
+     */
+    public long getMaxMemory(){
+        return maxMemory;
+    }
+
+    /**
+     * Gets the eviction policy.
+     *
+     * @return The eviction policy.
+     */
+    public EvictionPolicy getEvictionPolicy(){
+        return policy;
+    }
+
+    /**
+     * Gets the estimated memory used by the entries of the store.
+     *
+     * @return The estimated size in bytes.
+     */
+    public long getUsedMemory(){
+        return usedMemory.sum();
+    }
+
+    /**
+     * Sets whether string values written from now on are kept off the heap.
+     * Values already in the store stay where they are.
+     *
+     * @param offHeap True to keep string values in off-heap slabs.
+     */
+    public void setOffHeap(boolean offHeap){
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Gets whether string values are kept off the heap.
+     *
+     * @return True if new string values go to off-heap slabs.
+     */
+    public boolean isOffHeap(){
+        return offHeap;
+    }
+
+    /**
+     * Sets how large a hash may grow while it is kept packed into a single
+     * array. Hashes are converted once they pass either limit; hashes already
+     * converted stay as they are until the store is next loaded.
+     *
+     * @param maxEntries The most fields of a packed hash.
+     * @param maxValue The longest field or value of a packed hash, in characters.
+     */
+    public void setHashLimits(int maxEntries, int maxValue){
+        this.hashMaxPackedEntries = maxEntries;
+        this.hashMaxPackedValue = maxValue;
+    }
+
+    /**
+     * Sets how large a sorted set may grow while it is kept packed into a single
+     * array. Sorted sets are converted once they pass either limit; sorted sets
+     * already converted stay as they are until the store is next loaded.
+     *
+     * @param maxEntries The most members of a packed sorted set.
+     * @param maxValue The longest member of a packed sorted set, in characters.
+     */
+    public void setZSetLimits(int maxEntries, int maxValue){
+        this.zsetMaxPackedEntries = maxEntries;
+        this.zsetMaxPackedValue = maxValue;
+    }
+
+    /**
+     * Sets how many members a set whose members are all integers may have while
+     * it is kept as a sorted array of them. Sets are converted once they pass the
+     * limit; sets already converted stay as they are until the store is next loaded.
+     *
+     * @param maxEntries The most members of an integer set.
+     */
+    public void setSetLimits(int maxEntries){
+        this.setMaxIntsetEntries = maxEntries;
+    }
+
+    /**
+     * Gets how much off-heap memory the slabs have taken, including free slots.
+     *
+     * @return The size in bytes.
+     */
+    public long getOffHeapReserved(){
+        long reserved = 0;
+        for(Segment s : segments){
+            s.lock.readLock().lock();
+            try{
+                reserved += s.slabs.reservedBytes();
+            }finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Gets the number of keys evicted to stay within the memory budget.
+     *
+     * @return The number of evicted keys.
+     */
+    public long getEvictedCount(){
+        return evicted.sum();
+    }
+
+    /**
+     * Gets the expiry manager of this store.
+     *
+     * @return The expiry manager.
+     */
+    public ExpiryManager getExpiryManager(){
+        return expiry;
+    }
+
+    /**
+     * Gets the number of keys in the store.
+     *
+     * @return The number of keys.
+     */
+    public int size(){
+        int size = 0;
+        for(Segment s : segments){
+            s.lock.readLock().lock();
+            try{
+                size += s.map.size();
+            }finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A batch of keys returned by {@link #scan(long, int, String)}.
+     *
+     * @param cursor The cursor to pass to the next call, 0 once the whole keyspace has been walked.
+     * @param keys The keys of this batch.
+     */
+    public record ScanBatch(long cursor, List<String> keys) {
+    }
+
+    /**
+     * Walks the keyspace in batches, one call at a time, without the caller or
+     * the store keeping any state between calls.
+     * <p>
+     * The keys of each segment are walked in the order of their hash codes, so
+     * a cursor is the index of a segment and the lowest hash not yet returned
+     * from it. A batch takes the keys with the next {@code count} hashes, plus
+     * any others sharing the last hash, and moves on to the following segments
+     * while it has fewer. Keys added or removed meanwhile do not shift the
+     * others, so every key present for the whole walk is returned exactly once;
+     * keys added or removed during the walk may or may not be. Finding a batch
+     * costs a pass over each segment it takes keys from, under that segment's
+     * read lock.
+     *
+     * @param cursor 0 to start a walk, or the cursor returned by the previous call.
+     * @param count How many keys to aim for; a batch can hold more, or fewer when filtered.
+     * @param pattern A glob pattern the keys returned must match, or null for every key.
+     *                It is applied after the batch is taken, so a batch may come back empty.
+     * @return The batch and the cursor to continue from.
+     * @throws IllegalStateException If the cursor was not returned by this store.
+     */
+    public ScanBatch scan(long cursor, int count, String pattern){
+        long segment = cursor >>> 32;
+        if(segment >= segments.length)
+            throw new IllegalStateException("ERR invalid cursor");
+        int wanted = Math.max(1, count);
+        long bound = cursor & 0xFFFFFFFFL;
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<>(Math.min(wanted, SCAN_HEAP_LIMIT));
+        long[] heap = new long[Math.min(wanted, SCAN_HEAP_LIMIT)];
+        int i = (int) segment;
+        while(i < segments.length && keys.size() < wanted){
+            Segment s = segments[i];
+            long last;
+            s.lock.readLock().lock();
+            try{
+                last = lowestHashes(s, bound, now, heap, Math.min(heap.length, wanted - keys.size()));
+                for(Map.Entry<String, Type> e : s.map.entrySet()){
+                    long h = scanHash(e.getKey());
+                    if(h >= bound && h <= last && !e.getValue().isExpired(now))
+                        keys.add(e.getKey());
+                }
+            }finally {
+                s.lock.readLock().unlock();
+            }
+            if(last < 0xFFFFFFFFL){
+                bound = last + 1;
+            }else{
+                i++;
+                bound = 0;
+            }
+        }
+        long next = i < segments.length ? (long) i << 32 | bound : 0;
+        if(pattern != null)
+            keys.removeIf(key -> !Glob.matches(pattern, key));
+        return new ScanBatch(next, keys);
+    }
+
+    /**
+     * Orders the keys of a segment for scanning: their spread hash code, as an unsigned value.
+     */
+    private static long scanHash(String key){
+        int h = key.hashCode();
+        return Integer.toUnsignedLong(h ^ (h >>> 16));
+    }
+
+    /**
+     * Finds the highest of the {@code limit} lowest hashes at or above a bound
+     * among the live keys of a segment, keeping the lowest found so far in a
+     * max-heap. Must be called under the segment lock.
+     *
+     * @return That hash, or the highest possible hash if the segment has no more than {@code limit} such keys.
+     */
+    private static long lowestHashes(Segment s, long bound, long now, long[] heap, int limit){
+        int size = 0;
+        for(Map.Entry<String, Type> e : s.map.entrySet()){
+            long h = scanHash(e.getKey());
+            if(h < bound || e.getValue().isExpired(now))
+                continue;
+            if(size < limit){
+                int c = size++;
+                while(c > 0 && heap[(c - 1) / 2] < h){
+                    heap[c] = heap[(c - 1) / 2];
+                    c = (c - 1) / 2;
+                }
+                heap[c] = h;
+            }else if(h < heap[0]){
+                int c = 0;
+                while(true){
+                    int child = 2 * c + 1;
+                    if(child >= size)
+                        break;
+                    if(child + 1 < size && heap[child + 1] > heap[child])
+                        child++;
+                    if(heap[child] <= h)
+                        break;
+                    heap[c] = heap[child];
+                    c = child;
+                }
+                heap[c] = h;
+            }
+        }
+        return size < limit ? 0xFFFFFFFFL : heap[0];
+    }
+
+    /**
+     * Loads data from a file into the store, replacing its contents. The file is
+     * decoded by several threads into new segment maps while the store keeps
+     * serving the old data; the maps are swapped in at the end under every
+     * segment lock. The listener is given the loaded entries before the swap and
+     * told the keyspace was replaced during it. Files in the older serialized
+     * format are still read.
+     *
+     * @param fileName The name of the file to load from.
+     * @return The number of keys loaded.
+     */
+    public int loadDataStore(String fileName){
+        List<Map<String, Type>> maps = new ArrayList<>(segments.length);
+        SlabAllocator[] slabs = new SlabAllocator[segments.length];
+        ReentrantLock[] mapLocks = new ReentrantLock[segments.length];
+        for(int i = 0; i < segments.length; i++){
+            slabs[i] = new SlabAllocator();
+            mapLocks[i] = new ReentrantLock();
+        }
+        LongAdder loadedMemory = new LongAdder();
+        List<List<String>> expiringKeys = new ArrayList<>(segments.length);
+        for(int i = 0; i < segments.length; i++){
+            expiringKeys.add(new ArrayList<>());
+        }
+        LongFunction<BiConsumer<String, Type>> sinkFor = entries -> {
+            int perSegment = (int) Math.min(Integer.MAX_VALUE, entries / segments.length + 1);
+            maps.clear();
+            for(int i = 0; i < segments.length; i++){
+                maps.add(LinkedHashMap.newLinkedHashMap(perSegment));
+            }
+            return (key, loadedValue) -> {
+                int i = indexFor(key);
+                mapLocks[i].lock();
+                try{
+                    Type value = loadedValue;
+                    if(value instanceof StringType && (offHeap || NumberType.parseInteger(value.get()) != null)){
+                        value = newString(slabs[i], loadedValue.get());
+                        value.setExpiryAt(loadedValue.getExpiry());
+                    }
+                    if(value instanceof HashType hash)
+                        hash.encodeFor(hashMaxPackedEntries, hashMaxPackedValue);
+                    if(value instanceof ZSetType zset)
+                        zset.encodeFor(zsetMaxPackedEntries, zsetMaxPackedValue);
+                    if(value instanceof SetType set)
+                        set.encodeFor(setMaxIntsetEntries);
+                    value.setAccess(policy.initialAccess());
+                    loadedMemory.add(MemoryUsage.ofEntry(key, value));
+                    maps.get(i).put(key, value);
+                    if(value.getExpiry() != -1)
+                        expiringKeys.get(i).add(key);
+                }finally {
+                    mapLocks[i].unlock();
+                }
+            };
+        };
+        SnapshotIO snapshotIO = new SnapshotIO();
+        int loaded;
+        if(snapshotIO.exists(fileName)){
+            loaded = snapshotIO.read(fileName, sinkFor);
+        }else{
+            Map<String, Type> legacy = new ObjectIO().readObjectFromFile(fileName);
+            legacy.forEach(sinkFor.apply(legacy.size()));
+            loaded = legacy.size();
+        }
+        ChangeListener l = listener;
+        if(l != null)
+            l.onReplacing(visitor -> maps.forEach(map -> map.forEach(visitor)));
+        snapshotLock.lock();
+        for(Segment s : segments){
+            s.lock.writeLock().lock();
+        }
+        try{
+            expiry.clear();
+            for(int i = 0; i < segments.length; i++){
+                segments[i].map = maps.get(i);
+                segments[i].slabs = slabs[i];
+                if(!expiring)
+                    continue;
+                for(String key : expiringKeys.get(i)){
+                    expiry.track(key, maps.get(i).get(key).getExpiry());
+                }
+            }
+            usedMemory.reset();
+            usedMemory.add(loadedMemory.sum());
+            if(l != null)
+                l.onReplaced();
+        }finally {
+            for(Segment s : segments){
+                s.lock.writeLock().unlock();
+            }
+            snapshotLock.unlock();
+        }
+        return loaded;
+    }
+
+    /**
+     * Removes every key at once, without reporting the change to the listener.
+     * Used before the store is refilled from another source, such as a leader
+     * sending its data to a follower.
+     */
+    public void clear(){
+        snapshotLock.lock();
+        for(Segment s : segments){
+            s.lock.writeLock().lock();
+        }
+        try{
+            for(Segment s : segments){
+                s.map = new LinkedHashMap<>();
+                s.slabs = new SlabAllocator();
+            }
+            expiry.clear();
+            usedMemory.reset();
+        }finally {
+            for(Segment s : segments){
+                s.lock.writeLock().unlock();
+            }
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background expiry of this store. The keys stay readable, but
+     * keys with a time to live are then only removed when they are next read.
      */
-    public void loadDataStore(String fileName){
-        ObjectIO objectIO = new ObjectIO();
-        map = objectIO.readObjectFromFile(fileName);
+    public void close(){
+        expiry.shutdown();
     }
 
     /**
-     * Saves data from the store to a file.
+     * Saves a point-in-time snapshot of the store to a file. Other connections
+     * keep reading and writing while it is saved.
      *
      * @param fileName The name of the file to save to.
+     * @return The number of keys saved.
      */
-    public void saveDataStore(String fileName){
-        ObjectIO objectIO = new ObjectIO();
-        objectIO.writeObjectToFile(map, fileName);
+    public int saveDataStore(String fileName){
+        SnapshotIO snapshotIO = new SnapshotIO();
+        return snapshotIO.write(fileName, this::forEachAtSnapshot);
     }
 }
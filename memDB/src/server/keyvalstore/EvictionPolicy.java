@@ -0,0 +1,121 @@
+package server.keyvalstore;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the data store makes room once its memory budget is used up.
+ * <p>
+ * Policies compare a handful of sampled keys rather than keeping keys in
+ * global order, so reads only update a field of the value they touch. LRU
+ * records a coarse clock reading on each access. LFU keeps a logarithmic
+ * counter in the low byte of the access information and the minute it was
+ * last decayed in the bits above it; the counter halves its growth as it gets
+ * larger and loses one point for every minute the key is not used. TTL needs
+ * no sampling: the expiry manager already orders keys by deadline.
+ */
+public enum EvictionPolicy {
+    NOEVICTION,     // Reject writes that need memory
+    ALLKEYS_LRU,    // Evict the least recently used of the sampled keys
+    ALLKEYS_LFU,    // Evict the least frequently used of the sampled keys
+    VOLATILE_TTL,   // Evict the key with a time to live closest to expiring
+    ALLKEYS_RANDOM; // Evict a random sampled key
+
+    /**
+     * The counter given to new keys, so they survive long enough to be used.
+     */
+    private static final int LFU_INIT = 5;
+    private static final int LFU_LOG_FACTOR = 10;
+    private static final long CLOCK_START = System.nanoTime();
+    private static final long CLOCK_RESOLUTION_NANOS = 100_000_000L;
+
+    /**
+     * Parses a policy name such as {@code allkeys-lru}.
+     *
+     * @param name The policy name, in any case, with dashes or underscores.
+     * @return The policy.
+     * @throws IllegalArgumentException If there is no such policy.
+     */
+    public static EvictionPolicy fromName(String name) {
+        return valueOf(name.toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * Checks whether the policy needs access information kept up to date.
+     *
+     * @return True for LRU and LFU.
+     */
+    boolean tracksAccess() {
+        return this == ALLKEYS_LRU || this == ALLKEYS_LFU;
+    }
+
+    /**
+     * Gets the access information for a value that was just created.
+     *
+     * @return The initial access information.
+     */
+    int initialAccess() {
+        return switch (this) {
+            case ALLKEYS_LRU -> lruClock();
+            case ALLKEYS_LFU -> (lfuMinutes() << 8) | LFU_INIT;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Gets the access information of a value after it was used.
+     *
+     * @param access The current access information.
+     * @return The updated access information.
+     */
+    int touch(int access) {
+        return switch (this) {
+            case ALLKEYS_LRU -> lruClock();
+            case ALLKEYS_LFU -> {
+                int counter = decayedCounter(access);
+                if (counter < 255) {
+                    double p = 1.0 / ((Math.max(0, counter - LFU_INIT)) * LFU_LOG_FACTOR + 1);
+                    if (ThreadLocalRandom.current().nextDouble() < p)
+                        counter++;
+                }
+                yield (lfuMinutes() << 8) | counter;
+            }
+            default -> access;
+        };
+    }
+
+    /**
+     * Ranks a value for eviction: the lowest ranked sampled value is evicted.
+     *
+     * @param value The value.
+     * @param now The current time in epoch milliseconds.
+     * @return The rank, or {@link Long#MAX_VALUE} if the policy never evicts the value.
+     */
+    long rank(Type value, long now) {
+        if (value.isExpired(now)) {
+            return Long.MIN_VALUE;
+        }
+        return switch (this) {
+            case ALLKEYS_LRU -> value.getAccess();
+            case ALLKEYS_LFU -> decayedCounter(value.getAccess());
+            case ALLKEYS_RANDOM -> ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+            case VOLATILE_TTL, NOEVICTION -> Long.MAX_VALUE;
+        };
+    }
+
+    private static int decayedCounter(int access) {
+        int counter = access & 0xFF;
+        int elapsed = (lfuMinutes() - (access >>> 8)) & 0xFFFF;
+        return Math.max(0, counter - elapsed);
+    }
+
+    /**
+     * Gets a clock that advances ten times a second.
+     */
+    private static int lruClock() {
+        return (int) ((System.nanoTime() - CLOCK_START) / CLOCK_RESOLUTION_NANOS);
+    }
+
+    private static int lfuMinutes() {
+        return (int) (System.currentTimeMillis() / 60_000) & 0xFFFF;
+    }
+}
@@ -0,0 +1,233 @@
+package server.keyvalstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Central expiry subsystem for the data store.
+ * <p>
+ * Keys with a time to live are recorded in a deadline-ordered index. A single
+ * daemon thread runs an active expiry cycle that reclaims keys whose deadline
+ * has passed, while the data store also expires keys lazily when a command
+ * touches them. Every key removed this way is reported to the store's change
+ * listener as deleted. The index holds one deadline per key: the store replaces
+ * it when the key gets a new time to live and removes it when the key loses its
+ * time to live or is removed, always under the lock of the key's segment.
+ * While the store's expiry is turned off, as on a follower, the index is left
+ * empty and rebuilt when expiry is turned back on.
+ * <p>
+ * The timer thread starts with the first deadline, so a store whose keys never
+ * expire runs no thread.
+ */
+public class ExpiryManager {
+    /**
+     * How often the active expiry cycle runs, in milliseconds.
+     */
+    private static final long CYCLE_INTERVAL_MS = 100;
+    /**
+     * The number of due keys reclaimed between time budget checks.
+     */
+    private static final int BATCH_SIZE = 20;
+    private static final long MIN_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+
+    private final DataStore store;
+    private final ConcurrentSkipListSet<Deadline> deadlines = new ConcurrentSkipListSet<>();
+    /**
+     * The deadline of each key in {@link #deadlines}.
+     */
+    private final ConcurrentHashMap<String, Deadline> byKey = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder expired = new LongAdder();
+    private final ScheduledExecutorService timer;
+    private long budgetNanos = MIN_BUDGET_NANOS;
+    private volatile boolean started;
+
+    /**
+     * An entry in the deadline index, ordered by time and then insertion order.
+     */
+    private record Deadline(long at, long seq, String key) implements Comparable<Deadline> {
+        @Override
+        public int compareTo(Deadline o) {
+            int c = Long.compare(at, o.at);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Constructs an expiry manager for the given store. Its timer thread is
+     * started by {@link #start()}.
+     *
+     * @param store The data store whose keys are expired.
+     */
+    public ExpiryManager(DataStore store) {
+        this.store = store;
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expiry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts the active expiry cycle, unless it already runs or the manager was shut down.
+     */
+    public synchronized void start() {
+        if (!started && !timer.isShutdown()) {
+            started = true;
+            timer.schedule(this::runCycle, CYCLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records that the given key expires at the given time, replacing the
+     * deadline it had. Must be called under the lock of the key's segment.
+     *
+     * @param key The key that expires.
+     * @param expTime The expiry time in epoch milliseconds, or -1 to forget the key's deadline.
+     */
+    void track(String key, long expTime) {
+        if (expTime == -1) {
+            untrack(key);
+            return;
+        }
+        Deadline deadline = new Deadline(expTime, sequence.incrementAndGet(), key);
+        Deadline old = byKey.put(key, deadline);
+        if (old != null) {
+            deadlines.remove(old);
+        }
+        deadlines.add(deadline);
+        if (!started) {
+            start();
+        }
+    }
+
+    /**
+     * Forgets the deadline of a key that lost its time to live or was removed.
+     * Must be called under the lock of the key's segment.
+     *
+     * @param key The key.
+     */
+    void untrack(String key) {
+        Deadline old = byKey.remove(key);
+        if (old != null) {
+            deadlines.remove(old);
+        }
+    }
+
+    /**
+     * Forgets every deadline, for when the whole keyspace is replaced. Must be
+     * called while every segment is locked.
+     */
+    void clear() {
+        byKey.clear();
+        deadlines.clear();
+    }
+
+    /**
+     * Counts a key that was removed because it expired.
+     */
+    void recordExpired() {
+        expired.increment();
+    }
+
+    /**
+     * Gets the number of keys removed because they expired.
+     *
+     * @return The number of expired keys.
+     */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    /**
+     * Gets the number of keys with a time to live.
+     *
+     * @return The number of deadlines in the index.
+     */
+    public int pending() {
+        return byKey.size();
+    }
+
+    /**
+     * Evicts the key that is closest to expiring.
+     *
+     * @return True if a key was evicted, false if no key has a time to live.
+     */
+    boolean evictNearest() {
+        Deadline first;
+        while ((first = deadlines.pollFirst()) != null) {
+            if (store.evictIfExpiresAt(first.key, first.at)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs one expiry cycle and schedules the next one. A cycle that left keys
+     * due is followed after a pause as long as its budget instead of the
+     * regular interval, so a backlog is worked off at no more than half a core.
+     */
+    private void runCycle() {
+        boolean drained = true;
+        try {
+            drained = activeExpireCycle();
+        } finally {
+            long delay = drained ? TimeUnit.MILLISECONDS.toNanos(CYCLE_INTERVAL_MS) : budgetNanos;
+            if (!timer.isShutdown()) {
+                timer.schedule(this::runCycle, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Reclaims keys whose deadline has passed.
+     * The cycle works in batches until nothing is due or its time budget is
+     * spent. When the budget runs out with keys still due, the next cycle gets
+     * a larger budget; when a cycle drains everything, the budget shrinks back.
+     * Nothing is reclaimed while the store has expiry turned off.
+     *
+     * @return True if no due keys are left.
+     */
+    boolean activeExpireCycle() {
+        if (!store.isExpiring()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        boolean drained = false;
+        while (System.nanoTime() - start < budgetNanos) {
+            int reclaimed = 0;
+            while (reclaimed < BATCH_SIZE) {
+                Deadline first = deadlines.pollFirst();
+                if (first == null || first.at > now) {
+                    if (first != null) {
+                        deadlines.add(first);
+                    }
+                    drained = true;
+                    break;
+                }
+                store.expireIfDue(first.key, now);
+                reclaimed++;
+            }
+            if (drained) {
+                break;
+            }
+        }
+        budgetNanos = drained ? MIN_BUDGET_NANOS : Math.min(budgetNanos * 2, MAX_BUDGET_NANOS);
+        return drained;
+    }
+
+    /**
+     * Stops the timer thread.
+     */
+    public synchronized void shutdown() {
+        timer.shutdownNow();
+    }
+}
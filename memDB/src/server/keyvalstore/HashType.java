@@ -0,0 +1,354 @@
+package server.keyvalstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Represents a hash type, a map of fields to values, that can be stored in the
+ * key-value store.
+ * <p>
+ * A small hash is packed into a single byte array of alternating fields and
+ * values written by {@link PackedStrings}, which costs a byte or two per string
+ * on top of its text instead of a map entry and two string objects. Fields are
+ * found by comparing their encoded bytes in a linear scan, which is quick while
+ * the hash is small. Once a hash holds more fields, or a longer field or value,
+ * than the limits passed to {@link #set(String, String, int, int)}, it is
+ * converted to a hash map for good.
+ */
+public class HashType implements Type {
+    /**
+     * The default most fields a hash keeps packed.
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRIES = 128;
+    /**
+     * The default longest field or value, in characters, a hash keeps packed.
+     */
+    public static final int DEFAULT_MAX_PACKED_VALUE = 64;
+
+    private byte[] packed;
+    private int used;
+    private int count;
+    private Map<String, String> table;
+    private long expTime;
+    /**
+     * The estimated size of the fields and values, kept up to date so it is cheap to read.
+     */
+    private long bytes;
+    private int access;
+
+    /**
+     * Default constructor.
+     * Initializes an empty packed hash that never expires.
+     */
+    public HashType(){
+        packed = new byte[32];
+        expTime = -1L;
+        bytes = MemoryUsage.ARRAY + packed.length;
+    }
+
+    /**
+     * Makes an independent copy of the hash.
+     *
+     * @return The copy.
+     */
+    @Override
+    public HashType copy(){
+        HashType copy = new HashType();
+        if(table != null){
+            copy.table = new HashMap<>(table);
+            copy.packed = null;
+        }else{
+            copy.packed = Arrays.copyOf(packed, packed.length);
+        }
+        copy.used = used;
+        copy.count = count;
+        copy.bytes = bytes;
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    /**
+     * Finds where the entry of a field starts in the packed array.
+     *
+     * @return The offset of the field, or -1 if the hash has no such field.
+     */
+    private int find(byte[] field){
+        int offset = 0;
+        while(offset < used){
+            if(PackedStrings.matches(packed, offset, field))
+                return offset;
+            offset = PackedStrings.skip(packed, PackedStrings.skip(packed, offset));
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the bytes between two offsets of the packed array with others.
+     */
+    private void splice(int from, int to, byte[] entry){
+        int needed = used - (to - from) + entry.length;
+        if(needed > packed.length){
+            int capacity = Math.max(needed, packed.length * 2);
+            bytes += capacity - packed.length;
+            packed = Arrays.copyOf(packed, capacity);
+        }
+        System.arraycopy(packed, to, packed, from + entry.length, used - to);
+        System.arraycopy(entry, 0, packed, from, entry.length);
+        used = needed;
+    }
+
+    /**
+     * Moves the fields and values into a hash map.
+     */
+    private void convert(){
+        Map<String, String> entries = new HashMap<>(count * 2);
+        long[] size = {MemoryUsage.HASH_TABLE};
+        forEach((field, value) -> {
+            entries.put(field, value);
+            size[0] += tableEntry(field, value);
+        });
+        table = entries;
+        bytes = size[0];
+        packed = null;
+        used = 0;
+    }
+
+    private static long tableEntry(String field, String value){
+        return MemoryUsage.ENTRY + MemoryUsage.ofString(field) + MemoryUsage.ofString(value);
+    }
+
+    /**
+     * Gets the value of a field.
+     *
+     * @param field The field.
+     * @return The value, or null if the hash has no such field.
+     */
+    public String get(String field){
+        if(table != null)
+            return table.get(field);
+        int offset = find(PackedStrings.encode(field));
+        return offset >= 0 ? PackedStrings.read(packed, PackedStrings.skip(packed, offset)) : null;
+    }
+
+    /**
+     * Sets the value of a field, converting a packed hash to a hash map if the
+     * field would take it past either limit.
+     *
+     * @param field The field.
+     * @param value The value.
+     * @param maxPackedEntries The most fields a packed hash may hold.
+     * @param maxPackedValue The longest field or value, in characters, a packed hash may hold.
+     * @return True if the field is new, false if its value was replaced.
+     */
+    public boolean set(String field, String value, int maxPackedEntries, int maxPackedValue){
+        if(table == null){
+            byte[] f = PackedStrings.encode(field);
+            byte[] v = PackedStrings.encode(value);
+            int offset = find(f);
+            if(offset >= 0 && value.length() <= maxPackedValue){
+                int start = PackedStrings.skip(packed, offset);
+                splice(start, PackedStrings.skip(packed, start), v);
+                return false;
+            }
+            if(offset < 0 && count < maxPackedEntries && field.length() <= maxPackedValue && value.length() <= maxPackedValue){
+                byte[] entry = Arrays.copyOf(f, f.length + v.length);
+                System.arraycopy(v, 0, entry, f.length, v.length);
+                splice(used, used, entry);
+                count++;
+                return true;
+            }
+            convert();
+        }
+        String old = table.put(field, value);
+        if(old != null){
+            bytes += MemoryUsage.ofString(value) - MemoryUsage.ofString(old);
+            return false;
+        }
+        bytes += tableEntry(field, value);
+        count++;
+        return true;
+    }
+
+    /**
+     * Removes a field.
+     *
+     * @param field The field.
+     * @return True if the hash had the field.
+     */
+    public boolean remove(String field){
+        if(table != null){
+            String old = table.remove(field);
+            if(old == null)
+                return false;
+            bytes -= tableEntry(field, old);
+            count--;
+            return true;
+        }
+        int offset = find(PackedStrings.encode(field));
+        if(offset < 0)
+            return false;
+        splice(offset, PackedStrings.skip(packed, PackedStrings.skip(packed, offset)), new byte[0]);
+        count--;
+        return true;
+    }
+
+    /**
+     * Packs a hash map that fits the limits, or converts a packed hash that does
+     * not, so a hash read from a snapshot is held as if it had been built with them.
+     *
+     * @param maxPackedEntries The most fields a packed hash may hold.
+     * @param maxPackedValue The longest field or value, in characters, a packed hash may hold.
+     */
+    public void encodeFor(int maxPackedEntries, int maxPackedValue){
+        boolean[] fits = {count <= maxPackedEntries};
+        forEach((field, value) -> fits[0] &= field.length() <= maxPackedValue && value.length() <= maxPackedValue);
+        if(table == null && !fits[0]){
+            convert();
+        }else if(table != null && fits[0]){
+            Map<String, String> entries = table;
+            table = null;
+            packed = new byte[32];
+            used = 0;
+            count = 0;
+            bytes = MemoryUsage.ARRAY + packed.length;
+            entries.forEach((field, value) -> set(field, value, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Passes every field and its value to an action, in no particular order.
+     *
+     * @param action Receives each field and value.
+     */
+    public void forEach(BiConsumer<String, String> action){
+        if(table != null){
+            table.forEach(action);
+            return;
+        }
+        int offset = 0;
+        while(offset < used){
+            int valueOffset = PackedStrings.skip(packed, offset);
+            action.accept(PackedStrings.read(packed, offset), PackedStrings.read(packed, valueOffset));
+            offset = PackedStrings.skip(packed, valueOffset);
+        }
+    }
+
+    /**
+     * Returns the fields and values of the hash.
+     *
+     * @return Each field followed by its value.
+     */
+    public List<String> entries(){
+        List<String> entries = new ArrayList<>(count * 2);
+        forEach((field, value) -> {
+            entries.add(field);
+            entries.add(value);
+        });
+        return entries;
+    }
+
+    /**
+     * Returns the number of fields in the hash.
+     *
+     * @return The number of fields.
+     */
+    public int len(){
+        return count;
+    }
+
+    /**
+     * Checks whether the hash is packed into a single array.
+     *
+     * @return True if packed, false if held in a hash map.
+     */
+    public boolean isPacked(){
+        return table == null;
+    }
+
+    /**
+     * Estimates how much memory the hash uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.HASH_TYPE + bytes;
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Returns a string representation of the hash.
+     *
+     * @return Each field followed by its value, separated by spaces, or "null" if the hash is empty.
+     */
+    @Override
+    public String get(){
+        if(count == 0)
+            return "null";
+        StringBuilder sb = new StringBuilder();
+        forEach((field, value) -> sb.append(field).append(' ').append(value).append(' '));
+        return sb.toString();
+    }
+
+    /**
+     * Sets the expiry time for the hash.
+     * The hash is removed from the store by the expiry manager once the time has passed.
+     *
+     * @param time The time to live in milliseconds.
+     */
+    @Override
+    public void setExpiry(Long time) {
+        expTime = System.currentTimeMillis() + time;
+    }
+
+    /**
+     * Sets an absolute expiry time for the hash.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the hash.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the hash never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the hash.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
+    }
+}
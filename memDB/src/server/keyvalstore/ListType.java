@@ -1,32 +1,211 @@
 package server.keyvalstore;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Represents a list type that can be stored in the key-value store.
+ * <p>
+ * The elements are packed into a doubly linked chain of chunks. Each chunk is
+ * a byte array holding up to {@value #CHUNK_ENTRIES} elements, or about
+ * {@value #CHUNK_BYTES} bytes, each written as its UTF-8 length followed by its
+ * UTF-8 bytes by {@link PackedStrings}, so an element costs one or two bytes
+ * more than its text.
+ * Pushing and popping touch only the chunk at that end; finding an index walks
+ * whole chunks from the nearer end and then scans a single chunk.
  */
 public class ListType implements Type, Serializable {
-    private final List<StringType> list;
-    private Long expTime;
+    /**
+     * Fixed to the value of the first release so its snapshot files stay readable.
+     */
+    private static final long serialVersionUID = 3106190300576843947L;
+    /**
+     * The serialized form of the first release, which kept a linked list of
+     * strings and a boxed expiry time.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("list", List.class),
+            new ObjectStreamField("expTime", Long.class)
+    };
+    /**
+     * The size a chunk is filled to before a new one is started. A larger
+     * element gets a chunk to itself.
+     */
+    private static final int CHUNK_BYTES = 8192;
+    /**
+     * The most elements kept in one chunk, which bounds the scan for an index.
+     */
+    private static final int CHUNK_ENTRIES = 128;
+
+    /**
+     * A run of elements packed into one array.
+     */
+    private static final class Chunk{
+        private byte[] data;
+        private int used;
+        private int count;
+        private Chunk prev;
+        private Chunk next;
+
+        private Chunk(int capacity){
+            data = new byte[capacity];
+        }
+
+        /**
+         * Finds where an element starts.
+         */
+        private int offsetOf(int index){
+            int offset = 0;
+            for(int i = 0; i < index; i++){
+                offset = skip(offset);
+            }
+            return offset;
+        }
+
+        /**
+         * Gets where the element after the one at the given offset starts.
+         */
+        private int skip(int offset){
+            return PackedStrings.skip(data, offset);
+        }
+
+        private String read(int offset){
+            return PackedStrings.read(data, offset);
+        }
+
+        /**
+         * Replaces the bytes between two offsets with an encoded element, or
+         * with nothing if it is null.
+         *
+         * @return The change in the capacity of the chunk.
+         */
+        private int splice(int from, int to, byte[] entry){
+            int length = entry != null ? entry.length : 0;
+            int needed = used - (to - from) + length;
+            int grown = 0;
+            if(needed > data.length){
+                int capacity = Math.max(needed, Math.min(data.length * 2, CHUNK_BYTES));
+                grown = capacity - data.length;
+                data = Arrays.copyOf(data, capacity);
+            }
+            System.arraycopy(data, to, data, from + length, used - to);
+            if(entry != null){
+                System.arraycopy(entry, 0, data, from, length);
+            }
+            used = needed;
+            return grown;
+        }
+
+        private boolean fits(byte[] entry){
+            return count < CHUNK_ENTRIES && used + entry.length <= CHUNK_BYTES;
+        }
+    }
+
+    private transient Chunk head;
+    private transient Chunk tail;
+    private transient int size;
+    private long expTime;
+    /**
+     * The estimated size of the chunks, kept up to date so it is cheap to read.
+     */
+    private transient long bytes;
+    private transient int access;
 
     /**
      * Default constructor.
      * Initializes the list and sets the expiry time to -1 (never expires).
      */
     public ListType(){
-        list = new LinkedList<>();
         expTime = -1L;
     }
 
+    /**
+     * Makes an independent copy of the list.
+     *
+     * @return The copy.
+     */
+    @Override
+    public ListType copy(){
+        ListType copy = new ListType();
+        for(Chunk c = head; c != null; c = c.next){
+            Chunk chunk = new Chunk(c.used);
+            System.arraycopy(c.data, 0, chunk.data, 0, c.used);
+            chunk.used = c.used;
+            chunk.count = c.count;
+            copy.link(chunk, copy.tail);
+        }
+        copy.size = size;
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    /**
+     * Links a chunk into the chain after the given one, or first if it is null.
+     */
+    private void link(Chunk chunk, Chunk after){
+        chunk.prev = after;
+        chunk.next = after != null ? after.next : head;
+        if(chunk.next != null)
+            chunk.next.prev = chunk;
+        else
+            tail = chunk;
+        if(after != null)
+            after.next = chunk;
+        else
+            head = chunk;
+        bytes += MemoryUsage.LIST_CHUNK + chunk.data.length;
+    }
+
+    private void unlink(Chunk chunk){
+        if(chunk.prev != null)
+            chunk.prev.next = chunk.next;
+        else
+            head = chunk.next;
+        if(chunk.next != null)
+            chunk.next.prev = chunk.prev;
+        else
+            tail = chunk.prev;
+        bytes -= MemoryUsage.LIST_CHUNK + chunk.data.length;
+    }
+
+    /**
+     * Removes the elements of a chunk from one index up to, but not including,
+     * another, unlinking the chunk if it ends up empty.
+     */
+    private void removeFrom(Chunk chunk, int from, int to){
+        if(to - from == chunk.count){
+            unlink(chunk);
+        }else{
+            int start = chunk.offsetOf(from);
+            int end = start;
+            for(int i = from; i < to; i++){
+                end = chunk.skip(end);
+            }
+            chunk.splice(start, end, null);
+            chunk.count -= to - from;
+        }
+        size -= to - from;
+    }
+
     /**
      * Adds a new element to the beginning of the list.
      *
      * @param value The value to be added to the list.
      */
     public void lPush(String value){
-        list.addFirst(new StringType(value));
+        byte[] entry = PackedStrings.encode(value);
+        if(head == null || !head.fits(entry))
+            link(new Chunk(Math.max(64, entry.length)), null);
+        bytes += head.splice(0, 0, entry);
+        head.count++;
+        size++;
     }
 
     /**
@@ -35,7 +214,38 @@ public class ListType implements Type, Serializable {
      * @param value The value to be added to the list.
      */
     public void rPush(String value){
-        list.addLast(new StringType(value));
+        byte[] entry = PackedStrings.encode(value);
+        if(tail == null || !tail.fits(entry))
+            link(new Chunk(Math.max(64, entry.length)), tail);
+        bytes += tail.splice(tail.used, tail.used, entry);
+        tail.count++;
+        size++;
+    }
+
+    /**
+     * Removes and returns the first element of the list.
+     *
+     * @return The first element, or null if the list is empty.
+     */
+    public String lPop(){
+        if(head == null)
+            return null;
+        String value = head.read(0);
+        removeFrom(head, 0, 1);
+        return value;
+    }
+
+    /**
+     * Removes and returns the last element of the list.
+     *
+     * @return The last element, or null if the list is empty.
+     */
+    public String rPop(){
+        if(tail == null)
+            return null;
+        String value = tail.read(tail.offsetOf(tail.count - 1));
+        removeFrom(tail, tail.count - 1, tail.count);
+        return value;
     }
 
     /**
@@ -44,10 +254,197 @@ public class ListType implements Type, Serializable {
      * @return The last element of the list, or "null" if the list is empty.
      */
     public String pop(){
-        if(!list.isEmpty()){
-            return list.removeLast().get();
+        String value = rPop();
+        return value != null ? value : "null";
+    }
+
+    /**
+     * Turns an index that may count back from the end into one from the start.
+     */
+    private long normalize(long index){
+        return index < 0 ? size + index : index;
+    }
+
+    /**
+     * Finds the chunk holding an element, walking from the nearer end.
+     *
+     * @param index The index of the element from the start, within the list.
+     * @return The chunk, with the index within it stored in {@code found[0]}.
+     */
+    private Chunk locate(int index, int[] found){
+        if(index < size / 2){
+            Chunk c = head;
+            while(index >= c.count){
+                index -= c.count;
+                c = c.next;
+            }
+            found[0] = index;
+            return c;
+        }
+        int fromEnd = size - 1 - index;
+        Chunk c = tail;
+        while(fromEnd >= c.count){
+            fromEnd -= c.count;
+            c = c.prev;
+        }
+        found[0] = c.count - 1 - fromEnd;
+        return c;
+    }
+
+    /**
+     * Gets the element at an index.
+     *
+     * @param index The index, negative to count back from the end.
+     * @return The element, or null if the index is out of range.
+     */
+    public String index(long index){
+        index = normalize(index);
+        if(index < 0 || index >= size)
+            return null;
+        int[] found = new int[1];
+        Chunk c = locate((int) index, found);
+        return c.read(c.offsetOf(found[0]));
+    }
+
+    /**
+     * Replaces the element at an index.
+     *
+     * @param index The index, negative to count back from the end.
+     * @param value The new element.
+     * @return False if the index is out of range.
+     */
+    public boolean set(long index, String value){
+        index = normalize(index);
+        if(index < 0 || index >= size)
+            return false;
+        int[] found = new int[1];
+        Chunk c = locate((int) index, found);
+        int start = c.offsetOf(found[0]);
+        bytes += c.splice(start, c.skip(start), PackedStrings.encode(value));
+        return true;
+    }
+
+    /**
+     * Gets the elements between two indexes, both included. Indexes beyond
+     * either end are clamped to it.
+     *
+     * @param start The first index, negative to count back from the end.
+     * @param stop The last index, negative to count back from the end.
+     * @return The elements in order, empty if the range is.
+     */
+    public List<String> range(long start, long stop){
+        start = Math.max(0, normalize(start));
+        stop = Math.min(size - 1, normalize(stop));
+        if(start > stop)
+            return new ArrayList<>();
+        List<String> values = new ArrayList<>((int) (stop - start + 1));
+        int[] found = new int[1];
+        Chunk c = locate((int) start, found);
+        int i = found[0];
+        int offset = c.offsetOf(i);
+        for(long n = stop - start + 1; n > 0; n--){
+            if(i == c.count){
+                c = c.next;
+                i = 0;
+                offset = 0;
+            }
+            values.add(c.read(offset));
+            offset = c.skip(offset);
+            i++;
+        }
+        return values;
+    }
+
+    /**
+     * Keeps only the elements between two indexes, both included. Indexes
+     * beyond either end are clamped to it.
+     *
+     * @param start The first index to keep, negative to count back from the end.
+     * @param stop The last index to keep, negative to count back from the end.
+     */
+    public void trim(long start, long stop){
+        start = Math.max(0, normalize(start));
+        stop = Math.min(size - 1, normalize(stop));
+        if(start > stop){
+            head = tail = null;
+            size = 0;
+            bytes = 0;
+            return;
+        }
+        for(long n = size - 1 - stop; n > 0; ){
+            int k = (int) Math.min(n, tail.count);
+            removeFrom(tail, tail.count - k, tail.count);
+            n -= k;
+        }
+        for(long n = start; n > 0; ){
+            int k = (int) Math.min(n, head.count);
+            removeFrom(head, 0, k);
+            n -= k;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        List<StringType> list = new LinkedList<>();
+        for(String value : values()){
+            list.add(new StringType(value));
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("list", list);
+        fields.put("expTime", Long.valueOf(expTime));
+        out.writeFields();
+    }
+
+    /**
+     * Restores a serialized list into chunks.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        List<StringType> list = (List<StringType>) fields.get("list", null);
+        Long exp = (Long) fields.get("expTime", null);
+        expTime = exp != null ? exp : -1L;
+        for(StringType str : list){
+            rPush(str.get());
         }
-        return "null";
+    }
+
+    /**
+     * Estimates how much memory the list uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.LIST_TYPE + bytes;
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Returns the elements of the list from first to last.
+     *
+     * @return A copy of the elements.
+     */
+    public List<String> values(){
+        return range(0, -1);
     }
 
     /**
@@ -56,7 +453,7 @@ public class ListType implements Type, Serializable {
      * @return The number of elements in the list.
      */
     public int len(){
-        return list.size();
+        return size;
     }
 
     /**
@@ -67,51 +464,50 @@ public class ListType implements Type, Serializable {
     @Override
     public String get(){
         StringBuilder sb = new StringBuilder();
-        if(list.isEmpty())
+        if(size == 0)
             return "null";
-        for(StringType str : list){
-            sb.append(str.get()).append(" ");
+        for(String value : values()){
+            sb.append(value).append(" ");
         }
         return sb.toString();
     }
 
     /**
      * Sets the expiry time for the list.
-     * Schedules an expiration check task.
+     * The list is removed from the store by the expiry manager once the time has passed.
      *
-     * @param time The expiry time in milliseconds.
+     * @param time The time to live in milliseconds.
      */
     @Override
     public void setExpiry(Long time) {
-        expTime = time;
-        scheduleExpirationCheck();
+        expTime = System.currentTimeMillis() + time;
     }
 
+    /**
+     * Sets an absolute expiry time for the list.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
     @Override
-    public void increment() {
-
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
     }
 
+    /**
+     * Gets the absolute expiry time of the list.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the list never expires.
+     */
     @Override
-    public void decrement() {
-
+    public long getExpiry() {
+        return expTime;
     }
 
     /**
-     * Schedules a task to check if the list has expired.
-     * If expired, clears the list.
+     * Removes the expiry time from the list.
      */
-    private void scheduleExpirationCheck() {
-        new Thread(() -> {
-            while (System.currentTimeMillis() < expTime) {
-                try {
-                    Thread.sleep(expTime - System.currentTimeMillis());
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
-                }
-            }
-            this.list.clear();
-        }).start();
+    @Override
+    public void persist() {
+        expTime = -1L;
     }
 }
@@ -0,0 +1,60 @@
+package server.keyvalstore;
+
+/**
+ * Rough sizes of what the store keeps on the heap and in off-heap slots, used
+ * to account for its memory budget. The figures assume compressed object pointers and compact
+ * Latin-1 strings; they only need to be cheap and proportional, not exact.
+ */
+final class MemoryUsage {
+    /**
+     * A map entry plus its slot in the table.
+     */
+    static final long ENTRY = 48;
+    static final long STRING_TYPE = 32;
+    static final long OFF_HEAP_STRING_TYPE = 40;
+    static final long NUMBER_TYPE = 40;
+    static final long LIST_TYPE = 48;
+    /**
+     * A list chunk plus the header of its array.
+     */
+    static final long LIST_CHUNK = 48;
+    static final long HASH_TYPE = 48;
+    /**
+     * The header of an array.
+     */
+    static final long ARRAY = 16;
+    /**
+     * A hash map without its entries.
+     */
+    static final long HASH_TABLE = 64;
+    static final long ZSET_TYPE = 64;
+    static final long SET_TYPE = 40;
+    /**
+     * A skip list node with its link and span arrays, plus its entry in the member index.
+     */
+    static final long ZSET_NODE = 112;
+
+    private MemoryUsage() {
+    }
+
+    /**
+     * Estimates the size of a string.
+     *
+     * @param s The string, may be null.
+     * @return The estimated size in bytes.
+     */
+    static long ofString(String s) {
+        return s == null ? 0 : 40 + ((s.length() + 7) & ~7);
+    }
+
+    /**
+     * Estimates the size of a key and its value in a segment map.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The estimated size in bytes.
+     */
+    static long ofEntry(String key, Type value) {
+        return ENTRY + ofString(key) + value.memoryUsage();
+    }
+}
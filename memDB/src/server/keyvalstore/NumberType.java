@@ -0,0 +1,237 @@
+package server.keyvalstore;
+
+import java.math.BigDecimal;
+
+/**
+ * Represents a number stored natively rather than as text, so counters are
+ * updated with plain arithmetic instead of being parsed and formatted on every
+ * change.
+ * <p>
+ * The number is a 64-bit integer or, once floating point arithmetic gives it a
+ * fraction, a double. Strings written with SET are stored this way when they
+ * are integers in canonical form, so reading them back gives the same text.
+ */
+public class NumberType implements Type {
+    /**
+     * The largest magnitude below which every integral double is exact as a long.
+     */
+    private static final double EXACT_LIMIT = 1L << 53;
+
+    private long bits;
+    private boolean integral;
+    private long expTime = -1L;
+    private int access;
+
+    private NumberType(long bits, boolean integral){
+        this.bits = bits;
+        this.integral = integral;
+    }
+
+    /**
+     * Creates an integer.
+     *
+     * @param value The value.
+     * @return The number.
+     */
+    public static NumberType of(long value){
+        return new NumberType(value, true);
+    }
+
+    /**
+     * Parses an integer written in canonical form: an optional minus sign and
+     * digits without leading zeros, within the 64-bit range.
+     *
+     * @param value The string to parse.
+     * @return The number, or null if the string is not a canonical integer.
+     */
+    public static NumberType parseInteger(String value){
+        int length = value.length();
+        if(length == 0 || length > 20)
+            return null;
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        if(start == length || (value.charAt(start) == '0' && length > 1))
+            return null;
+        for(int i = start; i < length; i++){
+            char c = value.charAt(i);
+            if(c < '0' || c > '9')
+                return null;
+        }
+        try{
+            return of(Long.parseLong(value));
+        }catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+    /**
+     * Parses a finite decimal number, such as {@code 3}, {@code -0.5} or {@code 1e3}.
+     *
+     * @param value The string to parse.
+     * @return The number, or null if the string is not a finite decimal number.
+     */
+    public static NumberType parseFloat(String value){
+        NumberType n = parseInteger(value);
+        if(n != null)
+            return n;
+        if(value.isEmpty())
+            return null;
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if((c < '0' || c > '9') && c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E')
+                return null;
+        }
+        try{
+            double d = Double.parseDouble(value);
+            if(!Double.isFinite(d))
+                return null;
+            return new NumberType(Double.doubleToLongBits(d), false);
+        }catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+    /**
+     * Makes an independent copy of the number.
+     *
+     * @return The copy.
+     */
+    @Override
+    public NumberType copy(){
+        NumberType copy = new NumberType(bits, integral);
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    /**
+     * Checks whether the number is an integer.
+     *
+     * @return True if the number is held as a 64-bit integer.
+     */
+    public boolean isIntegral(){
+        return integral;
+    }
+
+    /**
+     * Gets the number as an integer. Only meaningful if {@link #isIntegral()}.
+     *
+     * @return The value.
+     */
+    public long longValue(){
+        return bits;
+    }
+
+    /**
+     * Gets the number as a double.
+     *
+     * @return The value, rounded if it is an integer beyond the precision of a double.
+     */
+    public double doubleValue(){
+        return integral ? bits : Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Sets the number to an integer.
+     *
+     * @param value The value.
+     */
+    public void set(long value){
+        bits = value;
+        integral = true;
+    }
+
+    /**
+     * Sets the number to a double. A whole number small enough to be exact is
+     * held as an integer, just as its text would be stored by SET.
+     *
+     * @param value The value, must be finite.
+     */
+    public void set(double value){
+        if(value == Math.rint(value) && Math.abs(value) < EXACT_LIMIT){
+            set((long) value);
+        }else{
+            bits = Double.doubleToLongBits(value);
+            integral = false;
+        }
+    }
+
+    /**
+     * Estimates how much memory the number uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.NUMBER_TYPE;
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Gets the number as text: digits for an integer, and the shortest plain
+     * decimal that reads back as the same double otherwise.
+     *
+     * @return The number as a string.
+     */
+    @Override
+    public String get() {
+        if(integral)
+            return Long.toString(bits);
+        return BigDecimal.valueOf(Double.longBitsToDouble(bits)).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Sets the expiry time for the number.
+     *
+     * @param time The time to live in milliseconds.
+     */
+    @Override
+    public void setExpiry(Long time) {
+        expTime = System.currentTimeMillis() + time;
+    }
+
+    /**
+     * Sets an absolute expiry time for the number.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the number.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the number never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the number.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
+    }
+}
@@ -0,0 +1,138 @@
+package server.keyvalstore;
+
+/**
+ * Represents a string type whose characters are kept off the heap in a
+ * {@link SlabAllocator}, leaving only this small handle for the garbage
+ * collector to trace.
+ * <p>
+ * The slot belongs to the allocator of the segment holding the key, so the
+ * string may only be created or freed under that segment's write lock. The
+ * characters never change; a new value takes a new slot.
+ */
+public class OffHeapStringType implements Type {
+    private final SlabAllocator slabs;
+    private final long handle;
+    private long expTime = -1L;
+    private int access;
+
+    /**
+     * Constructor with a stored string.
+     * Sets the expiry time to -1 (never expires).
+     *
+     * @param slabs The allocator holding the string.
+     * @param handle The handle of the string.
+     */
+    OffHeapStringType(SlabAllocator slabs, long handle){
+        this.slabs = slabs;
+        this.handle = handle;
+    }
+
+    /**
+     * Makes a copy with its own expiry time that shares the slot, since the
+     * characters never change. Only one of the two may free the slot, once
+     * neither is used any more.
+     *
+     * @return The copy.
+     */
+    @Override
+    public OffHeapStringType copy(){
+        OffHeapStringType copy = new OffHeapStringType(slabs, handle);
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    /**
+     * Checks whether a value is an off-heap string held in the same slot as this one.
+     *
+     * @param other The value.
+     * @return True if both hold the same slot.
+     */
+    boolean sharesSlot(Type other){
+        return other instanceof OffHeapStringType o && o.slabs == slabs && o.handle == handle;
+    }
+
+    /**
+     * Frees the slot holding the string. The string must not be used again.
+     */
+    void free(){
+        slabs.free(handle);
+    }
+
+    /**
+     * Estimates how much memory the string uses, counting its whole slot.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.OFF_HEAP_STRING_TYPE + slabs.slotSize(handle);
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Gets the current value of the string.
+     *
+     * @return The current value of the string.
+     */
+    @Override
+    public String get() {
+        return slabs.read(handle);
+    }
+
+    /**
+     * Sets the expiry time for the string.
+     *
+     * @param time The time to live in milliseconds.
+     */
+    @Override
+    public void setExpiry(Long time) {
+        expTime = System.currentTimeMillis() + time;
+    }
+
+    /**
+     * Sets an absolute expiry time for the string.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the string.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the string never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the string.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
+    }
+}
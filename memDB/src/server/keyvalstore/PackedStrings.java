@@ -0,0 +1,90 @@
+package server.keyvalstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes strings back to back in a byte array, each as its UTF-8 length in
+ * 7-bit groups followed by its UTF-8 bytes, so a short string costs one byte
+ * more than its text. The encoding of a string is unique, so two entries are
+ * equal exactly when their bytes are.
+ */
+final class PackedStrings {
+    private PackedStrings() {
+    }
+
+    /**
+     * Encodes a string as an entry.
+     *
+     * @param value The string.
+     * @return The length header followed by the UTF-8 bytes.
+     */
+    static byte[] encode(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        int header = 1;
+        for (int n = utf8.length >>> 7; n != 0; n >>>= 7) {
+            header++;
+        }
+        byte[] entry = new byte[header + utf8.length];
+        int length = utf8.length;
+        for (int i = 0; i < header - 1; i++) {
+            entry[i] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        entry[header - 1] = (byte) length;
+        System.arraycopy(utf8, 0, entry, header, utf8.length);
+        return entry;
+    }
+
+    /**
+     * Gets where the entry after the one at the given offset starts.
+     *
+     * @param data The entries.
+     * @param offset Where an entry starts.
+     * @return Where the next entry starts.
+     */
+    static int skip(byte[] data, int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return offset + length;
+    }
+
+    /**
+     * Decodes the entry at the given offset.
+     *
+     * @param data The entries.
+     * @param offset Where the entry starts.
+     * @return The string.
+     */
+    static String read(byte[] data, int offset) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether the entry at the given offset is an encoded string, without decoding it.
+     *
+     * @param data The entries.
+     * @param offset Where the entry starts.
+     * @param entry The encoded string.
+     * @return True if the entry holds the same string.
+     */
+    static boolean matches(byte[] data, int offset, byte[] entry) {
+        int end = offset + entry.length;
+        return end <= data.length && skip(data, offset) == end
+                && Arrays.equals(data, offset, end, entry, 0, entry.length);
+    }
+}
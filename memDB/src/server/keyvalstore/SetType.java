@@ -0,0 +1,443 @@
+package server.keyvalstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Represents a set type, an unordered collection of distinct members, that can
+ * be stored in the key-value store.
+ * <p>
+ * A small set whose members are all integers, written without leading zeros
+ * or a plus sign, is kept as a sorted array of longs: eight bytes a member,
+ * found by binary search. Once it holds a member that is not such an integer,
+ * or more members than the limit passed to {@link #add(String, int)}, it is
+ * converted to a hash set for good.
+ * <p>
+ * Intersections test the members of the smallest set against the others, so
+ * they cost time proportional to the smallest set rather than the largest.
+ * When the smallest set is itself very large, and there is more than one
+ * processor, its members are split across the common fork-join pool.
+ */
+public class SetType implements Type {
+    /**
+     * The default most members a set keeps as an integer array.
+     */
+    public static final int DEFAULT_MAX_INTSET_ENTRIES = 512;
+    /**
+     * The fewest members the smallest set of an intersection must have before
+     * its members are tested in parallel.
+     */
+    static final int PARALLEL_INTERSECT_THRESHOLD = 1 << 16;
+    private static final int PARALLEL_CHUNK = 1 << 13;
+
+    private long[] ints;
+    private Set<String> table;
+    private int count;
+    private long expTime;
+    /**
+     * The estimated size of the members and the structure holding them, kept up to date so it is cheap to read.
+     */
+    private long bytes;
+    private int access;
+
+    /**
+     * Default constructor.
+     * Initializes an empty integer set that never expires.
+     */
+    public SetType(){
+        ints = new long[4];
+        expTime = -1L;
+        bytes = MemoryUsage.ARRAY + 8L * ints.length;
+    }
+
+    /**
+     * Makes an independent copy of the set.
+     *
+     * @return The copy.
+     */
+    @Override
+    public SetType copy(){
+        SetType copy = new SetType();
+        if(table != null){
+            copy.table = new HashSet<>(table);
+            copy.ints = null;
+        }else{
+            copy.ints = Arrays.copyOf(ints, ints.length);
+        }
+        copy.count = count;
+        copy.bytes = bytes;
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    /**
+     * Parses a member that the integer array can hold.
+     *
+     * @return The integer, or null if the member is not written exactly as one.
+     */
+    private static Long asInteger(String member){
+        NumberType n = NumberType.parseInteger(member);
+        return n != null ? n.longValue() : null;
+    }
+
+    private static long tableEntry(String member){
+        return MemoryUsage.ENTRY + MemoryUsage.ofString(member);
+    }
+
+    /**
+     * Moves the members into a hash set.
+     */
+    private void convert(){
+        Set<String> members = new HashSet<>(count * 2);
+        long size = MemoryUsage.HASH_TABLE;
+        for(int i = 0; i < count; i++){
+            String member = Long.toString(ints[i]);
+            members.add(member);
+            size += tableEntry(member);
+        }
+        table = members;
+        bytes = size;
+        ints = null;
+    }
+
+    /**
+     * Adds a member, converting an integer set to a hash set if the member is
+     * not an integer or would take it past the limit.
+     *
+     * @param member The member.
+     * @param maxIntsetEntries The most members an integer set may hold.
+     * @return True if the member is new.
+     */
+    public boolean add(String member, int maxIntsetEntries){
+        if(table == null){
+            Long value = asInteger(member);
+            if(value != null){
+                int i = Arrays.binarySearch(ints, 0, count, value);
+                if(i >= 0)
+                    return false;
+                if(count < maxIntsetEntries){
+                    i = -i - 1;
+                    if(count == ints.length){
+                        bytes += 8L * ints.length;
+                        ints = Arrays.copyOf(ints, ints.length * 2);
+                    }
+                    System.arraycopy(ints, i, ints, i + 1, count - i);
+                    ints[i] = value;
+                    count++;
+                    return true;
+                }
+            }
+            convert();
+        }
+        if(!table.add(member))
+            return false;
+        bytes += tableEntry(member);
+        count++;
+        return true;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param member The member.
+     * @return True if the set had the member.
+     */
+    public boolean remove(String member){
+        if(table != null){
+            if(!table.remove(member))
+                return false;
+            bytes -= tableEntry(member);
+            count--;
+            return true;
+        }
+        Long value = asInteger(member);
+        int i = value != null ? Arrays.binarySearch(ints, 0, count, value) : -1;
+        if(i < 0)
+            return false;
+        System.arraycopy(ints, i + 1, ints, i, count - i - 1);
+        count--;
+        return true;
+    }
+
+    /**
+     * Checks whether a member is in the set.
+     *
+     * @param member The member.
+     * @return True if the set has the member.
+     */
+    public boolean contains(String member){
+        if(table != null)
+            return table.contains(member);
+        Long value = asInteger(member);
+        return value != null && Arrays.binarySearch(ints, 0, count, value) >= 0;
+    }
+
+    /**
+     * Passes every member to an action, in no particular order.
+     *
+     * @param action Receives each member.
+     */
+    public void forEach(Consumer<String> action){
+        if(table != null){
+            table.forEach(action);
+            return;
+        }
+        for(int i = 0; i < count; i++){
+            action.accept(Long.toString(ints[i]));
+        }
+    }
+
+    /**
+     * Returns the members of the set.
+     *
+     * @return The members, in no particular order.
+     */
+    public List<String> members(){
+        List<String> members = new ArrayList<>(count);
+        forEach(members::add);
+        return members;
+    }
+
+    /**
+     * Converts an integer set that does not fit the limit, or puts a hash set
+     * that does and holds only integers back into an array, so a set read from
+     * a snapshot is held as if it had been built with the limit.
+     *
+     * @param maxIntsetEntries The most members an integer set may hold.
+     */
+    public void encodeFor(int maxIntsetEntries){
+        if(table == null && count > maxIntsetEntries){
+            convert();
+        }else if(table != null && count <= maxIntsetEntries){
+            long[] values = new long[Math.max(4, count)];
+            int n = 0;
+            for(String member : table){
+                Long value = asInteger(member);
+                if(value == null)
+                    return;
+                values[n++] = value;
+            }
+            Arrays.sort(values, 0, n);
+            ints = values;
+            table = null;
+            bytes = MemoryUsage.ARRAY + 8L * values.length;
+        }
+    }
+
+    /**
+     * Returns the number of members in the set.
+     *
+     * @return The number of members.
+     */
+    public int len(){
+        return count;
+    }
+
+    /**
+     * Checks whether the set is held as a sorted array of integers.
+     *
+     * @return True if held as integers, false if held in a hash set.
+     */
+    public boolean isIntset(){
+        return table == null;
+    }
+
+    /**
+     * Gets the members that are in every one of several sets. The members of
+     * the smallest set are tested against the others, in parallel if it has at
+     * least {@value #PARALLEL_INTERSECT_THRESHOLD} members and the common pool
+     * has more than one worker.
+     *
+     * @param sets The sets, none of them changed while this runs.
+     * @return The common members, in no particular order.
+     */
+    public static List<String> intersect(List<SetType> sets){
+        if(sets.isEmpty())
+            return new ArrayList<>();
+        List<SetType> bySize = new ArrayList<>(sets);
+        bySize.sort(Comparator.comparingInt(SetType::len));
+        SetType smallest = bySize.getFirst();
+        List<SetType> others = bySize.subList(1, bySize.size());
+        if(smallest.count >= PARALLEL_INTERSECT_THRESHOLD && !others.isEmpty() && ForkJoinPool.getCommonPoolParallelism() > 1)
+            return ForkJoinPool.commonPool().invoke(new IntersectTask(smallest.members(), others, 0, smallest.count));
+        List<String> common = new ArrayList<>();
+        smallest.forEach(member -> {
+            if(inAll(member, others))
+                common.add(member);
+        });
+        return common;
+    }
+
+    private static boolean inAll(String member, List<SetType> sets){
+        for(SetType set : sets){
+            if(!set.contains(member))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tests a slice of the members of the smallest set, splitting it in halves
+     * until a slice is small enough to test directly. Never serialized.
+     */
+    @SuppressWarnings("serial")
+    private static final class IntersectTask extends RecursiveTask<List<String>> {
+        private final List<String> members;
+        private final List<SetType> others;
+        private final int from;
+        private final int to;
+
+        private IntersectTask(List<String> members, List<SetType> others, int from, int to){
+            this.members = members;
+            this.others = others;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<String> compute(){
+            if(to - from <= PARALLEL_CHUNK){
+                List<String> common = new ArrayList<>();
+                for(int i = from; i < to; i++){
+                    if(inAll(members.get(i), others))
+                        common.add(members.get(i));
+                }
+                return common;
+            }
+            int middle = (from + to) >>> 1;
+            IntersectTask left = new IntersectTask(members, others, from, middle);
+            left.fork();
+            List<String> common = new IntersectTask(members, others, middle, to).compute();
+            List<String> first = left.join();
+            first.addAll(common);
+            return first;
+        }
+    }
+
+    /**
+     * Gets the members that are in any of several sets.
+     *
+     * @param sets The sets.
+     * @return The members, each once, in no particular order.
+     */
+    public static List<String> union(List<SetType> sets){
+        int largest = 0;
+        for(SetType set : sets){
+            largest = Math.max(largest, set.count);
+        }
+        Set<String> members = new HashSet<>(largest * 2);
+        for(SetType set : sets){
+            set.forEach(members::add);
+        }
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Gets the members of a set that are in none of several others.
+     *
+     * @param first The set to take members from.
+     * @param others The sets whose members are left out.
+     * @return The remaining members, in no particular order.
+     */
+    public static List<String> difference(SetType first, List<SetType> others){
+        List<String> members = new ArrayList<>();
+        first.forEach(member -> {
+            for(SetType other : others){
+                if(other.contains(member))
+                    return;
+            }
+            members.add(member);
+        });
+        return members;
+    }
+
+    /**
+     * Estimates how much memory the set uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.SET_TYPE + bytes;
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Returns a string representation of the set.
+     *
+     * @return The members separated by spaces, or "null" if the set is empty.
+     */
+    @Override
+    public String get(){
+        if(count == 0)
+            return "null";
+        StringBuilder sb = new StringBuilder();
+        forEach(member -> sb.append(member).append(' '));
+        return sb.toString();
+    }
+
+    /**
+     * Sets the expiry time for the set.
+     * The set is removed from the store by the expiry manager once the time has passed.
+     *
+     * @param time The time to live in milliseconds.
+     */
+    @Override
+    public void setExpiry(Long time) {
+        expTime = System.currentTimeMillis() + time;
+    }
+
+    /**
+     * Sets an absolute expiry time for the set.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the set.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the set never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the set.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
+    }
+}
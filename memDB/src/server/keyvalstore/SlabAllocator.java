@@ -0,0 +1,171 @@
+package server.keyvalstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps strings in off-heap memory, out of reach of the garbage collector.
+ * <p>
+ * Memory is taken from the operating system in direct buffer pages that are
+ * never given back. Each page is cut into equal slots of one size class, the
+ * classes growing by a quarter from 16 bytes up to a quarter of a page, and a
+ * string takes the smallest slot that holds its length and UTF-8 bytes. Freed
+ * slots are chained into a list per class through their first bytes and are
+ * reused before a page is cut further, so a steady workload stops allocating
+ * pages. A string is addressed by a handle combining its page and offset.
+ * <p>
+ * An allocator is not thread-safe. Each segment of the data store has its own
+ * and only changes it under the segment's write lock, while readers holding
+ * the read lock may read slots concurrently.
+ */
+final class SlabAllocator {
+    /**
+     * The size of each page taken from the operating system, in bytes.
+     */
+    static final int PAGE_SIZE = 64 * 1024;
+    private static final int MIN_SLOT = 16;
+    private static final int MAX_SLOT = PAGE_SIZE / 4;
+    /**
+     * The slot sizes of the classes, in increasing order.
+     */
+    private static final int[] SLOT_SIZES = slotSizes();
+
+    private final List<ByteBuffer> pages = new ArrayList<>();
+    /**
+     * The size class of each page, by page index.
+     */
+    private int[] pageClasses = new int[16];
+    /**
+     * The first free slot of each class, or -1 if there is none.
+     */
+    private final long[] freeSlots = new long[SLOT_SIZES.length];
+    /**
+     * The page each class is cutting new slots from, or -1 if there is none yet.
+     */
+    private final int[] currentPages = new int[SLOT_SIZES.length];
+    /**
+     * Where the next slot is cut from the current page of each class.
+     */
+    private final int[] nextOffsets = new int[SLOT_SIZES.length];
+
+    /**
+     * Constructs an allocator. No memory is taken until the first string is stored.
+     */
+    SlabAllocator() {
+        Arrays.fill(freeSlots, -1);
+        Arrays.fill(currentPages, -1);
+    }
+
+    private static int[] slotSizes() {
+        List<Integer> sizes = new ArrayList<>();
+        for (int size = MIN_SLOT; size < MAX_SLOT; size = (size + size / 4 + 7) & ~7) {
+            sizes.add(size);
+        }
+        sizes.add(MAX_SLOT);
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int classFor(int size) {
+        int i = Arrays.binarySearch(SLOT_SIZES, size);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static int page(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Stores a string.
+     *
+     * @param value The string to store.
+     * @return The handle of the string, or -1 if it is too large for a slot.
+     */
+    long allocate(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int cls = classFor(Integer.BYTES + bytes.length);
+        if (cls == SLOT_SIZES.length) {
+            return -1;
+        }
+        long handle = freeSlots[cls];
+        if (handle != -1) {
+            freeSlots[cls] = pages.get(page(handle)).getLong(offset(handle));
+        } else {
+            handle = cut(cls);
+        }
+        ByteBuffer page = pages.get(page(handle));
+        page.putInt(offset(handle), bytes.length);
+        page.put(offset(handle) + Integer.BYTES, bytes);
+        return handle;
+    }
+
+    /**
+     * Cuts a new slot of a class from the class's current page, starting a new
+     * page when it is full.
+     */
+    private long cut(int cls) {
+        int slot = SLOT_SIZES[cls];
+        if (currentPages[cls] == -1 || nextOffsets[cls] + slot > PAGE_SIZE) {
+            if (pages.size() == pageClasses.length) {
+                pageClasses = Arrays.copyOf(pageClasses, pageClasses.length * 2);
+            }
+            pageClasses[pages.size()] = cls;
+            currentPages[cls] = pages.size();
+            nextOffsets[cls] = 0;
+            pages.add(ByteBuffer.allocateDirect(PAGE_SIZE));
+        }
+        long handle = ((long) currentPages[cls] << 32) | nextOffsets[cls];
+        nextOffsets[cls] += slot;
+        return handle;
+    }
+
+    /**
+     * Reads a stored string.
+     *
+     * @param handle The handle of the string.
+     * @return The string.
+     */
+    String read(long handle) {
+        ByteBuffer page = pages.get(page(handle));
+        byte[] bytes = new byte[page.getInt(offset(handle))];
+        page.get(offset(handle) + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the size of the slot holding a string.
+     *
+     * @param handle The handle of the string.
+     * @return The slot size in bytes.
+     */
+    int slotSize(long handle) {
+        return SLOT_SIZES[pageClasses[page(handle)]];
+    }
+
+    /**
+     * Frees the slot of a string so it can be reused. The handle must not be
+     * used again.
+     *
+     * @param handle The handle of the string.
+     */
+    void free(long handle) {
+        int cls = pageClasses[page(handle)];
+        pages.get(page(handle)).putLong(offset(handle), freeSlots[cls]);
+        freeSlots[cls] = handle;
+    }
+
+    /**
+     * Gets how much off-heap memory the allocator has taken, in use or not.
+     *
+     * @return The size of all pages in bytes.
+     */
+    long reservedBytes() {
+        return (long) pages.size() * PAGE_SIZE;
+    }
+}
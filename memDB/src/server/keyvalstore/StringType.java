@@ -1,13 +1,30 @@
 package server.keyvalstore;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
  * Represents a string type that can be stored in the key-value store.
  */
 public class StringType implements Type, Serializable {
+    /**
+     * Fixed to the value of the first release so its snapshot files stay readable.
+     */
+    private static final long serialVersionUID = -311750181863944519L;
+    /**
+     * The serialized form of the first release, which kept the expiry time boxed.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("value", String.class),
+            new ObjectStreamField("expTime", Long.class)
+    };
+
     private String value;
-    private Long expTime;
+    private long expTime;
+    private transient int access;
 
     /**
      * Constructor with initial value.
@@ -21,48 +38,68 @@ public class StringType implements Type, Serializable {
     }
 
     /**
-     * Appends a string to the current value.
+     * Makes an independent copy of the string.
      *
-     * @param append The string to append.
+     * @return The copy.
      */
-    public void append(String append){
-        value = value + append;
+    @Override
+    public StringType copy(){
+        StringType copy = new StringType(value);
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("value", value);
+        fields.put("expTime", Long.valueOf(expTime));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        value = (String) fields.get("value", null);
+        Long exp = (Long) fields.get("expTime", null);
+        expTime = exp != null ? exp : -1L;
+    }
+
+    /**
+     * Estimates how much memory the string uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.STRING_TYPE + MemoryUsage.ofString(value);
     }
 
     /**
-     * Increments the value if it is a number.
-     * If the value is not a number, prints a message to the console.
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
      */
-    public void increment(){
-        try{
-            int intVal = Integer.parseInt(value);
-            value = Integer.toString(intVal + 1);
-        }catch(NumberFormatException e){
-            try{
-                float floatVal = Float.parseFloat(value);
-                value = Float.toString(floatVal + 1);
-            }catch (NumberFormatException ee) {
-                System.out.println("Value is not a number");
-            }
-        }
+    @Override
+    public int getAccess(){
+        return access;
     }
 
     /**
-     * Decrements the value if it is a number.
-     * If the value is not a number, prints a message to the console.
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
      */
-    public void decrement(){
-        try{
-            int intVal = Integer.parseInt(value);
-            value = Integer.toString(intVal - 1);
-        }catch(NumberFormatException e){
-            try{
-                float floatVal = Float.parseFloat(value);
-                value = Float.toString(floatVal - 1);
-            }catch (NumberFormatException ee) {
-                System.out.println("Value is not a number");
-            }
-        }
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Appends a string to the current value.
+     *
+     * @param append The string to append.
+     */
+    public void append(String append){
+        value = value + append;
     }
 
     /**
@@ -77,31 +114,40 @@ public class StringType implements Type, Serializable {
 
     /**
      * Sets the expiry time for the string.
-     * Schedules an expiration check task.
+     * The string is removed from the store by the expiry manager once the time has passed.
      *
-     * @param time The expiry time in milliseconds.
+     * @param time The time to live in milliseconds.
      */
     @Override
     public void setExpiry(Long time) {
         expTime = System.currentTimeMillis() + time;
-        scheduleExpirationCheck();
     }
 
     /**
-     * Schedules a task to check if the string has expired.
-     * If expired, sets the value to "null".
+     * Sets an absolute expiry time for the string.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
      */
-    private void scheduleExpirationCheck() {
-        new Thread(() -> {
-            while (System.currentTimeMillis() < expTime) {
-                try {
-                    Thread.sleep(expTime - System.currentTimeMillis());
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(e);
-                }
-            }
-            this.value = "null";
-        }).start();
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the string.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the string never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the string.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
     }
 }
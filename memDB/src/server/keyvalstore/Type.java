@@ -11,20 +11,69 @@ public interface Type {
      */
     String get();
 
+    /**
+     * Makes an independent copy of the type, including its expiry time.
+     *
+     * @return The copy.
+     */
+    Type copy();
+
     /**
      * Sets the expiry time for the type.
      *
-     * @param time The expiry time in milliseconds.
+     * @param time The time to live in milliseconds, counted from now.
      */
     void setExpiry(Long time);
 
     /**
-     * Increments the value of the type if it is a number.
+     * Sets an absolute expiry time for the type.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
      */
-    void increment();
+    void setExpiryAt(long expTime);
 
     /**
-     * Decrements the value of the type if it is a number.
+     * Gets the absolute expiry time of the type.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the type never expires.
+     */
+    long getExpiry();
+
+    /**
+     * Removes the expiry time so the type never expires.
+     */
+    void persist();
+
+    /**
+     * Checks whether the type has expired at the given time.
+     *
+     * @param now The current time in epoch milliseconds.
+     * @return True if the type has an expiry time that is not after now.
+     */
+    default boolean isExpired(long now){
+        long expTime = getExpiry();
+        return expTime != -1 && expTime <= now;
+    }
+
+    /**
+     * Estimates how much memory the type uses, without its key.
+     *
+     * @return The estimated size in bytes.
+     */
+    long memoryUsage();
+
+    /**
+     * Gets the access information kept for the eviction policy: a clock reading
+     * for LRU or a decaying counter for LFU.
+     *
+     * @return The access information.
+     */
+    int getAccess();
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
      */
-    void decrement();
+    void setAccess(int access);
 }
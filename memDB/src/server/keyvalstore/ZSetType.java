@@ -0,0 +1,706 @@
+package server.keyvalstore;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Represents a sorted set type, a set of members ordered by score, that can be
+ * stored in the key-value store. Members with equal scores are ordered by the
+ * member itself.
+ * <p>
+ * A small sorted set is packed into a single byte array of entries in order,
+ * each its member written by {@link PackedStrings} followed by its score as
+ * eight bytes, and is searched with linear scans, which are quick while it is
+ * small. Once it holds more members, or a longer member, than the limits
+ * passed to {@link #add(String, double, int, int)}, it is converted for good to
+ * a hash map from each member to its node in a skip list. The map finds a
+ * member's score in constant time. The skip list keeps the members in order,
+ * and each of its links records how many members it passes over, so finding a
+ * member's rank, the member at a rank or the first member in a score range
+ * takes O(log n) steps, after which a range is walked along the bottom level.
+ * <p>
+ * Ranges are passed to a visitor member by member as they are walked, so they
+ * are never collected by the sorted set itself.
+ */
+public class ZSetType implements Type {
+    /**
+     * The default most members a sorted set keeps packed.
+     */
+    public static final int DEFAULT_MAX_PACKED_ENTRIES = 128;
+    /**
+     * The default longest member, in characters, a sorted set keeps packed.
+     */
+    public static final int DEFAULT_MAX_PACKED_VALUE = 64;
+    private static final int MAX_LEVEL = 32;
+
+    /**
+     * A range of scores, each end included or not.
+     *
+     * @param min The lowest score.
+     * @param minExclusive True if the lowest score itself is outside the range.
+     * @param max The highest score.
+     * @param maxExclusive True if the highest score itself is outside the range.
+     */
+    public record ScoreRange(double min, boolean minExclusive, double max, boolean maxExclusive) {
+        /**
+         * Parses the ends of a range written as scores, {@code -inf} or
+         * {@code +inf}, each preceded by {@code (} to leave it out.
+         *
+         * @param min The lowest score.
+         * @param max The highest score.
+         * @return The range, or null if either end is not a score.
+         */
+        public static ScoreRange parse(String min, String max){
+            boolean minExclusive = min.startsWith("(");
+            boolean maxExclusive = max.startsWith("(");
+            Double low = parseScore(minExclusive ? min.substring(1) : min);
+            Double high = parseScore(maxExclusive ? max.substring(1) : max);
+            if(low == null || high == null)
+                return null;
+            return new ScoreRange(low, minExclusive, high, maxExclusive);
+        }
+
+        private boolean aboveMin(double score){
+            return minExclusive ? score > min : score >= min;
+        }
+
+        private boolean belowMax(double score){
+            return maxExclusive ? score < max : score <= max;
+        }
+
+        private boolean isEmpty(){
+            return min > max || (min == max && (minExclusive || maxExclusive));
+        }
+    }
+
+    /**
+     * A member in the skip list, with a link and the number of members it
+     * passes over for each of its levels.
+     */
+    private static final class Node {
+        private final String member;
+        private final double score;
+        private Node backward;
+        private final Node[] next;
+        private final int[] span;
+
+        private Node(String member, double score, int level){
+            this.member = member;
+            this.score = score;
+            this.next = new Node[level];
+            this.span = new int[level];
+        }
+
+        /**
+         * Checks whether this node comes before a score and member.
+         */
+        private boolean before(double score, String member){
+            return this.score < score || (this.score == score && this.member.compareTo(member) < 0);
+        }
+    }
+
+    private byte[] packed;
+    private int used;
+    private Map<String, Node> index;
+    private Node head;
+    private Node tail;
+    private int level;
+    private int count;
+    private long expTime;
+    /**
+     * The estimated size of the members and the structure holding them, kept up to date so it is cheap to read.
+     */
+    private long bytes;
+    private int access;
+
+    /**
+     * Default constructor.
+     * Initializes an empty packed sorted set that never expires.
+     */
+    public ZSetType(){
+        packed = new byte[32];
+        expTime = -1L;
+        bytes = MemoryUsage.ARRAY + packed.length;
+    }
+
+    /**
+     * Parses a score: a finite decimal number, or {@code inf}, {@code +inf} or {@code -inf}.
+     *
+     * @param value The string to parse.
+     * @return The score, or null if the string is not a score.
+     */
+    public static Double parseScore(String value){
+        switch(value.toLowerCase()){
+            case "inf", "+inf" -> {
+                return Double.POSITIVE_INFINITY;
+            }
+            case "-inf" -> {
+                return Double.NEGATIVE_INFINITY;
+            }
+            default -> {
+                NumberType n = NumberType.parseFloat(value);
+                return n != null ? n.doubleValue() : null;
+            }
+        }
+    }
+
+    /**
+     * Formats a score as it is answered and logged: digits for a whole number,
+     * otherwise the shortest plain decimal that reads back as the same score.
+     *
+     * @param score The score.
+     * @return The score as a string.
+     */
+    public static String formatScore(double score){
+        if(Double.isInfinite(score))
+            return score > 0 ? "inf" : "-inf";
+        if(score == Math.rint(score) && Math.abs(score) < 0x1p53)
+            return Long.toString((long) score);
+        return BigDecimal.valueOf(score).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Makes an independent copy of the sorted set.
+     *
+     * @return The copy.
+     */
+    @Override
+    public ZSetType copy(){
+        ZSetType copy = new ZSetType();
+        if(index != null){
+            copy.toSkipList();
+            forEach((member, score) -> copy.insert(member, score));
+        }else{
+            copy.packed = Arrays.copyOf(packed, packed.length);
+            copy.used = used;
+            copy.count = count;
+        }
+        copy.bytes = bytes;
+        copy.expTime = expTime;
+        return copy;
+    }
+
+    private double scoreAt(int offset){
+        long b = 0;
+        for(int i = 0; i < 8; i++){
+            b = b << 8 | (packed[offset + i] & 0xFF);
+        }
+        return Double.longBitsToDouble(b);
+    }
+
+    private static byte[] entry(String member, double score){
+        byte[] m = PackedStrings.encode(member);
+        byte[] entry = Arrays.copyOf(m, m.length + 8);
+        long b = Double.doubleToLongBits(score);
+        for(int i = 7; i >= 0; i--){
+            entry[m.length + i] = (byte) b;
+            b >>>= 8;
+        }
+        return entry;
+    }
+
+    /**
+     * Finds where the entry of a member starts in the packed array.
+     *
+     * @return The offset of the member, or -1 if the set has no such member.
+     */
+    private int find(byte[] member){
+        for(int offset = 0; offset < used; offset = PackedStrings.skip(packed, offset) + 8){
+            if(PackedStrings.matches(packed, offset, member))
+                return offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Replaces the bytes between two offsets of the packed array with others.
+     */
+    private void splice(int from, int to, byte[] entry){
+        int needed = used - (to - from) + entry.length;
+        if(needed > packed.length){
+            int capacity = Math.max(needed, packed.length * 2);
+            bytes += capacity - packed.length;
+            packed = Arrays.copyOf(packed, capacity);
+        }
+        System.arraycopy(packed, to, packed, from + entry.length, used - to);
+        System.arraycopy(entry, 0, packed, from, entry.length);
+        used = needed;
+    }
+
+    /**
+     * Inserts a member into the packed array at its place in the order.
+     */
+    private void insertPacked(String member, double score){
+        int offset = 0;
+        while(offset < used){
+            int scoreOffset = PackedStrings.skip(packed, offset);
+            double s = scoreAt(scoreOffset);
+            if(s > score || (s == score && PackedStrings.read(packed, offset).compareTo(member) > 0))
+                break;
+            offset = scoreOffset + 8;
+        }
+        splice(offset, offset, entry(member, score));
+        count++;
+    }
+
+    /**
+     * Empties the set into an empty skip list, for members to be inserted into.
+     */
+    private void toSkipList(){
+        packed = null;
+        used = 0;
+        count = 0;
+        index = new HashMap<>();
+        head = new Node(null, 0, MAX_LEVEL);
+        tail = null;
+        level = 1;
+        bytes = MemoryUsage.HASH_TABLE + MemoryUsage.ZSET_NODE;
+    }
+
+    /**
+     * Moves the members into the skip list.
+     */
+    private void convert(){
+        byte[] data = packed;
+        int end = used;
+        toSkipList();
+        for(int offset = 0; offset < end; ){
+            int scoreOffset = PackedStrings.skip(data, offset);
+            String member = PackedStrings.read(data, offset);
+            long b = 0;
+            for(int i = 0; i < 8; i++){
+                b = b << 8 | (data[scoreOffset + i] & 0xFF);
+            }
+            insert(member, Double.longBitsToDouble(b));
+            offset = scoreOffset + 8;
+        }
+    }
+
+    private static int randomLevel(){
+        // Each level is kept by one in four nodes of the level below
+        int level = 1 + Long.numberOfTrailingZeros(ThreadLocalRandom.current().nextLong() | 1L << 62) / 2;
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    /**
+     * Inserts a member that is not in the skip list.
+     */
+    private void insert(String member, double score){
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for(int i = level - 1; i >= 0; i--){
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while(x.next[i] != null && x.next[i].before(score, member)){
+                rank[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        int newLevel = randomLevel();
+        if(newLevel > level){
+            for(int i = level; i < newLevel; i++){
+                rank[i] = 0;
+                update[i] = head;
+                head.span[i] = count;
+            }
+            level = newLevel;
+        }
+        x = new Node(member, score, newLevel);
+        for(int i = 0; i < newLevel; i++){
+            x.next[i] = update[i].next[i];
+            update[i].next[i] = x;
+            x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for(int i = newLevel; i < level; i++){
+            update[i].span[i]++;
+        }
+        x.backward = update[0] == head ? null : update[0];
+        if(x.next[0] != null)
+            x.next[0].backward = x;
+        else
+            tail = x;
+        index.put(member, x);
+        count++;
+        bytes += MemoryUsage.ZSET_NODE + MemoryUsage.ofString(member);
+    }
+
+    /**
+     * Removes a member from the skip list.
+     */
+    private void delete(Node node){
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = head;
+        for(int i = level - 1; i >= 0; i--){
+            while(x.next[i] != null && x.next[i].before(node.score, node.member)){
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        for(int i = 0; i < level; i++){
+            if(update[i].next[i] == node){
+                update[i].span[i] += node.span[i] - 1;
+                update[i].next[i] = node.next[i];
+            }else{
+                update[i].span[i]--;
+            }
+        }
+        if(node.next[0] != null)
+            node.next[0].backward = node.backward;
+        else
+            tail = node.backward;
+        while(level > 1 && head.next[level - 1] == null){
+            level--;
+        }
+        index.remove(node.member);
+        count--;
+        bytes -= MemoryUsage.ZSET_NODE + MemoryUsage.ofString(node.member);
+    }
+
+    /**
+     * Finds the node at a rank of the skip list.
+     *
+     * @param rank The rank, from 1.
+     */
+    private Node nodeAt(long rank){
+        long traversed = 0;
+        Node x = head;
+        for(int i = level - 1; i >= 0; i--){
+            while(x.next[i] != null && traversed + x.span[i] <= rank){
+                traversed += x.span[i];
+                x = x.next[i];
+            }
+            if(traversed == rank)
+                return x;
+        }
+        return null;
+    }
+
+    /**
+     * Sets the score of a member, adding it if it is new and converting a packed
+     * set to a skip list if the member would take it past either limit.
+     *
+     * @param member The member.
+     * @param score The score, must not be NaN.
+     * @param maxPackedEntries The most members a packed set may hold.
+     * @param maxPackedValue The longest member, in characters, a packed set may hold.
+     * @return True if the member is new, false if its score was replaced.
+     */
+    public boolean add(String member, double score, int maxPackedEntries, int maxPackedValue){
+        if(index == null){
+            int offset = find(PackedStrings.encode(member));
+            if(offset >= 0){
+                int scoreOffset = PackedStrings.skip(packed, offset);
+                if(scoreAt(scoreOffset) != score){
+                    splice(offset, scoreOffset + 8, new byte[0]);
+                    count--;
+                    insertPacked(member, score);
+                }
+                return false;
+            }
+            if(count < maxPackedEntries && member.length() <= maxPackedValue){
+                insertPacked(member, score);
+                return true;
+            }
+            convert();
+        }
+        Node node = index.get(member);
+        if(node != null){
+            if(node.score != score){
+                delete(node);
+                insert(member, score);
+            }
+            return false;
+        }
+        insert(member, score);
+        return true;
+    }
+
+    /**
+     * Gets the score of a member.
+     *
+     * @param member The member.
+     * @return The score, or null if the set has no such member.
+     */
+    public Double score(String member){
+        if(index != null){
+            Node node = index.get(member);
+            return node != null ? node.score : null;
+        }
+        int offset = find(PackedStrings.encode(member));
+        return offset >= 0 ? scoreAt(PackedStrings.skip(packed, offset)) : null;
+    }
+
+    /**
+     * Removes a member.
+     *
+     * @param member The member.
+     * @return True if the set had the member.
+     */
+    public boolean remove(String member){
+        if(index != null){
+            Node node = index.get(member);
+            if(node == null)
+                return false;
+            delete(node);
+            return true;
+        }
+        int offset = find(PackedStrings.encode(member));
+        if(offset < 0)
+            return false;
+        splice(offset, PackedStrings.skip(packed, offset) + 8, new byte[0]);
+        count--;
+        return true;
+    }
+
+    /**
+     * Gets the rank of a member, its position in the order from 0.
+     *
+     * @param member The member.
+     * @return The rank, or -1 if the set has no such member.
+     */
+    public long rank(String member){
+        if(index == null){
+            byte[] m = PackedStrings.encode(member);
+            int rank = 0;
+            for(int offset = 0; offset < used; offset = PackedStrings.skip(packed, offset) + 8){
+                if(PackedStrings.matches(packed, offset, m))
+                    return rank;
+                rank++;
+            }
+            return -1;
+        }
+        Node node = index.get(member);
+        if(node == null)
+            return -1;
+        long rank = 0;
+        Node x = head;
+        for(int i = level - 1; i >= 0; i--){
+            while(x.next[i] != null && (x.next[i].before(node.score, member) || x.next[i] == node)){
+                rank += x.span[i];
+                x = x.next[i];
+            }
+            if(x == node)
+                return rank - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Passes the members between two ranks, both included, to a visitor in
+     * order. Ranks beyond either end are clamped to it.
+     *
+     * @param start The first rank, negative to count back from the end.
+     * @param stop The last rank, negative to count back from the end.
+     * @param visitor Receives each member and its score.
+     */
+    public void range(long start, long stop, ObjDoubleConsumer<String> visitor){
+        if(start < 0)
+            start = Math.max(0, count + start);
+        if(stop < 0)
+            stop = count + stop;
+        stop = Math.min(stop, count - 1);
+        if(start > stop)
+            return;
+        long n = stop - start + 1;
+        if(index == null){
+            int offset = 0;
+            for(long i = 0; i < start; i++){
+                offset = PackedStrings.skip(packed, offset) + 8;
+            }
+            for(; n > 0; n--){
+                int scoreOffset = PackedStrings.skip(packed, offset);
+                visitor.accept(PackedStrings.read(packed, offset), scoreAt(scoreOffset));
+                offset = scoreOffset + 8;
+            }
+            return;
+        }
+        for(Node x = nodeAt(start + 1); n > 0; n--, x = x.next[0]){
+            visitor.accept(x.member, x.score);
+        }
+    }
+
+    /**
+     * Passes the members whose scores are within a range to a visitor in order.
+     *
+     * @param range The range of scores.
+     * @param offset How many of the members in the range to skip first.
+     * @param limit The most members to visit, or a negative number for all of them.
+     * @param visitor Receives each member and its score.
+     */
+    public void rangeByScore(ScoreRange range, long offset, long limit, ObjDoubleConsumer<String> visitor){
+        if(range.isEmpty() || offset < 0)
+            return;
+        long remaining = limit < 0 ? Long.MAX_VALUE : limit;
+        if(index == null){
+            for(int p = 0; p < used && remaining > 0; ){
+                int scoreOffset = PackedStrings.skip(packed, p);
+                double score = scoreAt(scoreOffset);
+                if(!range.belowMax(score))
+                    return;
+                if(range.aboveMin(score)){
+                    if(offset > 0){
+                        offset--;
+                    }else{
+                        visitor.accept(PackedStrings.read(packed, p), score);
+                        remaining--;
+                    }
+                }
+                p = scoreOffset + 8;
+            }
+            return;
+        }
+        Node x = head;
+        for(int i = level - 1; i >= 0; i--){
+            while(x.next[i] != null && !range.aboveMin(x.next[i].score)){
+                x = x.next[i];
+            }
+        }
+        x = x.next[0];
+        for(; x != null && offset > 0 && range.belowMax(x.score); offset--){
+            x = x.next[0];
+        }
+        for(; x != null && remaining > 0 && range.belowMax(x.score); remaining--, x = x.next[0]){
+            visitor.accept(x.member, x.score);
+        }
+    }
+
+    /**
+     * Passes every member and its score to a visitor, in order.
+     *
+     * @param visitor Receives each member and its score.
+     */
+    public void forEach(ObjDoubleConsumer<String> visitor){
+        range(0, -1, visitor);
+    }
+
+    /**
+     * Moves the members of a skip list that fits the limits into the packed
+     * array, or converts a packed set that does not, so a set read from a
+     * snapshot is held as if it had been built with them.
+     *
+     * @param maxPackedEntries The most members a packed set may hold.
+     * @param maxPackedValue The longest member, in characters, a packed set may hold.
+     */
+    public void encodeFor(int maxPackedEntries, int maxPackedValue){
+        boolean[] fits = {count <= maxPackedEntries};
+        forEach((member, score) -> fits[0] &= member.length() <= maxPackedValue);
+        if(index == null && !fits[0]){
+            convert();
+        }else if(index != null && fits[0]){
+            ZSetType packedCopy = new ZSetType();
+            forEach((member, score) -> packedCopy.splice(packedCopy.used, packedCopy.used, entry(member, score)));
+            packed = packedCopy.packed;
+            used = packedCopy.used;
+            bytes = packedCopy.bytes;
+            index = null;
+            head = tail = null;
+        }
+    }
+
+    /**
+     * Returns the number of members in the sorted set.
+     *
+     * @return The number of members.
+     */
+    public int len(){
+        return count;
+    }
+
+    /**
+     * Checks whether the sorted set is packed into a single array.
+     *
+     * @return True if packed, false if held in a skip list.
+     */
+    public boolean isPacked(){
+        return index == null;
+    }
+
+    /**
+     * Estimates how much memory the sorted set uses.
+     *
+     * @return The estimated size in bytes.
+     */
+    @Override
+    public long memoryUsage(){
+        return MemoryUsage.ZSET_TYPE + bytes;
+    }
+
+    /**
+     * Gets the access information kept for the eviction policy.
+     *
+     * @return The access information.
+     */
+    @Override
+    public int getAccess(){
+        return access;
+    }
+
+    /**
+     * Sets the access information kept for the eviction policy.
+     *
+     * @param access The access information.
+     */
+    @Override
+    public void setAccess(int access){
+        this.access = access;
+    }
+
+    /**
+     * Returns a string representation of the sorted set.
+     *
+     * @return Each member followed by its score, in order and separated by spaces, or "null" if the set is empty.
+     */
+    @Override
+    public String get(){
+        if(count == 0)
+            return "null";
+        StringBuilder sb = new StringBuilder();
+        forEach((member, score) -> sb.append(member).append(' ').append(formatScore(score)).append(' '));
+        return sb.toString();
+    }
+
+    /**
+     * Sets the expiry time for the sorted set.
+     * The sorted set is removed from the store by the expiry manager once the time has passed.
+     *
+     * @param time The time to live in milliseconds.
+     */
+    @Override
+    public void setExpiry(Long time) {
+        expTime = System.currentTimeMillis() + time;
+    }
+
+    /**
+     * Sets an absolute expiry time for the sorted set.
+     *
+     * @param expTime The expiry time in epoch milliseconds.
+     */
+    @Override
+    public void setExpiryAt(long expTime) {
+        this.expTime = expTime;
+    }
+
+    /**
+     * Gets the absolute expiry time of the sorted set.
+     *
+     * @return The expiry time in epoch milliseconds, or -1 if the sorted set never expires.
+     */
+    @Override
+    public long getExpiry() {
+        return expTime;
+    }
+
+    /**
+     * Removes the expiry time from the sorted set.
+     */
+    @Override
+    public void persist() {
+        expTime = -1L;
+    }
+}
@@ -0,0 +1,99 @@
+package utils;
+
+/**
+ * Matches text against glob-style patterns, as used by the MATCH option of SCAN.
+ * <p>
+ * {@code *} matches any run of characters, {@code ?} any single character,
+ * {@code [abc]} one of the listed characters, {@code [a-z]} one of a range and
+ * {@code [^a]} any character but those listed. A backslash makes the next
+ * character literal. Matching runs in a single pass that remembers only the
+ * last {@code *} seen, so it takes time proportional to the lengths of the
+ * pattern and the text multiplied, with no recursion and no allocation.
+ */
+public final class Glob {
+    private Glob() {
+    }
+
+    /**
+     * Checks whether a text matches a pattern.
+     *
+     * @param pattern The pattern.
+     * @param text The text.
+     * @return True if the whole text matches the pattern.
+     */
+    public static boolean matches(String pattern, String text) {
+        int p = 0;
+        int t = 0;
+        int starP = -1;
+        int starT = -1;
+        while (t < text.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starP = ++p;
+                starT = t;
+                continue;
+            }
+            if (p < pattern.length()) {
+                int next = matchOne(pattern, p, text.charAt(t));
+                if (next >= 0) {
+                    p = next;
+                    t++;
+                    continue;
+                }
+            }
+            if (starP < 0) {
+                return false;
+            }
+            p = starP;
+            t = ++starT;
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Matches one character against the pattern element starting at an index.
+     *
+     * @return The index after the element, or -1 if the character does not match.
+     */
+    private static int matchOne(String pattern, int p, char c) {
+        char first = pattern.charAt(p);
+        if (first == '?') {
+            return p + 1;
+        }
+        if (first == '\\' && p + 1 < pattern.length()) {
+            return pattern.charAt(p + 1) == c ? p + 2 : -1;
+        }
+        if (first != '[') {
+            return first == c ? p + 1 : -1;
+        }
+        int i = p + 1;
+        boolean negate = i < pattern.length() && (pattern.charAt(i) == '^' || pattern.charAt(i) == '!');
+        if (negate) {
+            i++;
+        }
+        boolean found = false;
+        while (i < pattern.length() && pattern.charAt(i) != ']') {
+            char low = pattern.charAt(i);
+            if (low == '\\' && i + 1 < pattern.length()) {
+                low = pattern.charAt(++i);
+            }
+            if (i + 2 < pattern.length() && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+                char high = pattern.charAt(i + 2);
+                if (c >= Math.min(low, high) && c <= Math.max(low, high)) {
+                    found = true;
+                }
+                i += 3;
+            } else {
+                if (c == low) {
+                    found = true;
+                }
+                i++;
+            }
+        }
+        // An unclosed class runs to the end of the pattern
+        int next = i < pattern.length() ? i + 1 : i;
+        return found != negate ? next : -1;
+    }
+}
@@ -5,6 +5,7 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -41,19 +42,27 @@ public class ObjectIO {
     }
 
     /**
-     * Reads a map of key-value pairs from a file.
+     * Reads a map of key-value pairs from a file, written either as a single map
+     * or as a sequence of pairs ending with null.
      *
      * @param fileName The name of the file to read from (without the extension).
      * @return The map of key-value pairs read from the file.
      */
     public Map<String, Type> readObjectFromFile(String fileName) {
         String filePath = Paths.get(dataPath, fileName.concat(".ser")).toString();
-        Object obj;
-        try(ObjectInputStream input = new ObjectInputStream(new FileInputStream(filePath))){
-            obj = input.readObject();
+        try(ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(filePath)))){
+            Object obj = input.readObject();
+            if(obj instanceof Map<?, ?> map){
+                return (Map<String, Type>) map;
+            }
+            Map<String, Type> entries = new HashMap<>();
+            while(obj != null){
+                entries.put((String) obj, (Type) input.readObject());
+                obj = input.readObject();
+            }
+            return entries;
         }catch (IOException | ClassNotFoundException e){
             throw new RuntimeException("File path not found for" + dataPath + fileName + "\n" + e);
         }
-        return (Map<String, Type>)obj;
     }
 }
@@ -1,33 +1,125 @@
 package utils;
 
+import protocol.Codec;
+import protocol.FrameBuffer;
+import protocol.SerialCodec;
+
 import java.io.*;
 
 /**
  * Utility class for sending and receiving objects over streams.
+ * <p>
+ * Each object is encoded on its own by the messenger's {@link Codec} and sent
+ * as a frame: a four-byte length followed by the payload. Frames are
+ * self-contained, so they can be decoded from a byte buffer by a non-blocking
+ * server and no stream state builds up over a long-lived connection. The
+ * encode and receive buffers are reused, so a messenger may be shared by one
+ * sending thread and one receiving thread but not by two senders.
  */
 public class ObjectMessenger {
     /**
-     * Sends an object over an ObjectOutputStream.
+     * The largest frame accepted from the network, in bytes.
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private final Codec codec;
+    private final FrameBuffer encoded = new FrameBuffer();
+    private byte[] received = new byte[256];
+
+    /**
+     * Constructs a messenger that uses Java serialization.
+     */
+    public ObjectMessenger() {
+        this(new SerialCodec());
+    }
+
+    /**
+     * Constructs a messenger that uses the given codec.
+     *
+     * @param codec The codec for frame payloads.
+     */
+    public ObjectMessenger(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Sends an object over a DataOutputStream as a length-prefixed frame.
      *
      * @param obj The object to send.
-     * @param out The ObjectOutputStream to use for sending.
+     * @param out The DataOutputStream to use for sending.
      * @throws IOException If an I/O error occurs while sending the object.
      */
-    public void sendObject(Object obj, ObjectOutputStream out) throws IOException {
-        out.writeObject(obj);
+    public void sendObject(Object obj, DataOutputStream out) throws IOException {
+        writeObject(obj, out);
         out.flush();
     }
 
     /**
-     * Receives an object from an ObjectInputStream.
+     * Writes an object to a DataOutputStream as a length-prefixed frame without
+     * flushing, so several frames can be sent with one flush.
      *
-     * @param in The ObjectInputStream to receive from.
+     * @param obj The object to write.
+     * @param out The DataOutputStream to write to.
+     * @throws IOException If an I/O error occurs while writing the object.
+     */
+    public void writeObject(Object obj, DataOutputStream out) throws IOException {
+        int length = encode(obj);
+        out.writeInt(length);
+        out.write(encoded.array(), 0, length);
+    }
+
+    /**
+     * Receives an object from a DataInputStream.
+     *
+     * @param in The DataInputStream to receive from.
      * @return The received object.
      * @throws IOException If an I/O error occurs while receiving the object.
-     * @throws ClassNotFoundException If the class of the received object cannot be found.
      */
-    public Object receiveObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        return in.readObject();
+    public Object receiveObject(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (received.length < length) {
+            received = new byte[Math.max(length, received.length * 2)];
+        }
+        in.readFully(received, 0, length);
+        return codec.decode(received, 0, length);
+    }
+
+    /**
+     * Encodes an object into the payload of a frame. The payload stays in
+     * {@link #encodedBytes()} until the next call.
+     *
+     * @param obj The object to encode.
+     * @return The length of the payload.
+     * @throws IOException If the object cannot be encoded.
+     */
+    public int encode(Object obj) throws IOException {
+        encoded.reset();
+        codec.encode(obj, encoded);
+        return encoded.size();
+    }
+
+    /**
+     * Gets the array holding the payload of the last {@link #encode(Object)}.
+     *
+     * @return The payload array.
+     */
+    public byte[] encodedBytes() {
+        return encoded.array();
     }
 
+    /**
+     * Decodes an object from the payload of a frame.
+     *
+     * @param data The array holding the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @return The decoded object.
+     * @throws IOException If the payload cannot be read.
+     */
+    public Object decode(byte[] data, int offset, int length) throws IOException {
+        return codec.decode(data, offset, length);
+    }
 }
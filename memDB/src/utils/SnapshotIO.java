@@ -0,0 +1,446 @@
+package utils;
+
+import protocol.FrameBuffer;
+import server.keyvalstore.HashType;
+import server.keyvalstore.ListType;
+import server.keyvalstore.NumberType;
+import server.keyvalstore.OffHeapStringType;
+import server.keyvalstore.SetType;
+import server.keyvalstore.StringType;
+import server.keyvalstore.Type;
+import server.keyvalstore.ZSetType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and writes snapshot files of the data store.
+ * <p>
+ * A snapshot is a header, a sequence of independent sections and a trailer:
+ * <pre>
+ * header   magic "MEMDBSNP", int version
+ * section  int payload length, int entry count, int CRC-32C of the payload, payload
+ * trailer  long offset of each section, int section count, long entry count,
+ *          int CRC-32C of the trailer so far, magic "MEMDBEND"
+ * </pre>
+ * The payload of a section is a run of entries, each a type byte, the key, the
+ * expiry time in epoch milliseconds (-1 for none) and the value. A list is
+ * written as its length and its elements, a hash as its number of fields and
+ * each field followed by its value, and a sorted set as its number of members
+ * and each member in order followed by the bits of its score, and a set as its
+ * number of members and the members. Strings are
+ * written as by {@link FrameBuffer#writeString(String)}. Sections are about
+ * {@value #SECTION_SIZE} bytes, so a file is written in one streaming pass and
+ * loaded by several threads, each mapping and checking one section at a time.
+ */
+public class SnapshotIO {
+    /**
+     * The version written to new files; older versions remain readable.
+     */
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = "MEMDBSNP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MAGIC = "MEMDBEND".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int SECTION_HEADER_SIZE = 12;
+    /**
+     * Section count, entry count, CRC and end magic at the very end of the file.
+     */
+    private static final int TRAILER_TAIL_SIZE = 4 + 8 + 4 + END_MAGIC.length;
+    private static final int SECTION_SIZE = 1024 * 1024;
+
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_LIST = 2;
+    private static final int TYPE_HASH = 3;
+    private static final int TYPE_ZSET = 4;
+    private static final int TYPE_SET = 5;
+
+    private final String dataPath = "./data";
+
+    /**
+     * Constructor that creates the data directory if it does not exist.
+     */
+    public SnapshotIO() {
+        try {
+            Files.createDirectories(Paths.get(dataPath));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Path pathFor(String fileName) {
+        return Paths.get(dataPath, fileName.concat(".mdb"));
+    }
+
+    /**
+     * Checks whether a snapshot with the given name exists.
+     *
+     * @param fileName The name of the snapshot (without the extension).
+     * @return True if the file exists.
+     */
+    public boolean exists(String fileName) {
+        return Files.exists(pathFor(fileName));
+    }
+
+    /**
+     * Writes key-value pairs to a snapshot as a source produces them. The pairs
+     * go to a temporary file that replaces the target only once it is complete
+     * and forced to disk.
+     *
+     * @param fileName The name of the snapshot (without the extension).
+     * @param source Passes every key-value pair to the consumer it is given.
+     * @return The number of pairs written.
+     */
+    public int write(String fileName, Consumer<BiConsumer<String, Type>> source) {
+        Path filePath = pathFor(fileName);
+        Path tempPath = Paths.get(dataPath, fileName.concat(".mdb.tmp"));
+        int written;
+        try (FileChannel out = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer writer = new Writer(out);
+            source.accept(writer::append);
+            written = writer.finish();
+            out.force(true);
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Failed to write " + filePath + "\n" + e);
+        }
+        try {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replace " + filePath + "\n" + e);
+        }
+        return written;
+    }
+
+    /**
+     * Reads every entry of a snapshot, checking each section against its CRC.
+     * Sections are decoded by up to one thread per processor, so the sink must
+     * accept entries from several threads at once. Entries that have already
+     * expired are skipped.
+     *
+     * @param fileName The name of the snapshot (without the extension).
+     * @param sinkFor Given the number of entries in the file, returns the thread-safe sink for them.
+     * @return The number of entries passed to the sink.
+     */
+    public int read(String fileName, LongFunction<BiConsumer<String, Type>> sinkFor) {
+        Path filePath = pathFor(fileName);
+        try (FileChannel in = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < HEADER_SIZE + TRAILER_TAIL_SIZE) {
+                throw new IOException("Truncated snapshot");
+            }
+            ByteBuffer header = readAt(in, 0, HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            int version = header.getInt();
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a snapshot file");
+            }
+            if (version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+
+            ByteBuffer tail = readAt(in, size - TRAILER_TAIL_SIZE, TRAILER_TAIL_SIZE);
+            int sectionCount = tail.getInt();
+            long entryCount = tail.getLong();
+            int trailerCrc = tail.getInt();
+            byte[] endMagic = new byte[END_MAGIC.length];
+            tail.get(endMagic);
+            long trailerStart = size - TRAILER_TAIL_SIZE - 8L * sectionCount;
+            if (!Arrays.equals(endMagic, END_MAGIC) || sectionCount < 0 || trailerStart < HEADER_SIZE) {
+                throw new IOException("Truncated snapshot");
+            }
+            ByteBuffer trailer = readAt(in, trailerStart, (int) (size - 12 - trailerStart));
+            if (crc(trailer.duplicate()) != trailerCrc) {
+                throw new IOException("Snapshot trailer checksum mismatch");
+            }
+            long[] offsets = new long[sectionCount + 1];
+            for (int i = 0; i < sectionCount; i++) {
+                offsets[i] = trailer.getLong();
+            }
+            offsets[sectionCount] = trailerStart;
+
+            BiConsumer<String, Type> sink = sinkFor.apply(entryCount);
+            AtomicInteger next = new AtomicInteger();
+            long now = System.currentTimeMillis();
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), sectionCount));
+            List<Callable<Integer>> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(() -> {
+                    SectionReader reader = new SectionReader();
+                    int loaded = 0;
+                    for (int i = next.getAndIncrement(); i < sectionCount; i = next.getAndIncrement()) {
+                        ByteBuffer section = in.map(FileChannel.MapMode.READ_ONLY, offsets[i], offsets[i + 1] - offsets[i]);
+                        loaded += reader.read(section, now, sink);
+                    }
+                    return loaded;
+                });
+            }
+            int loaded = 0;
+            try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+                for (Future<Integer> f : pool.invokeAll(workers)) {
+                    loaded += f.get();
+                }
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+            return loaded;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to read " + filePath + "\n" + e);
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (in.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Truncated snapshot");
+            }
+        }
+        return buf.flip();
+    }
+
+    private static int crc(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Encodes entries into sections and writes each one once it is full.
+     */
+    private static final class Writer {
+        private final FileChannel out;
+        private final FrameBuffer section = new FrameBuffer();
+        private final ByteBuffer sectionHeader = ByteBuffer.allocate(SECTION_HEADER_SIZE);
+        private long[] offsets = new long[16];
+        private int sectionCount;
+        private int sectionEntries;
+        private int entries;
+        private long position;
+
+        private Writer(FileChannel out) throws IOException {
+            this.out = out;
+            FrameBuffer header = new FrameBuffer();
+            header.writeBytes(MAGIC, 0, MAGIC.length);
+            header.writeInt(VERSION);
+            writeFully(ByteBuffer.wrap(header.array(), 0, header.size()));
+        }
+
+        private void append(String key, Type value) {
+            if (value instanceof StringType || value instanceof OffHeapStringType || value instanceof NumberType) {
+                section.writeByte(TYPE_STRING);
+                section.writeString(key);
+                section.writeLong(value.getExpiry());
+                section.writeString(value.get());
+            } else if (value instanceof ListType list) {
+                section.writeByte(TYPE_LIST);
+                section.writeString(key);
+                section.writeLong(value.getExpiry());
+                List<String> values = list.values();
+                section.writeVarInt(values.size());
+                for (String v : values) {
+                    section.writeString(v);
+                }
+            } else if (value instanceof HashType hash) {
+                section.writeByte(TYPE_HASH);
+                section.writeString(key);
+                section.writeLong(value.getExpiry());
+                section.writeVarInt(hash.len());
+                hash.forEach((field, v) -> {
+                    section.writeString(field);
+                    section.writeString(v);
+                });
+            } else if (value instanceof ZSetType zset) {
+                section.writeByte(TYPE_ZSET);
+                section.writeString(key);
+                section.writeLong(value.getExpiry());
+                section.writeVarInt(zset.len());
+                zset.forEach((member, score) -> {
+                    section.writeString(member);
+                    section.writeLong(Double.doubleToLongBits(score));
+                });
+            } else if (value instanceof SetType set) {
+                section.writeByte(TYPE_SET);
+                section.writeString(key);
+                section.writeLong(value.getExpiry());
+                section.writeVarInt(set.len());
+                set.forEach(section::writeString);
+            } else {
+                throw new IllegalArgumentException("Cannot save " + value.getClass().getSimpleName());
+            }
+            sectionEntries++;
+            entries++;
+            if (section.size() >= SECTION_SIZE) {
+                try {
+                    writeSection();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        private void writeSection() throws IOException {
+            if (sectionEntries == 0) {
+                return;
+            }
+            if (sectionCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, sectionCount * 2);
+            }
+            offsets[sectionCount++] = position;
+            ByteBuffer payload = ByteBuffer.wrap(section.array(), 0, section.size());
+            sectionHeader.clear();
+            sectionHeader.putInt(section.size()).putInt(sectionEntries).putInt(crc(payload.duplicate())).flip();
+            writeFully(sectionHeader, payload);
+            section.reset();
+            sectionEntries = 0;
+        }
+
+        /**
+         * Writes the last section and the trailer.
+         *
+         * @return The number of entries written.
+         */
+        private int finish() throws IOException {
+            writeSection();
+            FrameBuffer trailer = new FrameBuffer();
+            for (int i = 0; i < sectionCount; i++) {
+                trailer.writeLong(offsets[i]);
+            }
+            trailer.writeInt(sectionCount);
+            trailer.writeLong(entries);
+            trailer.writeInt(crc(ByteBuffer.wrap(trailer.array(), 0, trailer.size())));
+            trailer.writeBytes(END_MAGIC, 0, END_MAGIC.length);
+            writeFully(ByteBuffer.wrap(trailer.array(), 0, trailer.size()));
+            return entries;
+        }
+
+        private void writeFully(ByteBuffer... buffers) throws IOException {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                position += out.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Decodes the sections of one loading thread, reusing its string buffer.
+     */
+    private static final class SectionReader {
+        private byte[] scratch = new byte[256];
+        private ByteBuffer in;
+
+        /**
+         * Checks a section and passes its live entries to the sink.
+         *
+         * @return The number of entries passed to the sink.
+         */
+        private int read(ByteBuffer section, long now, BiConsumer<String, Type> sink) throws IOException {
+            in = section;
+            if (in.remaining() < SECTION_HEADER_SIZE) {
+                throw new IOException("Truncated snapshot section");
+            }
+            int length = in.getInt();
+            int count = in.getInt();
+            int expected = in.getInt();
+            if (length != in.remaining()) {
+                throw new IOException("Truncated snapshot section");
+            }
+            if (crc(in.duplicate()) != expected) {
+                throw new IOException("Snapshot section checksum mismatch");
+            }
+            int loaded = 0;
+            for (int i = 0; i < count; i++) {
+                int type = in.get();
+                String key = readString();
+                long expTime = in.getLong();
+                Type value;
+                if (type == TYPE_STRING) {
+                    value = new StringType(readString());
+                } else if (type == TYPE_LIST) {
+                    ListType list = new ListType();
+                    for (int n = readVarInt(); n > 0; n--) {
+                        list.rPush(readString());
+                    }
+                    value = list;
+                } else if (type == TYPE_HASH) {
+                    HashType hash = new HashType();
+                    for (int n = readVarInt(); n > 0; n--) {
+                        hash.set(readString(), readString(), HashType.DEFAULT_MAX_PACKED_ENTRIES, HashType.DEFAULT_MAX_PACKED_VALUE);
+                    }
+                    value = hash;
+                } else if (type == TYPE_ZSET) {
+                    ZSetType zset = new ZSetType();
+                    for (int n = readVarInt(); n > 0; n--) {
+                        String member = readString();
+                        zset.add(member, Double.longBitsToDouble(in.getLong()), ZSetType.DEFAULT_MAX_PACKED_ENTRIES, ZSetType.DEFAULT_MAX_PACKED_VALUE);
+                    }
+                    value = zset;
+                } else if (type == TYPE_SET) {
+                    SetType set = new SetType();
+                    for (int n = readVarInt(); n > 0; n--) {
+                        set.add(readString(), SetType.DEFAULT_MAX_INTSET_ENTRIES);
+                    }
+                    value = set;
+                } else {
+                    throw new IOException("Unknown entry type " + type);
+                }
+                if (expTime != -1) {
+                    if (expTime <= now)
+                        continue;
+                    value.setExpiryAt(expTime);
+                }
+                sink.accept(key, value);
+                loaded++;
+            }
+            return loaded;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed length");
+        }
+
+        private String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > in.remaining()) {
+                throw new IOException("Truncated snapshot section");
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            in.get(scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}